@@ -18,22 +18,29 @@ package com.edduarte.vokter;
 
 import com.edduarte.vokter.diff.Difference;
 import com.edduarte.vokter.diff.DifferenceDetector;
+import com.edduarte.vokter.diff.KeywordAutomaton;
 import com.edduarte.vokter.document.Document;
 import com.edduarte.vokter.document.DocumentBuilder;
 import com.edduarte.vokter.document.DocumentCollection;
+import com.edduarte.vokter.document.OrphanCollector;
 import com.edduarte.vokter.job.JobManager;
 import com.edduarte.vokter.job.JobManagerHandler;
 import com.edduarte.vokter.keyword.Keyword;
 import com.edduarte.vokter.keyword.KeywordBuilder;
+import com.edduarte.vokter.keyword.KeywordCache;
+import com.edduarte.vokter.parser.ParseCache;
 import com.edduarte.vokter.parser.Parser;
 import com.edduarte.vokter.parser.ParserPool;
 import com.edduarte.vokter.parser.SimpleParser;
+import com.edduarte.vokter.parser.VolatileMask;
+import com.edduarte.vokter.persistence.WriteBehindQueue;
 import com.edduarte.vokter.model.v1.SubscribeRequest;
-import com.mongodb.BulkWriteOperation;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
-import com.mongodb.DBObject;
+import com.mongodb.DBCursor;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
 import com.optimaize.langdetect.LanguageDetector;
 import com.optimaize.langdetect.LanguageDetectorBuilder;
 import com.optimaize.langdetect.ngram.NgramExtractors;
@@ -51,7 +58,13 @@ import org.slf4j.LoggerFactory;
 
 import java.security.ProtectionDomain;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 
@@ -70,6 +83,47 @@ public class Context implements LifeCycle.Listener, JobManagerHandler {
 
     private static final String DIFFERENCES_DB = "vokter_differences_db";
 
+    /**
+     * The interval, in seconds, between difference detection jobs.
+     */
+    private static final int DETECTION_INTERVAL = 420;
+
+    /**
+     * The number of pending writes that triggers a write-behind flush.
+     */
+    private static final int WRITE_BATCH_SIZE = 5000;
+
+    /**
+     * The maximum duration, in milliseconds, that a write stays pending.
+     */
+    private static final long WRITE_FLUSH_INTERVAL = 200;
+
+    /**
+     * The interval, in seconds, between orphaned data collection cycles.
+     */
+    private static final int ORPHAN_COLLECTION_INTERVAL = 3600;
+
+    /**
+     * The maximum number of urls whose latest parsing results are cached.
+     */
+    private static final int PARSE_CACHE_MAX_URLS = 1000;
+
+    /**
+     * The maximum number of urls whose volatile tokens are tracked.
+     */
+    private static final int VOLATILE_MASK_MAX_URLS = 1000;
+
+    /**
+     * The maximum number of built keywords that are cached.
+     */
+    private static final int KEYWORD_CACHE_MAX_KEYWORDS = 10000;
+
+    /**
+     * The number of differences fetched from the database on each round-trip
+     * while streaming them into matching jobs.
+     */
+    private static final int DIFFERENCES_BATCH_SIZE = 500;
+
     private static final Context instance;
 
     static {
@@ -97,6 +151,38 @@ public class Context implements LifeCycle.Listener, JobManagerHandler {
      */
     private final ParserPool parserPool;
 
+    /**
+     * The cache of parsing results of the latest snapshot of each url, which
+     * the unchanged parts of the next snapshot reuse.
+     */
+    private final ParseCache parseCache;
+
+    /**
+     * The volatile tokens of the latest snapshot of each url, like timestamps
+     * and counters, which are masked in the next snapshot.
+     */
+    private final VolatileMask volatileMask;
+
+    /**
+     * The keywords of every subscription, built once and shared by every
+     * subscriber with the same keyword input.
+     */
+    private final KeywordCache keywordCache;
+
+    /**
+     * The number of detections that were skipped, since none of the
+     * subscribed keywords occurred in either snapshot.
+     */
+    private final AtomicLong skippedDetections = new AtomicLong();
+
+    /**
+     * The urls that are known to have no stored differences, so that skipped
+     * detections only remove existing differences once. Urls whose
+     * differences are unknown, such as the ones stored before a restart, are
+     * not included.
+     */
+    private final Set<String> urlsWithoutDifferences = ConcurrentHashMap.newKeySet();
+
     /**
      * The client for the used MongoDB database.
      */
@@ -118,6 +204,12 @@ public class Context implements LifeCycle.Listener, JobManagerHandler {
      */
     private DB differencesDB;
 
+    /**
+     * The write-behind stage that groups occurrence and difference writes
+     * from concurrent detection jobs into large batches.
+     */
+    private WriteBehindQueue writeQueue;
+
     /**
      * The Bayesian detection model that allows language detection.
      */
@@ -129,6 +221,12 @@ public class Context implements LifeCycle.Listener, JobManagerHandler {
      */
     private DocumentCollection collection;
 
+    /**
+     * The background collector of stored snapshots, occurrences and
+     * differences that are no longer reachable from an active job.
+     */
+    private OrphanCollector orphanCollector;
+
     /**
      * Flag that locks server shutdown until it is properly initialized.
      */
@@ -153,8 +251,11 @@ public class Context implements LifeCycle.Listener, JobManagerHandler {
     private Context() throws Exception {
         super();
         initialized = false;
-        jobManager = JobManager.create("vokter_job_manager", 420, this);
+        jobManager = JobManager.create("vokter_job_manager", DETECTION_INTERVAL, this);
         parserPool = new ParserPool();
+        parseCache = new ParseCache(PARSE_CACHE_MAX_URLS);
+        volatileMask = new VolatileMask(VOLATILE_MASK_MAX_URLS);
+        keywordCache = new KeywordCache(KEYWORD_CACHE_MAX_KEYWORDS);
     }
 
 
@@ -180,12 +281,16 @@ public class Context implements LifeCycle.Listener, JobManagerHandler {
      * jobs.
      */
     @Override
-    public boolean detectDifferences(String url) {
+    public boolean detectDifferences(String url, KeywordAutomaton keywords) {
 
         // create a new document snapshot for the provided url
         DocumentBuilder builder = DocumentBuilder
                 .fromUrl(url)
-                .withLanguageDetector(langDetector);
+                .withLanguageDetector(langDetector)
+                .withWriteBehind(writeQueue)
+                .withParseCache(parseCache)
+                .withVolatileMask(volatileMask,
+                        keywords != null ? keywords::matchesTerm : null);
 
         if (isStoppingEnabled) {
             builder.withStopwords();
@@ -203,46 +308,108 @@ public class Context implements LifeCycle.Listener, JobManagerHandler {
             return false;
         }
 
+        logger.debug("Masked {} volatile tokens of '{}' ({} volatile slots, " +
+                        "{} masked so far)",
+                newDocument.getMaskedCount(), url,
+                volatileMask.getVolatileSlots(url),
+                volatileMask.getMaskedTokens());
+        if (logger.isDebugEnabled() && newDocument.getMaskedCount() > 0) {
+            logger.debug("Volatile slots of '{}': {}",
+                    url, volatileMask.getVolatileValues(url));
+        }
+
         // check if there is a older document in the collection
         Document oldDocument = collection.get(url);
 
-        if (oldDocument != null) {
+        // the differences are only stored once the new snapshot is stored,
+        // so that they always describe the stored snapshot
+        boolean skipped = false;
+        List<Difference> results = null;
+
+        if (oldDocument != null && keywords != null &&
+                !keywords.mightMatch(oldDocument::mightContain) &&
+                !keywords.mightMatch(newDocument::mightContain)) {
+            // none of the subscribed keywords occurs in either snapshot, so
+            // no difference between them could be matched, and the existing
+            // differences, if any, are only removed
+            skipped = true;
+            newDocument.setChunkHistory(oldDocument);
+            logger.debug("Skipped detection of '{}' without subscribed " +
+                    "keywords ({} skipped so far)", url, skippedDetections.incrementAndGet());
+
+        } else if (oldDocument != null) {
             // there was already a document for this url on the collection, so
             // detect differences between them and add them to the differences
             // database
-            DifferenceDetector detector = new DifferenceDetector(oldDocument, newDocument, parserPool);
-            List<Difference> results = detector.call();
+            DifferenceDetector detector = new DifferenceDetector(oldDocument, newDocument);
+            results = detector.call();
+            logger.debug("Diff timeouts: {}, detections with fallback: {}, " +
+                            "oscillating regions: {}",
+                    DifferenceDetector.getTimeoutCount(),
+                    DifferenceDetector.getFallbackCount(),
+                    DifferenceDetector.getOscillationCount());
+
+            // the new snapshot remembers the chunks of the snapshots that it
+            // replaces, so that the next detection can recognize content
+            // that flips back to one of them
+            newDocument.setChunkHistory(oldDocument);
+        }
 
-            removeExistingDifferences(url);
-            DBCollection diffColl = differencesDB.getCollection(url);
+        // replace the old document in the collection with the new one, while
+        // the old document's occurrences are dropped in the background
+        try {
+            collection.replace(newDocument);
+        } catch (MongoException ex) {
+            // the occurrences of the new snapshot could not be stored, so the
+            // old snapshot is kept and this detection counts as a fault
+            logger.error(ex.getMessage(), ex);
+            return false;
+        }
 
-            if (!results.isEmpty()) {
-                BulkWriteOperation bulkOp = diffColl.initializeUnorderedBulkOperation();
-                results.forEach(bulkOp::insert);
-                bulkOp.execute();
-                bulkOp = null;
-                diffColl = null;
+        if (skipped) {
+            if (urlsWithoutDifferences.add(url)) {
+                writeQueue.drop(differencesDB.getCollection(url));
+            }
+        } else if (results != null) {
+            // the existing differences are replaced in the background, and
+            // matching jobs wait for this replacement before reading them
+            DBCollection diffColl = differencesDB.getCollection(url);
+            writeQueue.replaceAll(diffColl, results);
+            if (results.isEmpty()) {
+                urlsWithoutDifferences.add(url);
+            } else {
+                urlsWithoutDifferences.remove(url);
             }
         }
-
-        // replace the old document in the collection with the new one
-        collection.remove(url);
-        collection.add(newDocument);
+        logger.debug("Snapshot cache state: {}", collection.getCache());
 
         return true;
     }
 
 
     /**
-     * Collects the existing differences that were stored in the database.
+     * Lazily collects the existing differences that were stored in the
+     * database, fetching them in batches and only reading the fields that are
+     * used for matching. The returned stream must be closed after being
+     * consumed, which closes the underlying cursor.
      */
     @Override
-    public List<Difference> getExistingDifferences(String url) {
+    public Stream<Difference> getExistingDifferences(String url) {
         DBCollection diffColl = differencesDB.getCollection(url);
-        Iterable<DBObject> cursor = diffColl.find();
-        return StreamSupport.stream(cursor.spliterator(), true)
+        writeQueue.await(diffColl);
+        BasicDBObject projection = new BasicDBObject("_id", 0)
+                .append(Difference.DIFF_EVENT, 1)
+                .append(Difference.OCCURRENCE_TEXT, 1)
+                .append(Difference.SNIPPET, 1)
+                .append(Difference.WORD_COUNT, 1)
+                .append(Difference.MERGED_WORD_COUNTS, 1);
+        DBCursor cursor = diffColl
+                .find(new BasicDBObject(), projection)
+                .batchSize(DIFFERENCES_BATCH_SIZE);
+        return StreamSupport
+                .stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED), false)
                 .map(Difference::new)
-                .collect(Collectors.toList());
+                .onClose(cursor::close);
     }
 
 
@@ -252,15 +419,24 @@ public class Context implements LifeCycle.Listener, JobManagerHandler {
     @Override
     public void removeExistingDifferences(String url) {
         DBCollection diffColl = differencesDB.getCollection(url);
-        diffColl.drop();
+        writeQueue.drop(diffColl);
+        urlsWithoutDifferences.add(url);
     }
 
 
     /**
-     * Process and build keyword objects based on this context configuration
+     * Process and build keyword objects based on this context configuration.
+     * Keywords are never modified once built, so the same keyword object may
+     * be returned for equal inputs.
      */
     @Override
     public Keyword buildKeyword(String keywordInput) {
+        String settings = isStoppingEnabled + ":" + isStemmingEnabled + ":" + ignoreCase;
+        return keywordCache.get(keywordInput, settings, this::buildUncachedKeyword);
+    }
+
+
+    private Keyword buildUncachedKeyword(String keywordInput) {
         KeywordBuilder builder = KeywordBuilder
                 .fromText(keywordInput)
                 .withLanguageDetector(langDetector);
@@ -328,21 +504,34 @@ public class Context implements LifeCycle.Listener, JobManagerHandler {
         documentsDB = mongoClient.getDB(DOCUMENTS_DB);
         occurrencesDB = mongoClient.getDB(OCCURRENCES_DB);
         differencesDB = mongoClient.getDB(DIFFERENCES_DB);
+        writeQueue = new WriteBehindQueue(WRITE_BATCH_SIZE, WRITE_FLUSH_INTERVAL);
 
         List<LanguageProfile> languageProfiles = new LanguageProfileReader().readAllBuiltIn();
         langDetector = LanguageDetectorBuilder.create(NgramExtractors.standard())
                 .withProfiles(languageProfiles)
                 .build();
 
+        // snapshots are kept in cache for longer than the detection interval,
+        // so that the previous snapshot is still cached on the next detection
         collection = new DocumentCollection(
                 "vokter_production_collection",
                 documentsDB,
-                occurrencesDB
+                occurrencesDB,
+                TimeUnit.SECONDS.toMillis(DETECTION_INTERVAL + DETECTION_INTERVAL / 2),
+                writeQueue
         );
 
         logger.info("Starting jobs...");
         jobManager.initialize();
 
+        orphanCollector = new OrphanCollector(
+                collection,
+                occurrencesDB,
+                differencesDB,
+                jobManager::getActiveDocumentUrls
+        );
+        orphanCollector.start(ORPHAN_COLLECTION_INTERVAL, TimeUnit.SECONDS);
+
         logger.info("Starting parsers...");
         for (int i = 1; i < maxThreads; i++) {
             Parser p = new SimpleParser();
@@ -414,7 +603,13 @@ public class Context implements LifeCycle.Listener, JobManagerHandler {
     @Override
     public void lifeCycleStopped(LifeCycle lifeCycle) {
         jobManager.stop();
+        orphanCollector.shutdown();
+        collection.shutdown();
+        writeQueue.shutdown();
         parserPool.clear();
+        parseCache.clear();
+        volatileMask.clear();
+        keywordCache.clear();
         mongoClient.close();
         initialized = false;
     }
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.diff;
+
+import java.util.List;
+
+/**
+ * A strategy that compares two sequences of token ids, where equal tokens
+ * have equal ids, and returns the ranges of tokens that were deleted from the
+ * first sequence and inserted into the second one.
+ * <p>
+ * Token ids are expected to be small non-negative integers, such as indexes
+ * in the vocabulary of both sequences.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public interface DiffAlgorithm {
+
+    /**
+     * The combined number of tokens above which documents are diffed in
+     * parallel with {@link HistogramDiff} instead of {@link MyersDiff}.
+     */
+    int LARGE_DOCUMENT_TOKENS = 5000;
+
+
+    /**
+     * Returns the algorithm best suited for sequences with the specified
+     * lengths: the minimal edit script of {@link MyersDiff} for regular
+     * documents, and the anchor-based {@link HistogramDiff}, which degrades
+     * gracefully when blocks of content are moved around, split across the
+     * common fork-join pool for large ones.
+     */
+    static DiffAlgorithm forSize(int aLength, int bLength) {
+        return aLength + bLength > LARGE_DOCUMENT_TOKENS
+                ? new ParallelDiff(new HistogramDiff())
+                : new MyersDiff();
+    }
+
+
+    /**
+     * Returns the deleted and inserted ranges that convert the first sequence
+     * into the second one, ordered by their position in both sequences.
+     * Adjacent ranges with the same action are merged.
+     */
+    default List<Edit> diff(int[] a, int[] b) {
+        return diff(a, b, Long.MAX_VALUE);
+    }
+
+
+    /**
+     * Returns the deleted and inserted ranges that convert the first sequence
+     * into the second one, like {@link #diff(int[], int[])}, or null if the
+     * specified deadline (in milliseconds since the epoch) passes before they
+     * are found.
+     */
+    List<Edit> diff(int[] a, int[] b, long deadline);
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.edduarte.vokter.diff;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * The time budget of a token diff, which grows with the number of tokens to
+ * compare and shrinks when the system is overloaded, so that a single large
+ * or pathological diff cannot hold a detection worker for long while other
+ * detection jobs are waiting.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public final class DiffBudget {
+
+    /**
+     * The budget of a diff of any size, in milliseconds.
+     */
+    static final long BASE_MILLIS = 250;
+
+    /**
+     * The budget added for each compared token, in microseconds.
+     */
+    static final long MICROS_PER_TOKEN = 50;
+
+    static final long MIN_MILLIS = 50;
+
+    static final long MAX_MILLIS = 10000;
+
+    private static final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+
+    private DiffBudget() {
+    }
+
+
+    /**
+     * Returns the budget, in milliseconds, of a diff of the specified number
+     * of tokens under the current system load.
+     */
+    public static long millisFor(int tokenCount) {
+        return millisFor(tokenCount, os.getSystemLoadAverage() / os.getAvailableProcessors());
+    }
+
+
+    /**
+     * Returns the budget, in milliseconds, of a diff of the specified number
+     * of tokens under the specified load per processor, which is negative if
+     * unknown.
+     */
+    static long millisFor(int tokenCount, double load) {
+        double millis = BASE_MILLIS + (double) tokenCount * MICROS_PER_TOKEN / 1000;
+        if (load > 1) {
+            // every processor is busy, so each diff gets a proportionally
+            // smaller share of them
+            millis /= load;
+        }
+        return Math.max(MIN_MILLIS, Math.min(MAX_MILLIS, (long) millis));
+    }
+}
@@ -19,6 +19,7 @@ package com.edduarte.vokter.diff;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.CharBuffer;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -154,6 +155,10 @@ public class DiffMatchPatch {
     /**
      * Find the differences between two texts.  Simplifies the problem by
      * stripping any common prefix or suffix off the texts before diffing.
+     * <p>
+     * The texts are diffed as char arrays, and intermediate results are kept
+     * as ranges over these arrays, so substrings are only created for the
+     * returned Diff objects.
      *
      * @param text1      Old string to be diffed.
      * @param text2      New string to be diffed.
@@ -181,109 +186,171 @@ public class DiffMatchPatch {
             return diffs;
         }
 
+        char[] chars1 = text1.toCharArray();
+        char[] chars2 = text2.toCharArray();
+        DiffRanges ranges = new DiffRanges();
+        diff_main(chars1, 0, chars1.length, chars2, 0, chars2.length,
+                checklines, deadline, ranges);
+        return ranges.toDiffs(chars1, chars2);
+    }
+
+
+    /**
+     * Find the differences between two ranges of text, appending them to
+     * the specified ranges.
+     *
+     * @param chars1     Old text to be diffed.
+     * @param start1     Start index of the range of the old text.
+     * @param end1       End index of the range of the old text.
+     * @param chars2     New text to be diffed.
+     * @param start2     Start index of the range of the new text.
+     * @param end2       End index of the range of the new text.
+     * @param checklines Speedup flag.
+     * @param deadline   Time when the diff should be complete by.
+     * @param ranges     Ranges where the differences are appended to.
+     */
+    private void diff_main(char[] chars1, int start1, int end1,
+                           char[] chars2, int start2, int end2,
+                           boolean checklines, long deadline,
+                           DiffRanges ranges) {
+        int from = ranges.size();
+        int textEnd1 = end1;
+
         // Trim off common prefix (speedup).
-        int commonlength = diff_commonPrefix(text1, text2);
-        String commonprefix = text1.substring(0, commonlength);
-        text1 = text1.substring(commonlength);
-        text2 = text2.substring(commonlength);
+        int commonlength = diff_commonPrefix(chars1, start1, end1, chars2, start2, end2);
+        ranges.add(DifferenceEvent.nothing, start1, start1 + commonlength);
+        start1 += commonlength;
+        start2 += commonlength;
+
+        // Check for equality (speedup).
+        if (start1 == end1 && start2 == end2) {
+            return;
+        }
 
         // Trim off common suffix (speedup).
-        commonlength = diff_commonSuffix(text1, text2);
-        String commonsuffix = text1.substring(text1.length() - commonlength);
-        text1 = text1.substring(0, text1.length() - commonlength);
-        text2 = text2.substring(0, text2.length() - commonlength);
+        commonlength = diff_commonSuffix(chars1, start1, end1, chars2, start2, end2);
+        end1 -= commonlength;
+        end2 -= commonlength;
 
         // Compute the diff on the middle block.
-        diffs = diff_compute(text1, text2, checklines, deadline);
+        diff_compute(chars1, start1, end1, chars2, start2, end2,
+                checklines, deadline, ranges);
 
-        // Restore the prefix and suffix.
-        if (commonprefix.length() != 0) {
-            diffs.addFirst(new Diff(DifferenceEvent.nothing, commonprefix));
-        }
-        if (commonsuffix.length() != 0) {
-            diffs.addLast(new Diff(DifferenceEvent.nothing, commonsuffix));
-        }
+        // Restore the suffix.
+        ranges.add(DifferenceEvent.nothing, end1, end1 + commonlength);
 
-        diff_cleanupMerge(diffs);
-        return diffs;
+        ranges.cleanupMerge(from, textEnd1, chars1, chars2);
     }
 
 
     /**
-     * Find the differences between two texts.  Assumes that the texts do not
-     * have any common prefix or suffix.
+     * Find the differences between two ranges of text.  Assumes that the
+     * ranges do not have any common prefix or suffix.
      *
-     * @param text1      Old string to be diffed.
-     * @param text2      New string to be diffed.
-     * @param checklines Speedup flag.  If false, then don't run a
-     *                   line-level diff first to identify the changed areas.
-     *                   If true, then run a faster slightly less optimal diff.
+     * @param chars1     Old text to be diffed.
+     * @param start1     Start index of the range of the old text.
+     * @param end1       End index of the range of the old text.
+     * @param chars2     New text to be diffed.
+     * @param start2     Start index of the range of the new text.
+     * @param end2       End index of the range of the new text.
+     * @param checklines Speedup flag.
      * @param deadline   Time when the diff should be complete by.
-     * @return Linked List of Diff objects.
+     * @param ranges     Ranges where the differences are appended to.
      */
-    private LinkedList<Diff> diff_compute(String text1, String text2,
-                                          boolean checklines, long deadline) {
-        LinkedList<Diff> diffs = new LinkedList<>();
-
-        if (text1.length() == 0) {
+    private void diff_compute(char[] chars1, int start1, int end1,
+                              char[] chars2, int start2, int end2,
+                              boolean checklines, long deadline,
+                              DiffRanges ranges) {
+        int length1 = end1 - start1;
+        int length2 = end2 - start2;
+
+        if (length1 == 0) {
             // Just add some text (speedup).
-            diffs.add(new Diff(DifferenceEvent.inserted, text2));
-            return diffs;
+            ranges.add(DifferenceEvent.inserted, start2, end2);
+            return;
         }
 
-        if (text2.length() == 0) {
+        if (length2 == 0) {
             // Just delete some text (speedup).
-            diffs.add(new Diff(DifferenceEvent.deleted, text1));
-            return diffs;
+            ranges.add(DifferenceEvent.deleted, start1, end1);
+            return;
         }
 
-        String longtext = text1.length() > text2.length() ? text1 : text2;
-        String shorttext = text1.length() > text2.length() ? text2 : text1;
-        int i = longtext.indexOf(shorttext);
-        if (i != -1) {
-            // Shorter text is inside the longer text (speedup).
-            DifferenceEvent op = (text1.length() > text2.length()) ?
-                    DifferenceEvent.deleted : DifferenceEvent.inserted;
-            diffs.add(new Diff(op, longtext.substring(0, i)));
-            diffs.add(new Diff(DifferenceEvent.nothing, shorttext));
-            diffs.add(new Diff(op, longtext.substring(i + shorttext.length())));
-            return diffs;
+        if (length1 > length2) {
+            int i = indexOf(chars1, start1, end1, chars2, start2, end2, 0);
+            if (i != -1) {
+                // Shorter text is inside the longer text (speedup).
+                ranges.add(DifferenceEvent.deleted, start1, start1 + i);
+                ranges.add(DifferenceEvent.nothing, start1 + i, start1 + i + length2);
+                ranges.add(DifferenceEvent.deleted, start1 + i + length2, end1);
+                return;
+            }
+        } else {
+            int i = indexOf(chars2, start2, end2, chars1, start1, end1, 0);
+            if (i != -1) {
+                // Shorter text is inside the longer text (speedup).
+                ranges.add(DifferenceEvent.inserted, start2, start2 + i);
+                ranges.add(DifferenceEvent.nothing, start1, end1);
+                ranges.add(DifferenceEvent.inserted, start2 + i + length1, end2);
+                return;
+            }
         }
 
-        if (shorttext.length() == 1) {
+        if (Math.min(length1, length2) == 1) {
             // Single character string.
             // After the previous speedup, the character can't be an equality.
-            diffs.add(new Diff(DifferenceEvent.deleted, text1));
-            diffs.add(new Diff(DifferenceEvent.inserted, text2));
-            return diffs;
+            ranges.add(DifferenceEvent.deleted, start1, end1);
+            ranges.add(DifferenceEvent.inserted, start2, end2);
+            return;
         }
 
         // Check to see if the problem can be split in two.
-        String[] hm = diff_halfMatch(text1, text2);
+        int[] hm = diff_halfMatch(chars1, start1, end1, chars2, start2, end2);
         if (hm != null) {
-            // A half-match was found, sort out the return data.
-            String text1_a = hm[0];
-            String text1_b = hm[1];
-            String text2_a = hm[2];
-            String text2_b = hm[3];
-            String mid_common = hm[4];
-            // Send both pairs off for separate processing.
-            LinkedList<Diff> diffs_a = diff_main(text1_a, text2_a,
-                    checklines, deadline);
-            LinkedList<Diff> diffs_b = diff_main(text1_b, text2_b,
-                    checklines, deadline);
-            // Merge the results.
-            diffs = diffs_a;
-            diffs.add(new Diff(DifferenceEvent.nothing, mid_common));
-            diffs.addAll(diffs_b);
-            return diffs;
+            // A half-match was found, send both pairs off for separate
+            // processing, around the common middle.
+            int common1 = hm[0];
+            int common2 = hm[1];
+            int commonLength = hm[2];
+            diff_main(chars1, start1, common1, chars2, start2, common2,
+                    checklines, deadline, ranges);
+            ranges.add(DifferenceEvent.nothing, common1, common1 + commonLength);
+            diff_main(chars1, common1 + commonLength, end1,
+                    chars2, common2 + commonLength, end2,
+                    checklines, deadline, ranges);
+            return;
         }
 
-        if (checklines && text1.length() > 100 && text2.length() > 100) {
-            return diff_lineMode(text1, text2, deadline);
+        if (checklines && length1 > 100 && length2 > 100) {
+            LinkedList<Diff> lineDiffs = diff_lineMode(
+                    new String(chars1, start1, length1),
+                    new String(chars2, start2, length2),
+                    deadline);
+            // Map the diff back onto ranges of both texts.
+            int index1 = start1;
+            int index2 = start2;
+            for (Diff aDiff : lineDiffs) {
+                int length = aDiff.text.length();
+                switch (aDiff.action) {
+                    case inserted:
+                        ranges.add(DifferenceEvent.inserted, index2, index2 + length);
+                        index2 += length;
+                        break;
+                    case deleted:
+                        ranges.add(DifferenceEvent.deleted, index1, index1 + length);
+                        index1 += length;
+                        break;
+                    case nothing:
+                        ranges.add(DifferenceEvent.nothing, index1, index1 + length);
+                        index1 += length;
+                        index2 += length;
+                        break;
+                }
+            }
+            return;
         }
 
-        return diff_bisect(text1, text2, deadline);
+        diff_bisect(chars1, start1, end1, chars2, start2, end2, deadline, ranges);
     }
 
 
@@ -371,9 +438,34 @@ public class DiffMatchPatch {
      */
     protected LinkedList<Diff> diff_bisect(String text1, String text2,
                                            long deadline) {
+        char[] chars1 = text1.toCharArray();
+        char[] chars2 = text2.toCharArray();
+        DiffRanges ranges = new DiffRanges();
+        diff_bisect(chars1, 0, chars1.length, chars2, 0, chars2.length,
+                deadline, ranges);
+        return ranges.toDiffs(chars1, chars2);
+    }
+
+
+    /**
+     * Find the 'middle snake' of a diff between two ranges of text, split the
+     * problem in two and append the recursively constructed diff.
+     *
+     * @param chars1   Old text to be diffed.
+     * @param start1   Start index of the range of the old text.
+     * @param end1     End index of the range of the old text.
+     * @param chars2   New text to be diffed.
+     * @param start2   Start index of the range of the new text.
+     * @param end2     End index of the range of the new text.
+     * @param deadline Time at which to bail if not yet complete.
+     * @param ranges   Ranges where the differences are appended to.
+     */
+    private void diff_bisect(char[] chars1, int start1, int end1,
+                             char[] chars2, int start2, int end2,
+                             long deadline, DiffRanges ranges) {
         // Cache the text lengths to prevent multiple calls.
-        int text1_length = text1.length();
-        int text2_length = text2.length();
+        int text1_length = end1 - start1;
+        int text2_length = end2 - start2;
         int max_d = (text1_length + text2_length + 1) / 2;
         int v_offset = max_d;
         int v_length = 2 * max_d;
@@ -412,7 +504,7 @@ public class DiffMatchPatch {
                 }
                 int y1 = x1 - k1;
                 while (x1 < text1_length && y1 < text2_length
-                        && text1.charAt(x1) == text2.charAt(y1)) {
+                        && chars1[start1 + x1] == chars2[start2 + y1]) {
                     x1++;
                     y1++;
                 }
@@ -430,7 +522,9 @@ public class DiffMatchPatch {
                         int x2 = text1_length - v2[k2_offset];
                         if (x1 >= x2) {
                             // Overlap detected.
-                            return diff_bisectSplit(text1, text2, x1, y1, deadline);
+                            diff_bisectSplit(chars1, start1, end1, chars2, start2, end2,
+                                    x1, y1, deadline, ranges);
+                            return;
                         }
                     }
                 }
@@ -447,8 +541,7 @@ public class DiffMatchPatch {
                 }
                 int y2 = x2 - k2;
                 while (x2 < text1_length && y2 < text2_length
-                        && text1.charAt(text1_length - x2 - 1)
-                        == text2.charAt(text2_length - y2 - 1)) {
+                        && chars1[end1 - x2 - 1] == chars2[end2 - y2 - 1]) {
                     x2++;
                     y2++;
                 }
@@ -468,7 +561,9 @@ public class DiffMatchPatch {
                         x2 = text1_length - x2;
                         if (x1 >= x2) {
                             // Overlap detected.
-                            return diff_bisectSplit(text1, text2, x1, y1, deadline);
+                            diff_bisectSplit(chars1, start1, end1, chars2, start2, end2,
+                                    x1, y1, deadline, ranges);
+                            return;
                         }
                     }
                 }
@@ -476,10 +571,8 @@ public class DiffMatchPatch {
         }
         // Diff took too long and hit the deadline or
         // number of diffs equals number of characters, no commonality at all.
-        LinkedList<Diff> diffs = new LinkedList<Diff>();
-        diffs.add(new Diff(DifferenceEvent.deleted, text1));
-        diffs.add(new Diff(DifferenceEvent.inserted, text2));
-        return diffs;
+        ranges.add(DifferenceEvent.deleted, start1, end1);
+        ranges.add(DifferenceEvent.inserted, start2, end2);
     }
 
 
@@ -487,26 +580,26 @@ public class DiffMatchPatch {
      * Given the location of the 'middle snake', split the diff in two parts
      * and recurse.
      *
-     * @param text1    Old string to be diffed.
-     * @param text2    New string to be diffed.
-     * @param x        Index of split point in text1.
-     * @param y        Index of split point in text2.
+     * @param chars1   Old text to be diffed.
+     * @param start1   Start index of the range of the old text.
+     * @param end1     End index of the range of the old text.
+     * @param chars2   New text to be diffed.
+     * @param start2   Start index of the range of the new text.
+     * @param end2     End index of the range of the new text.
+     * @param x        Index of split point in the range of the old text.
+     * @param y        Index of split point in the range of the new text.
      * @param deadline Time at which to bail if not yet complete.
-     * @return LinkedList of Diff objects.
+     * @param ranges   Ranges where the differences are appended to.
      */
-    private LinkedList<Diff> diff_bisectSplit(String text1, String text2,
-                                              int x, int y, long deadline) {
-        String text1a = text1.substring(0, x);
-        String text2a = text2.substring(0, y);
-        String text1b = text1.substring(x);
-        String text2b = text2.substring(y);
-
+    private void diff_bisectSplit(char[] chars1, int start1, int end1,
+                                  char[] chars2, int start2, int end2,
+                                  int x, int y, long deadline,
+                                  DiffRanges ranges) {
         // Compute both diffs serially.
-        LinkedList<Diff> diffs = diff_main(text1a, text2a, false, deadline);
-        LinkedList<Diff> diffsb = diff_main(text1b, text2b, false, deadline);
-
-        diffs.addAll(diffsb);
-        return diffs;
+        diff_main(chars1, start1, start1 + x, chars2, start2, start2 + y,
+                false, deadline, ranges);
+        diff_main(chars1, start1 + x, end1, chars2, start2 + y, end2,
+                false, deadline, ranges);
     }
 
 
@@ -634,6 +727,65 @@ public class DiffMatchPatch {
     }
 
 
+    /**
+     * Determine the common prefix of two ranges of text.
+     *
+     * @return The number of characters common to the start of each range.
+     */
+    private static int diff_commonPrefix(char[] chars1, int start1, int end1,
+                                         char[] chars2, int start2, int end2) {
+        int n = Math.min(end1 - start1, end2 - start2);
+        for (int i = 0; i < n; i++) {
+            if (chars1[start1 + i] != chars2[start2 + i]) {
+                return i;
+            }
+        }
+        return n;
+    }
+
+
+    /**
+     * Determine the common suffix of two ranges of text.
+     *
+     * @return The number of characters common to the end of each range.
+     */
+    private static int diff_commonSuffix(char[] chars1, int start1, int end1,
+                                         char[] chars2, int start2, int end2) {
+        int n = Math.min(end1 - start1, end2 - start2);
+        for (int i = 1; i <= n; i++) {
+            if (chars1[end1 - i] != chars2[end2 - i]) {
+                return i - 1;
+            }
+        }
+        return n;
+    }
+
+
+    /**
+     * Find the first occurrence of a range of text within another range of
+     * text, starting at the specified offset.
+     *
+     * @return The offset of the occurrence relative to the start of the
+     * searched range, or -1 if there is none.
+     */
+    private static int indexOf(char[] chars, int start, int end,
+                               char[] pattern, int patternStart, int patternEnd,
+                               int fromOffset) {
+        int patternLength = patternEnd - patternStart;
+        int last = end - patternLength;
+        for (int i = start + fromOffset; i <= last; i++) {
+            int j = 0;
+            while (j < patternLength && chars[i + j] == pattern[patternStart + j]) {
+                j++;
+            }
+            if (j == patternLength) {
+                return i - start;
+            }
+        }
+        return -1;
+    }
+
+
     /**
      * Determine if the suffix of one string is the prefix of another.
      *
@@ -695,23 +847,53 @@ public class DiffMatchPatch {
      * common middle.  Or null if there was no match.
      */
     protected String[] diff_halfMatch(String text1, String text2) {
+        int[] hm = diff_halfMatch(text1.toCharArray(), 0, text1.length(),
+                text2.toCharArray(), 0, text2.length());
+        if (hm == null) {
+            return null;
+        }
+        return new String[]{
+                text1.substring(0, hm[0]), text1.substring(hm[0] + hm[2]),
+                text2.substring(0, hm[1]), text2.substring(hm[1] + hm[2]),
+                text1.substring(hm[0], hm[0] + hm[2])};
+    }
+
+
+    /**
+     * Do the two ranges of text share a substring which is at least half the
+     * length of the longer range?
+     *
+     * @return Three element array, containing the start index of the common
+     * middle in the old text, its start index in the new text and its length.
+     * Or null if there was no match.
+     */
+    private int[] diff_halfMatch(char[] chars1, int start1, int end1,
+                                 char[] chars2, int start2, int end2) {
         if (Diff_Timeout <= 0) {
             // Don't risk returning a non-optimal diff if we have unlimited time.
             return null;
         }
-        String longtext = text1.length() > text2.length() ? text1 : text2;
-        String shorttext = text1.length() > text2.length() ? text2 : text1;
-        if (longtext.length() < 4 || shorttext.length() * 2 < longtext.length()) {
+        int length1 = end1 - start1;
+        int length2 = end2 - start2;
+        boolean isText1Longer = length1 > length2;
+        char[] longtext = isText1Longer ? chars1 : chars2;
+        int longStart = isText1Longer ? start1 : start2;
+        int longEnd = isText1Longer ? end1 : end2;
+        char[] shorttext = isText1Longer ? chars2 : chars1;
+        int shortStart = isText1Longer ? start2 : start1;
+        int shortEnd = isText1Longer ? end2 : end1;
+        int longLength = longEnd - longStart;
+        if (longLength < 4 || (shortEnd - shortStart) * 2 < longLength) {
             return null;  // Pointless.
         }
 
         // First check if the second quarter is the seed for a half-match.
-        String[] hm1 = diff_halfMatchI(longtext, shorttext,
-                (longtext.length() + 3) / 4);
+        int[] hm1 = diff_halfMatchI(longtext, longStart, longEnd,
+                shorttext, shortStart, shortEnd, (longLength + 3) / 4);
         // Check again based on the third quarter.
-        String[] hm2 = diff_halfMatchI(longtext, shorttext,
-                (longtext.length() + 1) / 2);
-        String[] hm;
+        int[] hm2 = diff_halfMatchI(longtext, longStart, longEnd,
+                shorttext, shortStart, shortEnd, (longLength + 1) / 2);
+        int[] hm;
         if (hm1 == null && hm2 == null) {
             return null;
         } else if (hm2 == null) {
@@ -720,15 +902,14 @@ public class DiffMatchPatch {
             hm = hm2;
         } else {
             // Both matched.  Select the longest.
-            hm = hm1[4].length() > hm2[4].length() ? hm1 : hm2;
+            hm = hm1[2] > hm2[2] ? hm1 : hm2;
         }
 
         // A half-match was found, sort out the return data.
-        if (text1.length() > text2.length()) {
-            return hm;
-            //return new String[]{hm[0], hm[1], hm[2], hm[3], hm[4]};
+        if (isText1Longer) {
+            return new int[]{start1 + hm[0], start2 + hm[1], hm[2]};
         } else {
-            return new String[]{hm[2], hm[3], hm[0], hm[1], hm[4]};
+            return new int[]{start1 + hm[1], start2 + hm[0], hm[2]};
         }
     }
 
@@ -737,37 +918,34 @@ public class DiffMatchPatch {
      * Does a substring of shorttext exist within longtext such that the
      * substring is at least half the length of longtext?
      *
-     * @param longtext  Longer string.
-     * @param shorttext Shorter string.
-     * @param i         Start index of quarter length substring within longtext.
-     * @return Five element String array, containing the prefix of longtext, the
-     * suffix of longtext, the prefix of shorttext, the suffix of shorttext
-     * and the common middle.  Or null if there was no match.
+     * @param i Start offset of quarter length substring within longtext.
+     * @return Three element array, containing the offset of the common middle
+     * in longtext, its offset in shorttext and its length.  Or null if there
+     * was no match.
      */
-    private String[] diff_halfMatchI(String longtext, String shorttext, int i) {
+    private static int[] diff_halfMatchI(char[] longtext, int longStart, int longEnd,
+                                         char[] shorttext, int shortStart, int shortEnd,
+                                         int i) {
         // Start with a 1/4 length substring at position i as a seed.
-        String seed = longtext.substring(i, i + longtext.length() / 4);
+        int seedStart = longStart + i;
+        int seedEnd = seedStart + (longEnd - longStart) / 4;
         int j = -1;
-        String best_common = "";
-        String best_longtext_a = "", best_longtext_b = "";
-        String best_shorttext_a = "", best_shorttext_b = "";
-        while ((j = shorttext.indexOf(seed, j + 1)) != -1) {
-            int prefixLength = diff_commonPrefix(longtext.substring(i),
-                    shorttext.substring(j));
-            int suffixLength = diff_commonSuffix(longtext.substring(0, i),
-                    shorttext.substring(0, j));
-            if (best_common.length() < suffixLength + prefixLength) {
-                best_common = shorttext.substring(j - suffixLength, j)
-                        + shorttext.substring(j, j + prefixLength);
-                best_longtext_a = longtext.substring(0, i - suffixLength);
-                best_longtext_b = longtext.substring(i + prefixLength);
-                best_shorttext_a = shorttext.substring(0, j - suffixLength);
-                best_shorttext_b = shorttext.substring(j + prefixLength);
-            }
-        }
-        if (best_common.length() * 2 >= longtext.length()) {
-            return new String[]{best_longtext_a, best_longtext_b,
-                    best_shorttext_a, best_shorttext_b, best_common};
+        int best_common = 0;
+        int best_long = 0, best_short = 0;
+        while ((j = indexOf(shorttext, shortStart, shortEnd,
+                longtext, seedStart, seedEnd, j + 1)) != -1) {
+            int prefixLength = diff_commonPrefix(longtext, longStart + i, longEnd,
+                    shorttext, shortStart + j, shortEnd);
+            int suffixLength = diff_commonSuffix(longtext, longStart, longStart + i,
+                    shorttext, shortStart, shortStart + j);
+            if (best_common < suffixLength + prefixLength) {
+                best_common = suffixLength + prefixLength;
+                best_long = i - suffixLength;
+                best_short = j - suffixLength;
+            }
+        }
+        if (best_common * 2 >= longEnd - longStart) {
+            return new int[]{best_long, best_short, best_common};
         } else {
             return null;
         }
@@ -931,11 +1109,11 @@ public class DiffMatchPatch {
      * @param diffs LinkedList of Diff objects.
      */
     public void diff_cleanupSemanticLossless(LinkedList<Diff> diffs) {
-        String equality1, edit, equality2;
-        String commonString;
+        int length1, editLength, textLength;
         int commonOffset;
+        int start, bestStart;
         int score, bestScore;
-        String bestEquality1, bestEdit, bestEquality2;
+        char[] text;
         // Create a new iterator at the start.
         ListIterator<Diff> pointer = diffs.listIterator();
         Diff prevDiff = pointer.hasNext() ? pointer.next() : null;
@@ -946,45 +1124,40 @@ public class DiffMatchPatch {
             if (prevDiff.action == DifferenceEvent.nothing &&
                     nextDiff.action == DifferenceEvent.nothing) {
                 // This is a single edit surrounded by equalities.
-                equality1 = prevDiff.text;
-                edit = thisDiff.text;
-                equality2 = nextDiff.text;
+                // Shifting the edit sideways never changes the concatenation
+                // of the three texts, so the edit is slid as a window over a
+                // single buffer instead of rebuilding the strings at each step.
+                length1 = prevDiff.text.length();
+                editLength = thisDiff.text.length();
+                textLength = length1 + editLength + nextDiff.text.length();
+                text = new char[textLength];
+                prevDiff.text.getChars(0, length1, text, 0);
+                thisDiff.text.getChars(0, editLength, text, length1);
+                nextDiff.text.getChars(0, nextDiff.text.length(), text, length1 + editLength);
 
                 // First, shift the edit as far left as possible.
-                commonOffset = diff_commonSuffix(equality1, edit);
-                if (commonOffset != 0) {
-                    commonString = edit.substring(edit.length() - commonOffset);
-                    equality1 = equality1.substring(0, equality1.length() - commonOffset);
-                    edit = commonString + edit.substring(0, edit.length() - commonOffset);
-                    equality2 = commonString + equality2;
-                }
+                commonOffset = diff_commonSuffix(text, 0, length1,
+                        text, length1, length1 + editLength);
+                start = length1 - commonOffset;
 
                 // Second, step character by character right, looking for the best fit.
-                bestEquality1 = equality1;
-                bestEdit = edit;
-                bestEquality2 = equality2;
-                bestScore = diff_cleanupSemanticScore(equality1, edit)
-                        + diff_cleanupSemanticScore(edit, equality2);
-                while (edit.length() != 0 && equality2.length() != 0
-                        && edit.charAt(0) == equality2.charAt(0)) {
-                    equality1 += edit.charAt(0);
-                    edit = edit.substring(1) + equality2.charAt(0);
-                    equality2 = equality2.substring(1);
-                    score = diff_cleanupSemanticScore(equality1, edit)
-                            + diff_cleanupSemanticScore(edit, equality2);
+                bestStart = start;
+                bestScore = diff_cleanupSemanticEditScore(text, start, start + editLength);
+                while (editLength != 0 && start + editLength < textLength
+                        && text[start] == text[start + editLength]) {
+                    start++;
+                    score = diff_cleanupSemanticEditScore(text, start, start + editLength);
                     // The >= encourages trailing rather than leading whitespace on edits.
                     if (score >= bestScore) {
                         bestScore = score;
-                        bestEquality1 = equality1;
-                        bestEdit = edit;
-                        bestEquality2 = equality2;
+                        bestStart = start;
                     }
                 }
 
-                if (!prevDiff.text.equals(bestEquality1)) {
+                if (bestStart != length1) {
                     // We have an improvement, save it back to the diff.
-                    if (bestEquality1.length() != 0) {
-                        prevDiff.text = bestEquality1;
+                    if (bestStart != 0) {
+                        prevDiff.text = new String(text, 0, bestStart);
                     } else {
                         pointer.previous(); // Walk past nextDiff.
                         pointer.previous(); // Walk past thisDiff.
@@ -993,9 +1166,10 @@ public class DiffMatchPatch {
                         pointer.next(); // Walk past thisDiff.
                         pointer.next(); // Walk past nextDiff.
                     }
-                    thisDiff.text = bestEdit;
-                    if (bestEquality2.length() != 0) {
-                        nextDiff.text = bestEquality2;
+                    thisDiff.text = new String(text, bestStart, editLength);
+                    if (bestStart + editLength != textLength) {
+                        nextDiff.text = new String(text, bestStart + editLength,
+                                textLength - bestStart - editLength);
                     } else {
                         pointer.remove(); // Delete nextDiff.
                         nextDiff = thisDiff;
@@ -1011,16 +1185,29 @@ public class DiffMatchPatch {
 
 
     /**
-     * Given two strings, compute a score representing whether the internal
-     * boundary falls on logical boundaries.
+     * Scores both boundaries of an edit that spans text[editStart, editEnd),
+     * surrounded by equalities that span text[0, editStart) and
+     * text[editEnd, text.length).
+     */
+    private int diff_cleanupSemanticEditScore(char[] text, int editStart, int editEnd) {
+        return diff_cleanupSemanticScore(text, 0, editStart, editEnd)
+                + diff_cleanupSemanticScore(text, editStart, editEnd, text.length);
+    }
+
+
+    /**
+     * Given two adjacent ranges of a text, compute a score representing
+     * whether the internal boundary falls on logical boundaries.
      * Scores range from 6 (best) to 0 (worst).
      *
-     * @param one First string.
-     * @param two Second string.
+     * @param text  The text that contains both ranges.
+     * @param start Start of the first range.
+     * @param split End of the first range and start of the second one.
+     * @param end   End of the second range.
      * @return The score.
      */
-    private int diff_cleanupSemanticScore(String one, String two) {
-        if (one.length() == 0 || two.length() == 0) {
+    private int diff_cleanupSemanticScore(char[] text, int start, int split, int end) {
+        if (split == start || split == end) {
             // Edges are the best.
             return 6;
         }
@@ -1030,8 +1217,8 @@ public class DiffMatchPatch {
         // 'whitespace'.  Since this function's purpose is largely cosmetic,
         // the choice has been made to use each language's native features
         // rather than force total conformity.
-        char char1 = one.charAt(one.length() - 1);
-        char char2 = two.charAt(0);
+        char char1 = text[split - 1];
+        char char2 = text[split];
         boolean nonAlphaNumeric1 = !Character.isLetterOrDigit(char1);
         boolean nonAlphaNumeric2 = !Character.isLetterOrDigit(char2);
         boolean whitespace1 = nonAlphaNumeric1 && Character.isWhitespace(char1);
@@ -1040,8 +1227,10 @@ public class DiffMatchPatch {
                 && Character.getType(char1) == Character.CONTROL;
         boolean lineBreak2 = whitespace2
                 && Character.getType(char2) == Character.CONTROL;
-        boolean blankLine1 = lineBreak1 && BLANKLINEEND.matcher(one).find();
-        boolean blankLine2 = lineBreak2 && BLANKLINESTART.matcher(two).find();
+        boolean blankLine1 = lineBreak1 && BLANKLINEEND
+                .matcher(CharBuffer.wrap(text, start, split - start)).find();
+        boolean blankLine2 = lineBreak2 && BLANKLINESTART
+                .matcher(CharBuffer.wrap(text, split, end - split)).find();
 
         if (blankLine1 || blankLine2) {
             // Five points for blank lines.
@@ -2374,6 +2563,229 @@ public class DiffMatchPatch {
     }
 
 
+    /**
+     * Array-backed list of (operation, start, end) ranges over the texts being
+     * diffed, where inserted ranges refer to the new text and every other
+     * range refers to the old text.
+     */
+    private static class DiffRanges {
+
+        private static final DifferenceEvent[] ACTIONS = DifferenceEvent.values();
+
+        private static final int INSERTED = DifferenceEvent.inserted.ordinal();
+
+        private static final int DELETED = DifferenceEvent.deleted.ordinal();
+
+        private static final int NOTHING = DifferenceEvent.nothing.ordinal();
+
+        private int[] data = new int[48];
+
+        private int size;
+
+        /**
+         * Reusable buffer where merged ranges are written before replacing
+         * the original ones.
+         */
+        private int[] scratch = new int[48];
+
+
+        private int size() {
+            return size;
+        }
+
+
+        private void add(DifferenceEvent action, int start, int end) {
+            if (start == end) {
+                return;
+            }
+            if (size + 3 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = action.ordinal();
+            data[size++] = start;
+            data[size++] = end;
+        }
+
+
+        private LinkedList<Diff> toDiffs(char[] chars1, char[] chars2) {
+            LinkedList<Diff> diffs = new LinkedList<>();
+            for (int i = 0; i < size; i += 3) {
+                char[] chars = data[i] == INSERTED ? chars2 : chars1;
+                diffs.add(new Diff(ACTIONS[data[i]],
+                        new String(chars, data[i + 1], data[i + 2] - data[i + 1])));
+            }
+            return diffs;
+        }
+
+
+        /**
+         * Reorder and merge like edit sections of the ranges added since the
+         * specified index, exactly as diff_cleanupMerge does with a list of
+         * Diff objects.
+         *
+         * @param from   Index of the first range to cleanup.
+         * @param end1   End index of these ranges in the old text.
+         * @param chars1 Old text.
+         * @param chars2 New text.
+         */
+        private void cleanupMerge(int from, int end1, char[] chars1, char[] chars2) {
+            do {
+                mergeEdits(from, end1, chars1, chars2);
+            } while (shiftEdits(from, chars1, chars2));
+        }
+
+
+        /**
+         * First pass of diff_cleanupMerge: merges every run of edits between
+         * equalities into one deletion and one insertion, factoring out their
+         * common prefix and suffix into the surrounding equalities, and merges
+         * consecutive equalities.
+         */
+        private void mergeEdits(int from, int end1, char[] chars1, char[] chars2) {
+            if (scratch.length < size - from + 9) {
+                scratch = new int[Math.max(scratch.length * 2, size - from + 9)];
+            }
+            int[] out = scratch;
+            int n = 0;
+            int countDelete = 0, countInsert = 0;
+            int deleteStart = 0, deleteEnd = 0, insertStart = 0, insertEnd = 0;
+            int prevEqual = -1;
+            // the last iteration processes a dummy equality at the end
+            for (int i = from; i <= size; i += 3) {
+                int op = i < size ? data[i] : NOTHING;
+                int start = i < size ? data[i + 1] : end1;
+                int end = i < size ? data[i + 2] : end1;
+                if (op == DELETED) {
+                    if (countDelete++ == 0) {
+                        deleteStart = start;
+                    }
+                    deleteEnd = end;
+                    prevEqual = -1;
+                } else if (op == INSERTED) {
+                    if (countInsert++ == 0) {
+                        insertStart = start;
+                    }
+                    insertEnd = end;
+                    prevEqual = -1;
+                } else {
+                    if (countDelete + countInsert > 1 && countDelete != 0 && countInsert != 0) {
+                        // Factor out any common prefixies.
+                        int commonlength = diff_commonPrefix(chars2, insertStart, insertEnd,
+                                chars1, deleteStart, deleteEnd);
+                        if (commonlength != 0) {
+                            if (n > 0) {
+                                out[n - 1] += commonlength;
+                            } else {
+                                out[n++] = NOTHING;
+                                out[n++] = deleteStart;
+                                out[n++] = deleteStart + commonlength;
+                            }
+                            insertStart += commonlength;
+                            deleteStart += commonlength;
+                        }
+                        // Factor out any common suffixies.
+                        commonlength = diff_commonSuffix(chars2, insertStart, insertEnd,
+                                chars1, deleteStart, deleteEnd);
+                        if (commonlength != 0) {
+                            start -= commonlength;
+                            insertEnd -= commonlength;
+                            deleteEnd -= commonlength;
+                        }
+                    }
+                    if (countDelete != 0 && deleteStart != deleteEnd) {
+                        out[n++] = DELETED;
+                        out[n++] = deleteStart;
+                        out[n++] = deleteEnd;
+                    }
+                    if (countInsert != 0 && insertStart != insertEnd) {
+                        out[n++] = INSERTED;
+                        out[n++] = insertStart;
+                        out[n++] = insertEnd;
+                    }
+                    if (countDelete + countInsert == 0 && prevEqual != -1) {
+                        // Merge this equality with the previous one.
+                        out[prevEqual + 2] = end;
+                    } else {
+                        prevEqual = n;
+                        out[n++] = NOTHING;
+                        out[n++] = start;
+                        out[n++] = end;
+                    }
+                    countDelete = 0;
+                    countInsert = 0;
+                }
+            }
+            if (n > 0 && out[n - 2] == out[n - 1]) {
+                n -= 3;  // Remove the dummy entry at the end.
+            }
+            if (from + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, from + n));
+            }
+            System.arraycopy(out, 0, data, from, n);
+            size = from + n;
+        }
+
+
+        /**
+         * Second pass of diff_cleanupMerge: shifts single edits surrounded on
+         * both sides by equalities sideways to eliminate an equality, and
+         * returns true if any edit was shifted.
+         * e.g: A<ins>BA</ins>C -> <ins>AB</ins>AC
+         */
+        private boolean shiftEdits(int from, char[] chars1, char[] chars2) {
+            boolean changes = false;
+            // Intentionally ignore the first and last element (don't need checking).
+            for (int i = from + 3; i + 3 < size; i += 3) {
+                int prev = i - 3;
+                int next = i + 3;
+                if (data[prev] != NOTHING || data[next] != NOTHING) {
+                    continue;
+                }
+                // This is a single edit surrounded by equalities.
+                char[] chars = data[i] == INSERTED ? chars2 : chars1;
+                int editLength = data[i + 2] - data[i + 1];
+                int prevLength = data[prev + 2] - data[prev + 1];
+                int nextLength = data[next + 2] - data[next + 1];
+                if (editLength >= prevLength && regionMatches(chars, data[i + 2] - prevLength,
+                        chars1, data[prev + 1], prevLength)) {
+                    // Shift the edit over the previous equality.
+                    data[i + 1] -= prevLength;
+                    data[i + 2] -= prevLength;
+                    data[next + 1] -= prevLength;
+                    remove(prev);
+                    changes = true;
+                } else if (editLength >= nextLength && regionMatches(chars, data[i + 1],
+                        chars1, data[next + 1], nextLength)) {
+                    // Shift the edit over the next equality.
+                    data[prev + 2] += nextLength;
+                    data[i + 1] += nextLength;
+                    data[i + 2] += nextLength;
+                    remove(next);
+                    changes = true;
+                }
+            }
+            return changes;
+        }
+
+
+        private void remove(int index) {
+            System.arraycopy(data, index + 3, data, index, size - index - 3);
+            size -= 3;
+        }
+
+
+        private static boolean regionMatches(char[] chars1, int start1,
+                                             char[] chars2, int start2, int length) {
+            for (int i = 0; i < length; i++) {
+                if (chars1[start1 + i] != chars2[start2 + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+
     /**
      * Internal class for returning results from diff_linesToChars().
      * Other less paranoid languages just use a three-element array.
@@ -20,6 +20,8 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A difference represents a addition or a removal of an occurrence from a document.
@@ -36,6 +38,14 @@ public class Difference extends BasicDBObject implements Serializable {
 
     public static final String SNIPPET = "snippet";
 
+    public static final String WORD_COUNT = "word_count";
+
+    public static final String START_INDEX = "start_index";
+
+    public static final String END_INDEX = "end_index";
+
+    public static final String MERGED_WORD_COUNTS = "merged_word_counts";
+
     private static final long serialVersionUID = 1L;
 
 
@@ -48,6 +58,25 @@ public class Difference extends BasicDBObject implements Serializable {
     }
 
 
+    /**
+     * Creates a difference that also carries the word-based position of its
+     * occurrence, and the character-based range that it covers in the
+     * original content of the snapshot it belongs to (the old snapshot for
+     * deletions and the new snapshot for insertions).
+     */
+    public Difference(final DifferenceEvent action,
+                      final String occurrenceText,
+                      final int wordCount,
+                      final int startIndex,
+                      final int endIndex,
+                      final String snippet) {
+        this(action, occurrenceText, snippet);
+        append(WORD_COUNT, wordCount);
+        append(START_INDEX, startIndex);
+        append(END_INDEX, endIndex);
+    }
+
+
     public Difference(DBObject mongoObject) {
         super(mongoObject.toMap());
     }
@@ -77,4 +106,77 @@ public class Difference extends BasicDBObject implements Serializable {
         return getString(SNIPPET);
     }
 
+
+    /**
+     * Returns the word-based position of the occurrence of this difference in
+     * its snapshot, or -1 if this difference was stored without positions.
+     */
+    public int getWordCount() {
+        return getInt(WORD_COUNT, -1);
+    }
+
+
+    /**
+     * Returns the starting, character-based index of this difference in the
+     * original content of its snapshot, or -1 if this difference was stored
+     * without positions.
+     */
+    public int getStartIndex() {
+        return getInt(START_INDEX, -1);
+    }
+
+
+    /**
+     * Returns the ending, character-based index of this difference in the
+     * original content of its snapshot, or -1 if this difference was stored
+     * without positions. If equal occurrences close to each other were merged
+     * into this difference, this is the ending index of the last one.
+     */
+    public int getEndIndex() {
+        return getInt(END_INDEX, -1);
+    }
+
+
+    /**
+     * Returns the word-based positions of every occurrence of this difference
+     * in its snapshot, in order, which are more than one if equal occurrences
+     * close to each other were merged into this difference. Returns an empty
+     * array if this difference was stored without positions.
+     */
+    public int[] getWordCounts() {
+        int wordCount = getWordCount();
+        if (wordCount < 0) {
+            return new int[0];
+        }
+        Object merged = get(MERGED_WORD_COUNTS);
+        if (!(merged instanceof List)) {
+            return new int[]{wordCount};
+        }
+        List<?> mergedList = (List<?>) merged;
+        int[] wordCounts = new int[mergedList.size() + 1];
+        wordCounts[0] = wordCount;
+        for (int i = 0; i < mergedList.size(); i++) {
+            wordCounts[i + 1] = ((Number) mergedList.get(i)).intValue();
+        }
+        return wordCounts;
+    }
+
+
+    /**
+     * Extends this difference with an equal occurrence at the specified
+     * word-based position, until the specified ending index, with the
+     * specified snippet.
+     */
+    @SuppressWarnings("unchecked")
+    void extend(int wordCount, int endIndex, String snippet) {
+        List<Integer> merged = (List<Integer>) get(MERGED_WORD_COUNTS);
+        if (merged == null) {
+            merged = new ArrayList<>();
+            append(MERGED_WORD_COUNTS, merged);
+        }
+        merged.add(wordCount);
+        append(END_INDEX, endIndex);
+        append(SNIPPET, snippet);
+    }
+
 }
@@ -18,17 +18,24 @@ package com.edduarte.vokter.diff;
 
 import com.edduarte.vokter.document.Document;
 import com.edduarte.vokter.document.Occurrence;
-import com.edduarte.vokter.parser.Parser;
-import com.edduarte.vokter.parser.ParserPool;
+import com.edduarte.vokter.similarity.MinHash;
 import com.google.common.base.Stopwatch;
-import it.unimi.dsi.lang.MutableString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
@@ -41,34 +48,96 @@ public class DifferenceDetector implements Callable<List<Difference>> {
 
     private static final int SNIPPET_INDEX_OFFSET = 50;
 
+    /**
+     * The maximum length of the content range that a merged difference can
+     * cover, which bounds the length of its snippet.
+     */
+    private static final int MAX_MERGED_SPAN = 1000;
+
+    /**
+     * The estimated similarity below which the new snapshot is considered to
+     * be a rewrite of the old one, in which case a token-by-token diff would
+     * be both expensive and meaningless.
+     */
+    private static final double REWRITE_THRESHOLD = 0.1;
+
+    /**
+     * The number of region diffs that exhausted their time budget, across
+     * every detection.
+     */
+    private static final AtomicLong timeoutCount = new AtomicLong(0);
+
+    /**
+     * The number of detections where at least one region was diffed with the
+     * unordered fallback, across every detection.
+     */
+    private static final AtomicLong fallbackCount = new AtomicLong(0);
+
+    /**
+     * The number of changed regions that were skipped because they only
+     * reverted to recently seen content, across every detection.
+     */
+    private static final AtomicLong oscillationCount = new AtomicLong(0);
+
     private final Document oldSnapshot;
 
     private final Document newSnapshot;
 
-    private final ParserPool parserPool;
+    /**
+     * The algorithm used to diff both snapshots, or null if it should be
+     * chosen according to their size.
+     */
+    private final DiffAlgorithm algorithm;
+
+
+    public DifferenceDetector(final Document oldSnapshot,
+                              final Document newSnapshot) {
+        this(oldSnapshot, newSnapshot, null);
+    }
 
 
     public DifferenceDetector(final Document oldSnapshot,
                               final Document newSnapshot,
-                              final ParserPool parserPool) {
+                              final DiffAlgorithm algorithm) {
         this.oldSnapshot = oldSnapshot;
         this.newSnapshot = newSnapshot;
-        this.parserPool = parserPool;
+        this.algorithm = algorithm;
     }
 
 
-    private static String getSnippet(Document d, String occurrenceText, int wordCount) {
-        Occurrence occurrence = d.getOccurrence(occurrenceText, wordCount);
-        if (occurrence == null) {
-            return "";
-        }
-        String originalContent = d.getOriginalContent();
+    /**
+     * Returns the number of region diffs that exhausted their time budget and
+     * were replaced by the unordered fallback.
+     */
+    public static long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+
+    /**
+     * Returns the number of detections that used the unordered fallback for
+     * at least one region.
+     */
+    public static long getFallbackCount() {
+        return fallbackCount.get();
+    }
 
-        int snippetStart = occurrence.getStartIndex() - SNIPPET_INDEX_OFFSET;
+
+    /**
+     * Returns the number of changed regions that were skipped because they
+     * only reverted to content seen in recent snapshots.
+     */
+    public static long getOscillationCount() {
+        return oscillationCount.get();
+    }
+
+
+    private static String getSnippet(String originalContent, int startIndex, int endIndex) {
+        int snippetStart = startIndex - SNIPPET_INDEX_OFFSET;
         if (snippetStart < 0) {
             snippetStart = 0;
         }
-        int snippetEnd = occurrence.getEndIndex() + SNIPPET_INDEX_OFFSET;
+        int snippetEnd = endIndex + SNIPPET_INDEX_OFFSET;
         if (snippetEnd > originalContent.length()) {
             snippetEnd = originalContent.length();
         }
@@ -80,90 +149,386 @@ public class DifferenceDetector implements Callable<List<Difference>> {
     public List<Difference> call() {
         Stopwatch sw = Stopwatch.createStarted();
 
-        DiffMatchPatch dmp = new DiffMatchPatch();
-
-        String original = oldSnapshot.getProcessedContent();
-        String revision = newSnapshot.getProcessedContent();
-
-        // TODO: use LSH to determine a similarity index. If distance is above
-        // 0.4, the documents are different enough and a more computational
-        // intensive task (analysing token by token differences).
-
-        LinkedList<DiffMatchPatch.Diff> diffs = dmp.diff_main(original, revision);
-        dmp.diff_cleanupSemantic(diffs);
-
-        Parser parser;
-        try {
-            parser = parserPool.take();
-        } catch (InterruptedException ex) {
-            logger.error(ex.getMessage(), ex);
-            return null;
-        }
-
-        int insertedCountOffset = 0, deletedCountOffset = 0;
-        List<Difference> retrievedDiffs = new ArrayList<>();
-        for (DiffMatchPatch.Diff diff : diffs) {
-            String diffText = diff.text;
-
-            List<Parser.Result> results = parser.parse(new MutableString(diffText));
-            for (Parser.Result result : results) {
-                String snippet;
-                String occurrenceText = result.text.toString();
-                switch (diff.action) {
-                    case inserted: {
-                        int wordNum = insertedCountOffset++;
-                        snippet = getSnippet(newSnapshot, occurrenceText, wordNum);
-                        break;
-                    }
-                    case deleted: {
-                        int wordNum = deletedCountOffset++;
-                        snippet = getSnippet(oldSnapshot, occurrenceText, wordNum);
-                        break;
-                    }
-                    default: {
-                        insertedCountOffset++;
-                        deletedCountOffset++;
-                        continue;
-                    }
-                }
-
-                retrievedDiffs.add(new Difference(
-                        diff.action,
-                        result.text.toString(),
-                        snippet
-                ));
-            }
-            results.clear();
-            results = null;
-        }
-
-        try {
-            parserPool.place(parser);
-        } catch (InterruptedException ex) {
-            logger.error(ex.getMessage(), ex);
-            return null;
-        }
-
-//        ListIterator<MatchedDiff> it = retrievedDiffs.listIterator();
-//        int i = 1;
-//        while (it.hasNext() && i < retrievedDiffs.size()) {
-//            MatchedDiff d1 = it.next();
-//            MatchedDiff d2 = retrievedDiffs.get(i);
-//
-//            if (d1.status == d2.status &&
-//                    d1.keyword.equals(d2.keyword) &&
-//                    d1.endIndex + SNIPPET_INDEX_OFFSET >= d2.startIndex - SNIPPET_INDEX_OFFSET) {
-////                d2.startIndex = d1.startIndex;
-//                it.remove();
-//
-//            } else {
-//                i++;
-//            }
-//        }
+        // the similarity hashes of both snapshots are used to select the
+        // cheapest strategy that still reports every difference: unchanged
+        // snapshots are skipped, as are snapshots whose changes only revert
+        // to recently seen content, rewritten snapshots are compared by their
+        // sets of occurrences, and every other snapshot is diffed token by
+        // token. Snapshots stored without hashes are always diffed.
+        Long oldFingerprint = oldSnapshot.getFingerprint();
+        if (oldFingerprint != null && oldFingerprint.equals(newSnapshot.getFingerprint())) {
+            sw.stop();
+            logger.info("Skipped difference detection for unchanged document " +
+                    "'{}' in {}", newSnapshot.getUrl(), sw.toString());
+            return new ArrayList<>();
+        }
+
+        List<int[]> regions = unmatchedRegions();
+        if (regions.isEmpty()) {
+            sw.stop();
+            logger.info("Skipped difference detection for oscillating document " +
+                    "'{}' in {}", newSnapshot.getUrl(), sw.toString());
+            return new ArrayList<>();
+        }
+
+        List<Difference> retrievedDiffs;
+        int[] oldSignature = oldSnapshot.getSignature();
+        int[] newSignature = newSnapshot.getSignature();
+        double similarity = oldSignature != null && newSignature != null
+                ? MinHash.similarity(oldSignature, newSignature)
+                : 1;
+        if (similarity < REWRITE_THRESHOLD) {
+            retrievedDiffs = detectRewrite();
+            sw.stop();
+            logger.info("Completed difference detection for rewritten document " +
+                            "'{}' (similarity {}) in {}",
+                    newSnapshot.getUrl(), similarity, sw.toString());
+            return retrievedDiffs;
+        }
 
+        retrievedDiffs = detectTokenDiffs(regions);
         sw.stop();
         logger.info("Completed difference detection for document '{}' in {}",
                 newSnapshot.getUrl(), sw.toString());
         return retrievedDiffs;
     }
+
+
+    /**
+     * Reports the occurrences of the old snapshot that are absent from the new
+     * one as deleted, and the occurrences of the new snapshot that are absent
+     * from the old one as inserted, each with the snippet of its first
+     * position, without aligning both snapshots.
+     */
+    private List<Difference> detectRewrite() {
+        Map<String, Occurrence> oldOccurrences = firstOccurrences(oldSnapshot);
+        Map<String, Occurrence> newOccurrences = firstOccurrences(newSnapshot);
+
+        DifferenceCollector collector = new DifferenceCollector(
+                oldSnapshot.getOriginalContent(), newSnapshot.getOriginalContent());
+        oldOccurrences.forEach((text, o) -> {
+            if (!newOccurrences.containsKey(text)) {
+                collector.add(DifferenceEvent.deleted, o);
+            }
+        });
+        newOccurrences.forEach((text, o) -> {
+            if (!oldOccurrences.containsKey(text)) {
+                collector.add(DifferenceEvent.inserted, o);
+            }
+        });
+        return collector.differences;
+    }
+
+
+    private static Map<String, Occurrence> firstOccurrences(Document d) {
+        try (Stream<Occurrence> occurrences = d.getOccurrences()) {
+            return occurrences.collect(Collectors.toMap(
+                    Occurrence::toString,
+                    o -> o,
+                    (o1, o2) -> o1.getWordCount() <= o2.getWordCount() ? o1 : o2,
+                    LinkedHashMap::new
+            ));
+        }
+    }
+
+
+    /**
+     * Matches the chunks of both snapshots by their hashes, and aligns the
+     * occurrences of every unmatched region token by token, reporting every
+     * occurrence in a deleted or inserted range with the snippet of its own
+     * position in the original content. Only the occurrences of unmatched
+     * regions are loaded and diffed.
+     */
+    private List<Difference> detectTokenDiffs(List<int[]> regions) {
+        DifferenceCollector collector = new DifferenceCollector(
+                oldSnapshot.getOriginalContent(), newSnapshot.getOriginalContent());
+        boolean usedFallback = false;
+        for (int[] region : regions) {
+            usedFallback |= !detectTokenDiffs(region, collector);
+        }
+        if (usedFallback) {
+            fallbackCount.incrementAndGet();
+        }
+        return collector.differences;
+    }
+
+    /**
+     * Diffs the occurrences of both snapshots within the specified region,
+     * given as {oldFrom, oldTo, newFrom, newTo} word counts. If the diff
+     * exhausts its time budget, the occurrences are compared without their
+     * order instead, and false is returned.
+     */
+    private boolean detectTokenDiffs(int[] region, DifferenceCollector collector) {
+        List<Occurrence> oldOccurrences = orderedOccurrences(oldSnapshot, region[0], region[1]);
+        List<Occurrence> newOccurrences = orderedOccurrences(newSnapshot, region[2], region[3]);
+
+        // equal occurrence texts are mapped to equal ids, so that the diff
+        // engine only compares integers
+        Map<String, Integer> ids = new HashMap<>();
+        int[] oldTokens = toTokenIds(oldOccurrences, ids);
+        int[] newTokens = toTokenIds(newOccurrences, ids);
+        ids.clear();
+
+        DiffAlgorithm diffAlgorithm = algorithm != null
+                ? algorithm
+                : DiffAlgorithm.forSize(oldTokens.length, newTokens.length);
+        long budget = DiffBudget.millisFor(oldTokens.length + newTokens.length);
+        List<Edit> edits = diffAlgorithm.diff(oldTokens, newTokens,
+                System.currentTimeMillis() + budget);
+        boolean isComplete = edits != null;
+        if (!isComplete) {
+            timeoutCount.incrementAndGet();
+            logger.warn("Diff of {} and {} tokens of document '{}' exceeded its " +
+                            "budget of {} ms, falling back to an unordered comparison.",
+                    oldTokens.length, newTokens.length, newSnapshot.getUrl(), budget);
+            edits = unorderedEdits(oldTokens, newTokens);
+        }
+
+        for (Edit edit : edits) {
+            List<Occurrence> occurrences = edit.getAction() == DifferenceEvent.inserted
+                    ? newOccurrences
+                    : oldOccurrences;
+            for (int i = edit.getStart(); i < edit.getEnd(); i++) {
+                collector.add(edit.getAction(), occurrences.get(i));
+            }
+        }
+        return isComplete;
+    }
+
+
+    /**
+     * Compares both sequences as multisets of tokens, in linear time, and
+     * returns the surplus occurrences of each token in the first sequence as
+     * deleted and in the second sequence as inserted. Unlike a coarse diff
+     * that deletes and inserts everything, tokens that are present in both
+     * sequences are not reported, although moved tokens are not detected.
+     */
+    private static List<Edit> unorderedEdits(int[] a, int[] b) {
+        int[] counts = new int[EditScript.vocabularySize(a, b)];
+        for (int t : b) {
+            counts[t]++;
+        }
+        List<Edit> edits = new ArrayList<>();
+        for (int i = 0; i < a.length; i++) {
+            if (counts[a[i]] > 0) {
+                counts[a[i]]--;
+            } else {
+                EditScript.append(edits, DifferenceEvent.deleted, i, i + 1);
+            }
+        }
+
+        // the counts left are the surplus of each token in the second
+        // sequence, which are reported on its first occurrences
+        for (int j = 0; j < b.length; j++) {
+            if (counts[b[j]] > 0) {
+                counts[b[j]]--;
+                EditScript.append(edits, DifferenceEvent.inserted, j, j + 1);
+            }
+        }
+        return edits;
+    }
+
+
+    /**
+     * Aligns the chunk hashes of both snapshots and returns the regions
+     * between matched chunks, in order, as {oldFrom, oldTo, newFrom, newTo}
+     * word counts. If either snapshot was stored without chunks, both
+     * snapshots are returned as a single region.
+     * <p>
+     * Regions where every new chunk was already seen in one of the snapshots
+     * that preceded the old one are left out, since they only revert to
+     * recent content, like rotating ads, carousels or A/B variants that
+     * alternate between a few versions.
+     */
+    private List<int[]> unmatchedRegions() {
+        List<int[]> regions = new ArrayList<>();
+        int[] oldLengths = oldSnapshot.getChunkLengths();
+        int[] newLengths = newSnapshot.getChunkLengths();
+        long[] oldHashes = oldSnapshot.getChunkHashes();
+        long[] newHashes = newSnapshot.getChunkHashes();
+        if (oldLengths == null || newLengths == null || oldHashes == null || newHashes == null) {
+            regions.add(new int[]{0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE});
+            return regions;
+        }
+
+        // there are a few dozen tokens per chunk, so the chunks of even the
+        // largest snapshots are cheap to diff
+        Map<Long, Integer> ids = new HashMap<>();
+        int[] oldChunks = toChunkIds(oldHashes, ids);
+        int[] newChunks = toChunkIds(newHashes, ids);
+        List<Edit> edits = new MyersDiff().diff(oldChunks, newChunks);
+
+        // collects the regions as chunk indexes
+        int i = 0, j = 0;
+        int[] region = null;
+        for (Edit edit : edits) {
+            boolean isInserted = edit.getAction() == DifferenceEvent.inserted;
+            int matched = edit.getStart() - (isInserted ? j : i);
+            if (matched > 0 || region == null) {
+                // the edit is separated from the previous one by matched
+                // chunks, so it starts a new region
+                i += matched;
+                j += matched;
+                region = new int[]{i, i, j, j};
+                regions.add(region);
+            }
+            if (isInserted) {
+                j = edit.getEnd();
+                region[3] = j;
+            } else {
+                i = edit.getEnd();
+                region[1] = i;
+            }
+        }
+
+        Set<Long> history = regions.isEmpty()
+                ? Collections.emptySet()
+                : oldSnapshot.getChunkHistory();
+        int[] oldOffsets = wordCountOffsets(oldLengths);
+        int[] newOffsets = wordCountOffsets(newLengths);
+        Iterator<int[]> it = regions.iterator();
+        while (it.hasNext()) {
+            int[] r = it.next();
+            if (isOscillating(newHashes, r[2], r[3], history)) {
+                oscillationCount.incrementAndGet();
+                it.remove();
+                continue;
+            }
+            r[0] = oldOffsets[r[0]];
+            r[1] = oldOffsets[r[1]];
+            r[2] = newOffsets[r[2]];
+            r[3] = newOffsets[r[3]];
+        }
+        return regions;
+    }
+
+
+    /**
+     * Checks if the specified range of new chunks is not empty and every chunk
+     * in it was seen in the specified history.
+     */
+    private static boolean isOscillating(long[] newHashes, int from, int to, Set<Long> history) {
+        if (from == to) {
+            return false;
+        }
+        for (int c = from; c < to; c++) {
+            if (!history.contains(newHashes[c])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static int[] toChunkIds(long[] hashes, Map<Long, Integer> ids) {
+        int[] chunks = new int[hashes.length];
+        for (int i = 0; i < chunks.length; i++) {
+            Integer id = ids.get(hashes[i]);
+            if (id == null) {
+                id = ids.size();
+                ids.put(hashes[i], id);
+            }
+            chunks[i] = id;
+        }
+        return chunks;
+    }
+
+
+    /**
+     * Returns the word count at which each chunk starts, followed by the total
+     * number of words.
+     */
+    private static int[] wordCountOffsets(int[] chunkLengths) {
+        int[] offsets = new int[chunkLengths.length + 1];
+        for (int c = 0; c < chunkLengths.length; c++) {
+            offsets[c + 1] = offsets[c] + chunkLengths[c];
+        }
+        return offsets;
+    }
+
+
+    private static List<Occurrence> orderedOccurrences(Document d, int fromWordCount, int toWordCount) {
+        if (fromWordCount >= toWordCount) {
+            return new ArrayList<>();
+        }
+        try (Stream<Occurrence> occurrences = d.getOccurrences(fromWordCount, toWordCount)) {
+            return occurrences
+                    .sorted(Comparator.comparingInt(Occurrence::getWordCount))
+                    .collect(Collectors.toList());
+        }
+    }
+
+
+    private static int[] toTokenIds(List<Occurrence> occurrences, Map<String, Integer> ids) {
+        int[] tokens = new int[occurrences.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            Integer id = ids.get(occurrences.get(i).toString());
+            if (id == null) {
+                id = ids.size();
+                ids.put(occurrences.get(i).toString(), id);
+            }
+            tokens[i] = id;
+        }
+        return tokens;
+    }
+
+
+    /**
+     * Collects the differences of a detection, cutting their snippets directly
+     * from the original contents of both snapshots. An occurrence whose
+     * snippet overlaps the snippet of the last reported occurrence with the
+     * same text and action is merged into that difference, which is extended
+     * to cover both, instead of being reported again. Once a difference would
+     * cover more than {@link #MAX_MERGED_SPAN} characters, the occurrence
+     * starts a new difference instead.
+     */
+    private static final class DifferenceCollector {
+
+        private final String oldContent;
+
+        private final String newContent;
+
+        private final List<Difference> differences;
+
+        private final Map<String, Difference> lastDeleted;
+
+        private final Map<String, Difference> lastInserted;
+
+
+        private DifferenceCollector(final String oldContent, final String newContent) {
+            this.oldContent = oldContent;
+            this.newContent = newContent;
+            this.differences = new ArrayList<>();
+            this.lastDeleted = new HashMap<>();
+            this.lastInserted = new HashMap<>();
+        }
+
+
+        private void add(DifferenceEvent action, Occurrence o) {
+            boolean isInserted = action == DifferenceEvent.inserted;
+            String content = isInserted ? newContent : oldContent;
+            Map<String, Difference> lastReported = isInserted ? lastInserted : lastDeleted;
+            String text = o.toString();
+
+            Difference last = lastReported.get(text);
+            if (last != null && o.getStartIndex() >= last.getStartIndex() &&
+                    o.getStartIndex() - last.getEndIndex() <= 2 * SNIPPET_INDEX_OFFSET &&
+                    o.getEndIndex() - last.getStartIndex() <= MAX_MERGED_SPAN) {
+                last.extend(o.getWordCount(), o.getEndIndex(),
+                        getSnippet(content, last.getStartIndex(), o.getEndIndex()));
+                return;
+            }
+
+            Difference d = new Difference(
+                    action,
+                    text,
+                    o.getWordCount(),
+                    o.getStartIndex(),
+                    o.getEndIndex(),
+                    getSnippet(content, o.getStartIndex(), o.getEndIndex())
+            );
+            differences.add(d);
+            lastReported.put(text, d);
+        }
+    }
 }
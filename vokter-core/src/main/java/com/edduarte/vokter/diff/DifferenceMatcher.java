@@ -16,17 +16,21 @@
 
 package com.edduarte.vokter.diff;
 
-import com.aliasi.util.Pair;
 import com.edduarte.vokter.keyword.Keyword;
 import com.google.common.base.Stopwatch;
-import com.google.common.hash.BloomFilter;
-import org.eclipse.jetty.util.ConcurrentHashSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 /**
  * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
@@ -37,9 +41,28 @@ public class DifferenceMatcher implements Callable<Set<DifferenceMatcher.Result>
 
     private static final Logger logger = LoggerFactory.getLogger(DifferenceMatcher.class);
 
-    private final List<Keyword> keywords;
+    /**
+     * The number of differences after which the next batch of differences
+     * starts. Batches are scanned in parallel, and preferably end between
+     * runs of differences with different actions, so that no run is split.
+     */
+    static final int BATCH_SIZE = 8192;
 
-    private final List<Difference> differences;
+    /**
+     * The number of differences after which a batch ends even within a run.
+     * The batch that continues the run is only scanned once the batch before
+     * it is, starting from the state of the run where that batch ended.
+     */
+    static final int MAX_BATCH_SIZE = 2 * BATCH_SIZE;
+
+    /**
+     * The maximum number of batches that are read but not yet scanned.
+     */
+    private static final int MAX_PENDING_BATCHES = Runtime.getRuntime().availableProcessors();
+
+    private final KeywordAutomaton automaton;
+
+    private final Stream<Difference> differences;
 
     private final boolean ignoreAdded;
 
@@ -50,7 +73,33 @@ public class DifferenceMatcher implements Callable<Set<DifferenceMatcher.Result>
                              final List<Difference> differences,
                              final boolean ignoreAdded,
                              final boolean ignoreRemoved) {
-        this.keywords = keywords;
+        this(keywords, differences.stream(), ignoreAdded, ignoreRemoved);
+    }
+
+
+    /**
+     * Instantiates a matcher that consumes the specified differences
+     * incrementally, so that only a few batches of differences at a time need
+     * to be held in memory. The stream is closed once matching ends.
+     */
+    public DifferenceMatcher(final List<Keyword> keywords,
+                             final Stream<Difference> differences,
+                             final boolean ignoreAdded,
+                             final boolean ignoreRemoved) {
+        this(KeywordAutomaton.compile(keywords), differences, ignoreAdded, ignoreRemoved);
+    }
+
+
+    /**
+     * Instantiates a matcher of the keywords compiled into the specified
+     * automaton, which can be shared by every subscriber of a document, so
+     * that the differences are scanned once for all of their keywords.
+     */
+    public DifferenceMatcher(final KeywordAutomaton automaton,
+                             final Stream<Difference> differences,
+                             final boolean ignoreAdded,
+                             final boolean ignoreRemoved) {
+        this.automaton = automaton;
         this.differences = differences;
         this.ignoreAdded = ignoreAdded;
         this.ignoreRemoved = ignoreRemoved;
@@ -61,50 +110,115 @@ public class DifferenceMatcher implements Callable<Set<DifferenceMatcher.Result>
     public Set<DifferenceMatcher.Result> call() {
         Stopwatch sw = Stopwatch.createStarted();
 
-        Set<Result> matchedDiffs = new ConcurrentHashSet<>();
+        Set<Result> matchedDiffs = new HashSet<>();
+
+        // every batch but the last one is scanned in the background, so
+        // inputs that fit in a single batch are scanned by this thread alone
+        KeywordAutomaton.Scan phraseScan = automaton.newScan();
+        Deque<CompletableFuture<Batch>> pending = new ArrayDeque<>();
+        List<Difference> batch = new ArrayList<>();
+        CompletableFuture<Batch> previous = null;
+        boolean continuesRun = false;
+        try (Stream<Difference> stream = differences) {
+            Iterator<Difference> it = stream.iterator();
+            while (it.hasNext()) {
+                Difference diff = it.next();
+                boolean endsRun = !batch.isEmpty() &&
+                        diff.getAction() != batch.get(batch.size() - 1).getAction();
+                if ((batch.size() >= BATCH_SIZE && endsRun) ||
+                        batch.size() >= MAX_BATCH_SIZE) {
+                    List<Difference> fullBatch = batch;
+                    previous = continuesRun
+                            ? previous.thenApplyAsync(b -> scan(fullBatch, b))
+                            : CompletableFuture.supplyAsync(() -> scan(fullBatch, null));
+                    pending.add(previous);
+                    continuesRun = !endsRun;
+                    batch = new ArrayList<>();
+                    if (pending.size() > MAX_PENDING_BATCHES) {
+                        pending.poll().join().collect(matchedDiffs, phraseScan);
+                    }
+                }
+                batch.add(diff);
+            }
+        }
+        scan(batch, continuesRun ? previous.join() : null).collect(matchedDiffs, phraseScan);
+        while (!pending.isEmpty()) {
+            pending.poll().join().collect(matchedDiffs, phraseScan);
+        }
 
-        DifferenceEvent lastAction = DifferenceEvent.nothing;
-        BloomFilter<String> lastBloomFilter = null;
-        for (Difference r : differences) {
-            if (lastAction == DifferenceEvent.nothing || r.getAction() != lastAction) {
-                // reset the bloom filter being used
-                lastBloomFilter = BloomFilter
-                        .create((from, into) -> into.putUnencodedChars(from), 10);
-                lastAction = r.getAction();
+        // phrases are matched by the positions of their words, once every
+        // difference was scanned
+        for (KeywordAutomaton.Match m : phraseScan.finish()) {
+            if (isReported(m.difference.getAction())) {
+                matchedDiffs.add(new Result(m.difference.getAction(), m.keyword,
+                        m.difference.getSnippet()));
             }
-            BloomFilter<String> bloomFilter = lastBloomFilter;
-            bloomFilter.put(r.getOccurrenceText());
-
-            // check if AT LEAST ONE of the keywords has ALL of its words
-            // contained in the diff text
-            keywords.parallelStream()
-                    .unordered()
-                    .filter(kw -> kw.textStream().allMatch(bloomFilter::mightContain))
-                    .map(kw -> new Pair<>(r, kw))
-                    .filter((pair) -> pair.b().textStream().anyMatch(pair.a().getOccurrenceText()::equals))
-                    .map((pair) -> {
-                        Difference diff = pair.a();
-                        Keyword keyword = pair.b();
-                        DifferenceEvent i = diff.getAction();
-                        if (i == DifferenceEvent.inserted && !ignoreAdded) {
-                            return new Result(diff.getAction(), keyword, diff.getSnippet());
-
-                        } else if (i == DifferenceEvent.deleted && !ignoreRemoved) {
-                            return new Result(diff.getAction(), keyword, diff.getSnippet());
-                        }
-                        return null;
-                    })
-                    .filter(diff -> diff != null)
-                    .forEach(matchedDiffs::add);
         }
 
         sw.stop();
-        logger.info("Completed difference matching for keywords '{}' in {}",
-                keywords.toString(), sw.toString());
+        logger.info("Completed difference matching for {} keywords in {}",
+                automaton.size(), sw.toString());
         return matchedDiffs;
     }
 
 
+    /**
+     * Scans the specified batch of differences, continuing the run where the
+     * specified previous batch ended, if any.
+     */
+    private Batch scan(List<Difference> differences, Batch previous) {
+        KeywordAutomaton.Scan scan = automaton.newScan();
+        if (previous != null) {
+            scan.continueRun(previous.scan);
+        }
+        List<Result> results = new ArrayList<>();
+        for (Difference diff : differences) {
+
+            // the automaton returns the keywords that have ALL of their
+            // words contained in the current run of differences with the
+            // same action, one of which is the text of this difference
+            List<Keyword> matchedKeywords = scan.next(diff);
+            if (!matchedKeywords.isEmpty() && isReported(diff.getAction())) {
+                for (Keyword keyword : matchedKeywords) {
+                    results.add(new Result(diff.getAction(), keyword, diff.getSnippet()));
+                }
+            }
+        }
+        return new Batch(scan, results);
+    }
+
+
+    private boolean isReported(DifferenceEvent action) {
+        return (action == DifferenceEvent.inserted && !ignoreAdded) ||
+                (action == DifferenceEvent.deleted && !ignoreRemoved);
+    }
+
+
+    /**
+     * The results of scanning a batch of differences, along with the scan
+     * itself, whose phrase positions are only matched once every batch is
+     * scanned.
+     */
+    private static final class Batch {
+
+        private final KeywordAutomaton.Scan scan;
+
+        private final List<Result> results;
+
+
+        private Batch(final KeywordAutomaton.Scan scan, final List<Result> results) {
+            this.scan = scan;
+            this.results = results;
+        }
+
+
+        private void collect(Set<Result> matchedDiffs, KeywordAutomaton.Scan phraseScan) {
+            matchedDiffs.addAll(results);
+            phraseScan.addPositions(scan);
+        }
+    }
+
+
     public static class Result {
 
         /**
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.diff;
+
+/**
+ * A contiguous range of tokens that was inserted into or deleted from a
+ * document. Inserted ranges are positioned in the newer snapshot, while
+ * deleted ranges are positioned in the older snapshot.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public final class Edit {
+
+    private final DifferenceEvent action;
+
+    private final int start;
+
+    private int end;
+
+
+    public Edit(final DifferenceEvent action, final int start, final int end) {
+        this.action = action;
+        this.start = start;
+        this.end = end;
+    }
+
+
+    public DifferenceEvent getAction() {
+        return action;
+    }
+
+
+    /**
+     * Returns the index of the first token of this range.
+     */
+    public int getStart() {
+        return start;
+    }
+
+
+    /**
+     * Returns the index after the last token of this range.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+
+    /**
+     * Extends this range with the specified range if both have the same action
+     * and are contiguous, returning true if it was extended.
+     */
+    boolean extend(DifferenceEvent action, int start, int end) {
+        if (this.action == action && this.end == start) {
+            this.end = end;
+            return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Edit that = (Edit) o;
+        return action == that.action && start == that.start && end == that.end;
+    }
+
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * action.hashCode() + start) + end;
+    }
+
+
+    @Override
+    public String toString() {
+        return action + "[" + start + ", " + end + ")";
+    }
+}
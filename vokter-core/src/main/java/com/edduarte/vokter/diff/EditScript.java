@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.diff;
+
+import java.util.List;
+
+/**
+ * Utility methods shared by the {@link DiffAlgorithm} implementations.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+final class EditScript {
+
+    private EditScript() {
+    }
+
+
+    /**
+     * Appends the specified range to the edit script, merging it with the
+     * last range if both have the same action and are contiguous.
+     */
+    static void append(List<Edit> edits, DifferenceEvent action, int start, int end) {
+        if (start == end) {
+            return;
+        }
+        if (!edits.isEmpty() && edits.get(edits.size() - 1).extend(action, start, end)) {
+            return;
+        }
+        edits.add(new Edit(action, start, end));
+    }
+
+
+    /**
+     * Returns the number of distinct ids that can occur in both sequences,
+     * which is used to size token-indexed tables.
+     */
+    static int vocabularySize(int[] a, int[] b) {
+        int max = -1;
+        for (int t : a) {
+            max = Math.max(max, t);
+        }
+        for (int t : b) {
+            max = Math.max(max, t);
+        }
+        return max + 1;
+    }
+}
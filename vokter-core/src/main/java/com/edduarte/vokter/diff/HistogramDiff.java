@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.diff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Token-level implementation of the histogram difference algorithm, an
+ * extension of the patience algorithm that also supports low-occurrence
+ * tokens as anchors. Each range is split at the longest common region that
+ * contains the least frequent tokens of the first sequence, and both sides of
+ * that region are diffed recursively. Ranges where every common token occurs
+ * more than {@link #MAX_CHAIN_LENGTH} times are diffed with {@link MyersDiff}.
+ * <p>
+ * Since the cost of each split is bounded by the chain length, this algorithm
+ * is roughly linear on large documents, and reports blocks of content that
+ * were moved around as whole blocks.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class HistogramDiff implements DiffAlgorithm {
+
+    /**
+     * The maximum number of occurrences of a token in the first sequence for
+     * it to be considered as an anchor.
+     */
+    private static final int MAX_CHAIN_LENGTH = 64;
+
+
+    @Override
+    public List<Edit> diff(int[] a, int[] b, long deadline) {
+        List<Edit> edits = new ArrayList<>();
+        return new Run(a, b, deadline).diff(0, a.length, 0, b.length, edits) ? edits : null;
+    }
+
+
+    /**
+     * The state of a single comparison, with token-indexed tables that are
+     * allocated once and reset after each range is processed.
+     */
+    private static final class Run {
+
+        private final int[] a;
+
+        private final int[] b;
+
+        private final long deadline;
+
+        /**
+         * The number of occurrences of each token in the current range of the
+         * first sequence.
+         */
+        private final int[] counts;
+
+        /**
+         * The first occurrence of each token in the current range of the
+         * first sequence.
+         */
+        private final int[] heads;
+
+        /**
+         * The next occurrence of the token at each position of the first
+         * sequence, or -1 if it is the last one in the current range.
+         */
+        private final int[] next;
+
+
+        private Run(int[] a, int[] b, long deadline) {
+            this.a = a;
+            this.b = b;
+            this.deadline = deadline;
+            int vocabularySize = EditScript.vocabularySize(a, b);
+            this.counts = new int[vocabularySize];
+            this.heads = new int[vocabularySize];
+            this.next = new int[a.length];
+            Arrays.fill(heads, -1);
+        }
+
+
+        /**
+         * Appends the edits between the specified ranges of both sequences,
+         * and returns false if the deadline passed before they were found.
+         */
+        private boolean diff(int aStart, int aEnd, int bStart, int bEnd, List<Edit> edits) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            // trims the common prefix and suffix
+            while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+                aStart++;
+                bStart++;
+            }
+            while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+                aEnd--;
+                bEnd--;
+            }
+            if (aStart == aEnd || bStart == bEnd) {
+                EditScript.append(edits, DifferenceEvent.deleted, aStart, aEnd);
+                EditScript.append(edits, DifferenceEvent.inserted, bStart, bEnd);
+                return true;
+            }
+
+            // builds the histogram of the first range, with chains of
+            // occurrences in ascending order
+            for (int i = aEnd - 1; i >= aStart; i--) {
+                int t = a[i];
+                next[i] = heads[t];
+                heads[t] = i;
+                counts[t]++;
+            }
+
+            int bestCount = MAX_CHAIN_LENGTH + 1;
+            int bestAStart = -1, bestAEnd = -1, bestBStart = -1, bestBEnd = -1;
+            for (int j = bStart; j < bEnd; ) {
+                int t = b[j];
+                int nextJ = j + 1;
+                if (counts[t] > 0 && counts[t] <= bestCount) {
+                    for (int i = heads[t]; i != -1; i = next[i]) {
+                        int regionCount = counts[t];
+                        int as = i, bs = j;
+                        while (as > aStart && bs > bStart && a[as - 1] == b[bs - 1]) {
+                            as--;
+                            bs--;
+                            regionCount = Math.min(regionCount, counts[a[as]]);
+                        }
+                        int ae = i + 1, be = j + 1;
+                        while (ae < aEnd && be < bEnd && a[ae] == b[be]) {
+                            regionCount = Math.min(regionCount, counts[a[ae]]);
+                            ae++;
+                            be++;
+                        }
+                        if (regionCount < bestCount
+                                || (regionCount == bestCount && ae - as > bestAEnd - bestAStart)) {
+                            bestCount = regionCount;
+                            bestAStart = as;
+                            bestAEnd = ae;
+                            bestBStart = bs;
+                            bestBEnd = be;
+                        }
+                        nextJ = Math.max(nextJ, be);
+                    }
+                }
+                j = nextJ;
+            }
+
+            for (int i = aStart; i < aEnd; i++) {
+                int t = a[i];
+                counts[t] = 0;
+                heads[t] = -1;
+            }
+
+            if (bestAStart == -1) {
+                return MyersDiff.diff(a, aStart, aEnd, b, bStart, bEnd, deadline, edits);
+            }
+            return diff(aStart, bestAStart, bStart, bestBStart, edits)
+                    && diff(bestAEnd, aEnd, bestBEnd, bEnd, edits);
+        }
+    }
+}
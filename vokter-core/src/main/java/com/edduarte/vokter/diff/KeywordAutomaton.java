@@ -0,0 +1,653 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.edduarte.vokter.diff;
+
+import com.edduarte.vokter.keyword.Keyword;
+import com.edduarte.vokter.keyword.LevenshteinAutomaton;
+import com.edduarte.vokter.keyword.PatternAutomaton;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * A set of keywords compiled into a single automaton over term ids, so that
+ * the differences of a document can be matched against every keyword of
+ * every subscriber of that document in a single scan.
+ * <p>
+ * Each distinct keyword term is assigned an id, and each id maps to the
+ * keywords that contain it. A keyword matches a difference when the text of
+ * the difference is one of its terms and every one of its terms occurred in
+ * the current run of consecutive differences with the same action, so the
+ * state of a scan is the number of distinct terms of each keyword seen in
+ * the current run.
+ * <p>
+ * Phrases are matched by position instead: the scan collects the word
+ * counts of the differences of phrase terms (including the ones of equal
+ * occurrences merged into a single difference), and once it ends, each
+ * phrase is matched with a single merge pass over the position lists of its
+ * terms, for each action.
+ * <p>
+ * Fuzzy terms, which match texts within a number of edits of them, have
+ * their own ids, and the ids of each difference text are the id of the
+ * equal term plus the ids of the fuzzy terms whose Levenshtein automata
+ * accept it. Since difference texts repeat often, these are computed once
+ * per distinct text on each scan. Likewise, the patterns of every keyword
+ * are combined into a single automaton, which finds the ids of the patterns
+ * that match a text with a single pass over it.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public final class KeywordAutomaton {
+
+    private final Keyword[] keywords;
+
+    private final Map<String, Integer> termIds;
+
+    /**
+     * The postings of each term id, where each posting is an index of a
+     * (keyword, term) pair of a keyword that is not a phrase. The postings
+     * of each keyword are contiguous.
+     */
+    private final int[][] postings;
+
+    /**
+     * The keyword of each posting.
+     */
+    private final int[] postingKeywords;
+
+    /**
+     * The number of distinct terms of each keyword that is not a phrase, or
+     * 0 for phrases.
+     */
+    private final int[] termCounts;
+
+    /**
+     * The first posting of each keyword.
+     */
+    private final int[] firstPostings;
+
+    /**
+     * The term ids of each phrase, in order, or null for keywords that are
+     * not phrases.
+     */
+    private final int[][] phrases;
+
+    /**
+     * Flags the term ids whose positions must be collected for phrases.
+     */
+    private final boolean[] phraseTerms;
+
+    /**
+     * The ids of the fuzzy terms, and the automaton of each one of them.
+     */
+    private final int[] fuzzyIds;
+
+    private final LevenshteinAutomaton[] fuzzyAutomata;
+
+    /**
+     * The ids of the pattern terms, in the order of their patterns in the
+     * combined pattern automaton, or null if there are no pattern terms.
+     */
+    private final int[] patternIds;
+
+    private final PatternAutomaton.Union patterns;
+
+
+    private KeywordAutomaton(final Keyword[] keywords,
+                             final Map<String, Integer> termIds,
+                             final int[][] postings,
+                             final int[] postingKeywords,
+                             final int[] termCounts,
+                             final int[][] phrases,
+                             final Map<Integer, LevenshteinAutomaton> fuzzyTerms,
+                             final Map<Integer, PatternAutomaton> patternTerms) {
+        this.keywords = keywords;
+        this.termIds = termIds;
+        this.postings = postings;
+        this.postingKeywords = postingKeywords;
+        this.termCounts = termCounts;
+        this.phrases = phrases;
+        this.fuzzyIds = fuzzyTerms.keySet().stream().mapToInt(i -> i).toArray();
+        this.fuzzyAutomata = new LevenshteinAutomaton[fuzzyIds.length];
+        for (int i = 0; i < fuzzyIds.length; i++) {
+            fuzzyAutomata[i] = fuzzyTerms.get(fuzzyIds[i]);
+        }
+        if (patternTerms.isEmpty()) {
+            this.patternIds = null;
+            this.patterns = null;
+        } else {
+            this.patternIds = patternTerms.keySet().stream().mapToInt(i -> i).toArray();
+            this.patterns = PatternAutomaton.union(Arrays.stream(patternIds)
+                    .mapToObj(patternTerms::get)
+                    .collect(Collectors.toList()));
+        }
+        this.firstPostings = new int[keywords.length];
+        for (int k = 1; k < keywords.length; k++) {
+            firstPostings[k] = firstPostings[k - 1] + termCounts[k - 1];
+        }
+        this.phraseTerms = new boolean[termIds.size()];
+        for (int[] phrase : phrases) {
+            if (phrase != null) {
+                for (int id : phrase) {
+                    phraseTerms[id] = true;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Compiles the specified keywords into an automaton. Equal keywords are
+     * compiled only once.
+     */
+    public static KeywordAutomaton compile(Collection<Keyword> keywords) {
+        Keyword[] distinct = new LinkedHashSet<>(keywords).toArray(new Keyword[0]);
+        Map<String, Integer> termIds = new HashMap<>();
+        List<List<Integer>> termPostings = new ArrayList<>();
+        int[] termCounts = new int[distinct.length];
+        int[][] phrases = new int[distinct.length][];
+        List<Integer> postingKeywords = new ArrayList<>();
+        Map<Integer, LevenshteinAutomaton> fuzzyTerms = new HashMap<>();
+        Map<Integer, PatternAutomaton> patternTerms = new HashMap<>();
+
+        for (int k = 0; k < distinct.length; k++) {
+            Keyword keyword = distinct[k];
+            if (keyword.isPhrase()) {
+                List<String> texts = keyword.getTexts();
+                phrases[k] = new int[texts.size()];
+                for (int i = 0; i < phrases[k].length; i++) {
+                    phrases[k][i] = assignId(keyword, texts.get(i), termIds, termPostings,
+                            fuzzyTerms, patternTerms);
+                }
+                continue;
+            }
+
+            Set<String> terms = keyword.textStream()
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+            termCounts[k] = terms.size();
+            for (String term : terms) {
+                int id = assignId(keyword, term, termIds, termPostings, fuzzyTerms, patternTerms);
+                termPostings.get(id).add(postingKeywords.size());
+                postingKeywords.add(k);
+            }
+        }
+
+        int[][] postings = new int[termPostings.size()][];
+        for (int t = 0; t < postings.length; t++) {
+            postings[t] = termPostings.get(t).stream().mapToInt(i -> i).toArray();
+        }
+        return new KeywordAutomaton(distinct, termIds, postings,
+                postingKeywords.stream().mapToInt(i -> i).toArray(), termCounts, phrases,
+                fuzzyTerms, patternTerms);
+    }
+
+
+    /**
+     * Returns the id of the specified term of the specified keyword. Fuzzy
+     * terms are identified by the term and the number of edits, and pattern
+     * terms by their slash-delimited pattern, which never collide with exact
+     * terms since these have no '~' or '/' characters.
+     */
+    private static int assignId(Keyword keyword,
+                                String term,
+                                Map<String, Integer> termIds,
+                                List<List<Integer>> termPostings,
+                                Map<Integer, LevenshteinAutomaton> fuzzyTerms,
+                                Map<Integer, PatternAutomaton> patternTerms) {
+        LevenshteinAutomaton automaton = keyword.getAutomaton(term);
+        PatternAutomaton pattern = keyword.getPattern(term);
+        String key = automaton != null ? term + "~" + automaton.getMaxEdits()
+                : pattern != null ? pattern.toString()
+                : term;
+        Integer id = termIds.get(key);
+        if (id == null) {
+            id = termIds.size();
+            termIds.put(key, id);
+            termPostings.add(new ArrayList<>(1));
+            if (automaton != null) {
+                fuzzyTerms.put(id, automaton);
+            } else if (pattern != null) {
+                patternTerms.put(id, pattern);
+            }
+        }
+        return id;
+    }
+
+
+    /**
+     * Returns the number of distinct keywords of this automaton.
+     */
+    public int size() {
+        return keywords.length;
+    }
+
+
+    /**
+     * Returns the id of the specified exact term, or -1 if no keyword contains
+     * it. The id of a fuzzy term is obtained with the term followed by '~' and
+     * its number of edits, and the id of a pattern with the pattern between
+     * slashes, followed by 'i' if it ignores case.
+     */
+    public int termId(String term) {
+        Integer id = termIds.get(term);
+        return id != null ? id : -1;
+    }
+
+
+    /**
+     * Checks if the specified text matches a term of any keyword of this
+     * automaton, either as an exact term, within the edits of a fuzzy term,
+     * or as a match of a pattern.
+     */
+    public boolean matchesTerm(String text) {
+        if (termIds.containsKey(text)) {
+            return true;
+        }
+        for (LevenshteinAutomaton automaton : fuzzyAutomata) {
+            if (automaton.matches(text)) {
+                return true;
+            }
+        }
+        return patterns != null && patterns.matches(text).length > 0;
+    }
+
+
+    /**
+     * Checks if any keyword of this automaton might match the differences of
+     * a snapshot, given which exact terms that snapshot might contain. Every
+     * term of a keyword must be contained in the snapshot for it to match,
+     * except for fuzzy and pattern terms, which might match any term.
+     */
+    public boolean mightMatch(Predicate<String> mightContain) {
+        for (Keyword keyword : keywords) {
+            List<String> terms = keyword.getTexts();
+            if (!terms.isEmpty() && terms.stream().allMatch(term ->
+                    keyword.getAutomaton(term) != null ||
+                            keyword.getPattern(term) != null ||
+                            mightContain.test(term))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Starts a new scan of this automaton.
+     */
+    public Scan newScan() {
+        return new Scan();
+    }
+
+
+    /**
+     * A keyword that matched a difference.
+     */
+    public static final class Match {
+
+        public final Difference difference;
+
+        public final Keyword keyword;
+
+
+        private Match(final Difference difference, final Keyword keyword) {
+            this.difference = difference;
+            this.keyword = keyword;
+        }
+    }
+
+
+    /**
+     * The state of a single scan of differences over this automaton.
+     */
+    public final class Scan {
+
+        private final BitSet seenPostings;
+
+        private final int[] seenCounts;
+
+        /**
+         * The keywords with seen terms in the current run, so that resetting
+         * the state does not depend on the number of keywords.
+         */
+        private int[] touched;
+
+        private int touchedCount;
+
+        private DifferenceEvent runAction;
+
+        /**
+         * The inserted and deleted positions of each phrase term, which are
+         * only allocated for terms that occur.
+         */
+        private final Positions[] insertedPositions;
+
+        private final Positions[] deletedPositions;
+
+        /**
+         * The term ids of each distinct text scanned so far, when there are
+         * fuzzy or pattern terms.
+         */
+        private final Map<String, int[]> textIds;
+
+        /**
+         * The last difference number where each keyword matched, so that a
+         * keyword matched through several of its terms is reported once.
+         */
+        private final int[] matchedAt;
+
+        private int differenceCount;
+
+
+        private Scan() {
+            this.seenPostings = new BitSet(postingKeywords.length);
+            this.seenCounts = new int[keywords.length];
+            this.textIds = new HashMap<>();
+            this.matchedAt = new int[keywords.length];
+            this.touched = new int[16];
+            this.runAction = DifferenceEvent.nothing;
+            this.insertedPositions = new Positions[phraseTerms.length];
+            this.deletedPositions = new Positions[phraseTerms.length];
+        }
+
+
+        /**
+         * Advances this scan with the specified difference, and returns the
+         * keywords that are not phrases that match it. Phrases are only
+         * matched once the scan finishes.
+         */
+        public List<Keyword> next(Difference difference) {
+            if (difference.getAction() != runAction) {
+                reset();
+                runAction = difference.getAction();
+            }
+
+            int[] ids = idsOf(difference.getOccurrenceText());
+            if (ids.length == 0) {
+                return new ArrayList<>(0);
+            }
+            differenceCount++;
+
+            List<Keyword> matched = new ArrayList<>();
+            for (int id : ids) {
+                // differences without positions, stored by previous versions,
+                // cannot be matched by phrases
+                if (phraseTerms[id] && difference.getWordCount() >= 0) {
+                    Positions[] positions = difference.getAction() == DifferenceEvent.inserted
+                            ? insertedPositions
+                            : deletedPositions;
+                    if (positions[id] == null) {
+                        positions[id] = new Positions();
+                    }
+                    for (int wordCount : difference.getWordCounts()) {
+                        positions[id].add(wordCount, difference);
+                    }
+                }
+
+                for (int posting : postings[id]) {
+                    int k = postingKeywords[posting];
+                    if (!seenPostings.get(posting)) {
+                        seenPostings.set(posting);
+                        if (seenCounts[k]++ == 0) {
+                            if (touchedCount == touched.length) {
+                                touched = Arrays.copyOf(touched, touchedCount * 2);
+                            }
+                            touched[touchedCount++] = k;
+                        }
+                    }
+                    if (seenCounts[k] == termCounts[k] && matchedAt[k] != differenceCount) {
+                        matchedAt[k] = differenceCount;
+                        matched.add(keywords[k]);
+                    }
+                }
+            }
+            return matched;
+        }
+
+
+        /**
+         * Returns the ids of the terms that match the specified text, which
+         * are the id of the equal exact term, if any, the ids of the fuzzy
+         * terms within their number of edits of the text, and the ids of the
+         * patterns that match the text.
+         */
+        private int[] idsOf(String text) {
+            Integer exactId = termIds.get(text);
+            if (fuzzyIds.length == 0 && patterns == null) {
+                return exactId != null ? new int[]{exactId} : new int[0];
+            }
+            int[] ids = textIds.get(text);
+            if (ids == null) {
+                int[] matchedPatterns = patterns != null ? patterns.matches(text) : new int[0];
+                ids = new int[1 + fuzzyIds.length + matchedPatterns.length];
+                int count = 0;
+                if (exactId != null) {
+                    ids[count++] = exactId;
+                }
+                for (int i = 0; i < fuzzyIds.length; i++) {
+                    if (fuzzyAutomata[i].matches(text)) {
+                        ids[count++] = fuzzyIds[i];
+                    }
+                }
+                for (int p : matchedPatterns) {
+                    ids[count++] = patternIds[p];
+                }
+                ids = Arrays.copyOf(ids, count);
+                textIds.put(text, ids);
+            }
+            return ids;
+        }
+
+
+        /**
+         * Continues the run of differences that the specified finished scan
+         * ended with, so that a keyword whose terms are split between the
+         * differences of both scans is still matched by this scan.
+         */
+        public void continueRun(Scan previous) {
+            reset();
+            runAction = previous.runAction;
+            if (touched.length < previous.touchedCount) {
+                touched = Arrays.copyOf(touched, previous.touchedCount);
+            }
+            for (int i = 0; i < previous.touchedCount; i++) {
+                int k = previous.touched[i];
+                int end = firstPostings[k] + termCounts[k];
+                for (int posting = firstPostings[k]; posting < end; posting++) {
+                    if (previous.seenPostings.get(posting)) {
+                        seenPostings.set(posting);
+                    }
+                }
+                seenCounts[k] = previous.seenCounts[k];
+                touched[touchedCount++] = k;
+            }
+        }
+
+
+        private void reset() {
+            for (int i = 0; i < touchedCount; i++) {
+                int k = touched[i];
+                seenCounts[k] = 0;
+                seenPostings.clear(firstPostings[k], firstPostings[k] + termCounts[k]);
+            }
+            touchedCount = 0;
+        }
+
+
+        /**
+         * Adds the phrase positions collected by the specified scan of other
+         * differences to this scan, so that phrases are matched over the
+         * differences of both once this scan finishes.
+         */
+        public void addPositions(Scan other) {
+            addPositions(insertedPositions, other.insertedPositions);
+            addPositions(deletedPositions, other.deletedPositions);
+        }
+
+
+        private void addPositions(Positions[] positions, Positions[] otherPositions) {
+            for (int id = 0; id < positions.length; id++) {
+                if (otherPositions[id] != null) {
+                    if (positions[id] == null) {
+                        positions[id] = new Positions();
+                    }
+                    positions[id].addAll(otherPositions[id]);
+                }
+            }
+        }
+
+
+        /**
+         * Finishes this scan, and returns the phrases that match the scanned
+         * differences, each with the difference where the phrase starts.
+         */
+        public List<Match> finish() {
+            for (Positions[] positions : Arrays.asList(insertedPositions, deletedPositions)) {
+                for (Positions p : positions) {
+                    if (p != null) {
+                        p.sort();
+                    }
+                }
+            }
+
+            List<Match> matches = new ArrayList<>();
+            for (int k = 0; k < keywords.length; k++) {
+                if (phrases[k] != null) {
+                    matchPhrase(k, insertedPositions, matches);
+                    matchPhrase(k, deletedPositions, matches);
+                }
+            }
+            return matches;
+        }
+
+
+        /**
+         * Matches the specified phrase against the sorted positions of its
+         * terms. For each position of the first term, the nearest following
+         * position of each next term is the one that minimizes the span of the
+         * phrase, and since these positions only move forward as the first
+         * position moves forward, every position list is traversed once.
+         */
+        private void matchPhrase(int k, Positions[] positions, List<Match> matches) {
+            int[] phrase = phrases[k];
+            if (phrase.length == 0) {
+                return;
+            }
+            Positions[] lists = new Positions[phrase.length];
+            for (int i = 0; i < phrase.length; i++) {
+                lists[i] = positions[phrase[i]];
+                if (lists[i] == null) {
+                    return;
+                }
+            }
+
+            int slop = keywords[k].getSlop();
+            int[] pointers = new int[phrase.length];
+            Difference lastMatched = null;
+            for (int f = 0; f < lists[0].size; f++) {
+                int start = lists[0].wordCounts[f];
+                int previous = start;
+                for (int i = 1; i < phrase.length; i++) {
+                    Positions list = lists[i];
+                    while (pointers[i] < list.size &&
+                            list.wordCounts[pointers[i]] <= previous) {
+                        pointers[i]++;
+                    }
+                    if (pointers[i] == list.size) {
+                        // no later position of this term, so no later
+                        // position of the first term can start a phrase
+                        return;
+                    }
+                    previous = list.wordCounts[pointers[i]];
+                }
+                int gaps = previous - start - (phrase.length - 1);
+                Difference first = lists[0].differences[f];
+                // a difference with several merged positions is reported once
+                if (gaps <= slop && first != lastMatched) {
+                    matches.add(new Match(first, keywords[k]));
+                    lastMatched = first;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The positions of a phrase term in the scanned differences, each with the
+     * difference where it occurs.
+     */
+    private static final class Positions {
+
+        private int[] wordCounts = new int[4];
+
+        private Difference[] differences = new Difference[4];
+
+        private int size;
+
+
+        private void add(int wordCount, Difference difference) {
+            if (size == wordCounts.length) {
+                wordCounts = Arrays.copyOf(wordCounts, size * 2);
+                differences = Arrays.copyOf(differences, size * 2);
+            }
+            wordCounts[size] = wordCount;
+            differences[size] = difference;
+            size++;
+        }
+
+
+        private void addAll(Positions other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.wordCounts[i], other.differences[i]);
+            }
+        }
+
+
+        /**
+         * Sorts these positions by word count, keeping each one with its
+         * difference.
+         */
+        private void sort() {
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = ((long) wordCounts[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+            int[] sortedWordCounts = new int[wordCounts.length];
+            Difference[] sortedDifferences = new Difference[differences.length];
+            for (int i = 0; i < size; i++) {
+                int from = (int) keys[i];
+                sortedWordCounts[i] = wordCounts[from];
+                sortedDifferences[i] = differences[from];
+            }
+            wordCounts = sortedWordCounts;
+            differences = sortedDifferences;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Token-level implementation of the Myers O(ND) difference algorithm, which
+ * compares two sequences of token ids (where equal tokens have equal ids) and
+ * returns the ranges of tokens that were deleted from the first sequence and
+ * inserted into the second one.
+ * <p>
+ * Common prefixes and suffixes are trimmed before each comparison, and the
+ * linear-space variant of the algorithm is used, which recursively splits
+ * both sequences at the middle snake of their shortest edit path.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class MyersDiff implements DiffAlgorithm {
+
+    /**
+     * Returned by the middle snake search when the deadline passes.
+     */
+    private static final int[] TIMED_OUT = new int[0];
+
+
+    @Override
+    public List<Edit> diff(int[] a, int[] b, long deadline) {
+        List<Edit> edits = new ArrayList<>();
+        return diff(a, 0, a.length, b, 0, b.length, deadline, edits) ? edits : null;
+    }
+
+
+    /**
+     * Appends the edits between the specified ranges of both sequences, and
+     * returns false if the specified deadline passed before they were found.
+     */
+    static boolean diff(int[] a, int aStart, int aEnd,
+                        int[] b, int bStart, int bEnd,
+                        long deadline, List<Edit> edits) {
+        // trims the common prefix
+        while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+            aStart++;
+            bStart++;
+        }
+
+        // trims the common suffix
+        while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+            aEnd--;
+            bEnd--;
+        }
+
+        if (aStart == aEnd) {
+            EditScript.append(edits, DifferenceEvent.inserted, bStart, bEnd);
+            return true;
+        }
+        if (bStart == bEnd) {
+            EditScript.append(edits, DifferenceEvent.deleted, aStart, aEnd);
+            return true;
+        }
+
+        int[] split = middleSnake(a, aStart, aEnd, b, bStart, bEnd, deadline);
+        if (split == TIMED_OUT) {
+            return false;
+        }
+        if (split == null) {
+            // no commonality at all
+            EditScript.append(edits, DifferenceEvent.deleted, aStart, aEnd);
+            EditScript.append(edits, DifferenceEvent.inserted, bStart, bEnd);
+            return true;
+        }
+        return diff(a, aStart, aStart + split[0], b, bStart, bStart + split[1], deadline, edits)
+                && diff(a, aStart + split[0], aEnd, b, bStart + split[1], bEnd, deadline, edits);
+    }
+
+
+    /**
+     * Finds the point where the forward and the reverse searches for the
+     * shortest edit path overlap, returned as offsets relative to the start of
+     * both ranges, null if the ranges have no tokens in common, or
+     * {@link #TIMED_OUT} if the specified deadline passes.
+     */
+    private static int[] middleSnake(int[] a, int aStart, int aEnd,
+                                     int[] b, int bStart, int bEnd,
+                                     long deadline) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int maxD = (n + m + 1) / 2;
+        int vOffset = maxD;
+        int vLength = 2 * maxD + 2;
+        int[] v1 = new int[vLength];
+        int[] v2 = new int[vLength];
+        for (int i = 0; i < vLength; i++) {
+            v1[i] = -1;
+            v2[i] = -1;
+        }
+        v1[vOffset + 1] = 0;
+        v2[vOffset + 1] = 0;
+        int delta = n - m;
+        // if the total number of tokens is odd, then the front path will
+        // collide with the reverse path
+        boolean front = (delta % 2 != 0);
+        // offsets for start and end of k loop, which prevent mapping of space
+        // beyond the grid
+        int k1Start = 0, k1End = 0, k2Start = 0, k2End = 0;
+        for (int d = 0; d < maxD; d++) {
+            if (System.currentTimeMillis() > deadline) {
+                return TIMED_OUT;
+            }
+
+            // walks the front path one step
+            for (int k1 = -d + k1Start; k1 <= d - k1End; k1 += 2) {
+                int k1Offset = vOffset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && v1[k1Offset - 1] < v1[k1Offset + 1])) {
+                    x1 = v1[k1Offset + 1];
+                } else {
+                    x1 = v1[k1Offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[aStart + x1] == b[bStart + y1]) {
+                    x1++;
+                    y1++;
+                }
+                v1[k1Offset] = x1;
+                if (x1 > n) {
+                    // ran off the right of the graph
+                    k1End += 2;
+                } else if (y1 > m) {
+                    // ran off the bottom of the graph
+                    k1Start += 2;
+                } else if (front) {
+                    int k2Offset = vOffset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < vLength && v2[k2Offset] != -1) {
+                        // mirrors x2 onto the top-left coordinate system
+                        int x2 = n - v2[k2Offset];
+                        if (x1 >= x2) {
+                            return new int[]{x1, y1};
+                        }
+                    }
+                }
+            }
+
+            // walks the reverse path one step
+            for (int k2 = -d + k2Start; k2 <= d - k2End; k2 += 2) {
+                int k2Offset = vOffset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && v2[k2Offset - 1] < v2[k2Offset + 1])) {
+                    x2 = v2[k2Offset + 1];
+                } else {
+                    x2 = v2[k2Offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m
+                        && a[aEnd - x2 - 1] == b[bEnd - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                v2[k2Offset] = x2;
+                if (x2 > n) {
+                    // ran off the left of the graph
+                    k2End += 2;
+                } else if (y2 > m) {
+                    // ran off the top of the graph
+                    k2Start += 2;
+                } else if (!front) {
+                    int k1Offset = vOffset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < vLength && v1[k1Offset] != -1) {
+                        int x1 = v1[k1Offset];
+                        int y1 = vOffset + x1 - k1Offset;
+                        // mirrors x2 onto the top-left coordinate system
+                        x2 = n - x2;
+                        if (x1 >= x2) {
+                            return new int[]{x1, y1};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.diff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A divide-and-conquer {@link DiffAlgorithm} that splits both sequences into
+ * aligned segments and diffs each pair of segments in parallel, using another
+ * algorithm, on a fork-join pool.
+ * <p>
+ * Segments are cut at anchors, tokens that occur exactly once in both
+ * sequences and in the same relative order, so every anchor is matched with
+ * itself and no edit crosses a segment boundary. The edits of each segment are
+ * then shifted into the positions of the whole sequences and concatenated.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class ParallelDiff implements DiffAlgorithm {
+
+    /**
+     * The minimum combined number of tokens of a segment, below which the
+     * cost of forking outweighs the cost of diffing.
+     */
+    private static final int MIN_SEGMENT_TOKENS = 2048;
+
+    /**
+     * The number of segments created per worker thread, which balances
+     * segments with very different costs across workers.
+     */
+    private static final int SEGMENTS_PER_THREAD = 4;
+
+    private final DiffAlgorithm segmentAlgorithm;
+
+    private final ForkJoinPool pool;
+
+    private final int minSegmentTokens;
+
+
+    public ParallelDiff(final DiffAlgorithm segmentAlgorithm) {
+        this(segmentAlgorithm, ForkJoinPool.commonPool());
+    }
+
+
+    public ParallelDiff(final DiffAlgorithm segmentAlgorithm, final ForkJoinPool pool) {
+        this(segmentAlgorithm, pool, MIN_SEGMENT_TOKENS);
+    }
+
+
+    ParallelDiff(final DiffAlgorithm segmentAlgorithm,
+                 final ForkJoinPool pool,
+                 final int minSegmentTokens) {
+        this.segmentAlgorithm = segmentAlgorithm;
+        this.pool = pool;
+        this.minSegmentTokens = minSegmentTokens;
+    }
+
+
+    @Override
+    public List<Edit> diff(int[] a, int[] b, long deadline) {
+        int totalTokens = a.length + b.length;
+        if (totalTokens < 2 * minSegmentTokens) {
+            return segmentAlgorithm.diff(a, b, deadline);
+        }
+
+        int[] segments = split(a, b, Math.max(minSegmentTokens,
+                totalTokens / (pool.getParallelism() * SEGMENTS_PER_THREAD)));
+        int segmentCount = segments.length / 4;
+        if (segmentCount == 1) {
+            return segmentAlgorithm.diff(a, b, deadline);
+        }
+
+        List<ForkJoinTask<List<Edit>>> tasks = new ArrayList<>(segmentCount);
+        for (int s = 0; s < segments.length; s += 4) {
+            int[] aSegment = Arrays.copyOfRange(a, segments[s], segments[s + 1]);
+            int[] bSegment = Arrays.copyOfRange(b, segments[s + 2], segments[s + 3]);
+            tasks.add(pool.submit(() -> segmentAlgorithm.diff(aSegment, bSegment, deadline)));
+        }
+
+        List<Edit> edits = new ArrayList<>();
+        for (int s = 0; s < segmentCount; s++) {
+            int aOffset = segments[s * 4];
+            int bOffset = segments[s * 4 + 2];
+            List<Edit> segmentEdits = tasks.get(s).join();
+            if (segmentEdits == null) {
+                // every segment shares the same deadline, so the remaining
+                // ones are cancelled instead of waiting for them to time out
+                tasks.forEach(t -> t.cancel(false));
+                return null;
+            }
+            for (Edit e : segmentEdits) {
+                int offset = e.getAction() == DifferenceEvent.inserted ? bOffset : aOffset;
+                EditScript.append(edits, e.getAction(),
+                        e.getStart() + offset, e.getEnd() + offset);
+            }
+        }
+        return edits;
+    }
+
+
+    /**
+     * Splits both sequences at anchors into segments with at least the
+     * specified combined number of tokens, returned as quadruples of
+     * (aStart, aEnd, bStart, bEnd).
+     */
+    private static int[] split(int[] a, int[] b, int segmentTokens) {
+        int[] anchors = PatienceDiff.uniqueAnchors(a, b);
+        int[] segments = new int[(anchors.length / 2 + 1) * 4];
+        int count = 0;
+        int aStart = 0, bStart = 0;
+        for (int i = 0; i < anchors.length; i += 2) {
+            int aAnchor = anchors[i];
+            int bAnchor = anchors[i + 1];
+            boolean isLargeEnough = (aAnchor - aStart) + (bAnchor - bStart) >= segmentTokens;
+            boolean leavesEnough = (a.length - aAnchor) + (b.length - bAnchor) >= segmentTokens;
+            if (isLargeEnough && leavesEnough) {
+                segments[count++] = aStart;
+                segments[count++] = aAnchor;
+                segments[count++] = bStart;
+                segments[count++] = bAnchor;
+                aStart = aAnchor;
+                bStart = bAnchor;
+            }
+        }
+        segments[count++] = aStart;
+        segments[count++] = a.length;
+        segments[count++] = bStart;
+        segments[count++] = b.length;
+        return Arrays.copyOf(segments, count);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Token-level implementation of the patience difference algorithm, which
+ * anchors both sequences on the tokens that occur exactly once in each of
+ * them, keeps the longest subsequence of anchors that appear in the same order
+ * in both, and recursively diffs the ranges between consecutive anchors.
+ * Ranges without unique tokens are diffed with {@link MyersDiff}.
+ * <p>
+ * Since anchors are usually distinctive tokens, blocks of content that were
+ * moved around are reported as whole blocks, instead of being matched on
+ * common words scattered across both sequences.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class PatienceDiff implements DiffAlgorithm {
+
+    @Override
+    public List<Edit> diff(int[] a, int[] b, long deadline) {
+        List<Edit> edits = new ArrayList<>();
+        return new Run(a, b, deadline).diff(0, a.length, 0, b.length, edits) ? edits : null;
+    }
+
+
+    /**
+     * Returns the longest ordered subsequence of tokens that occur exactly
+     * once in both sequences, as pairs of positions in the first and in the
+     * second sequence.
+     */
+    static int[] uniqueAnchors(int[] a, int[] b) {
+        return new Run(a, b, Long.MAX_VALUE).uniqueAnchors(0, a.length, 0, b.length);
+    }
+
+
+    /**
+     * The state of a single comparison, with token-indexed tables that are
+     * allocated once and reset after each range is processed.
+     */
+    private static final class Run {
+
+        private final int[] a;
+
+        private final int[] b;
+
+        private final long deadline;
+
+        private final int[] aCounts;
+
+        private final int[] bCounts;
+
+        private final int[] bPositions;
+
+
+        private Run(int[] a, int[] b, long deadline) {
+            this.a = a;
+            this.b = b;
+            this.deadline = deadline;
+            int vocabularySize = EditScript.vocabularySize(a, b);
+            this.aCounts = new int[vocabularySize];
+            this.bCounts = new int[vocabularySize];
+            this.bPositions = new int[vocabularySize];
+        }
+
+
+        /**
+         * Appends the edits between the specified ranges of both sequences,
+         * and returns false if the deadline passed before they were found.
+         */
+        private boolean diff(int aStart, int aEnd, int bStart, int bEnd, List<Edit> edits) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            // trims the common prefix and suffix
+            while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+                aStart++;
+                bStart++;
+            }
+            while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+                aEnd--;
+                bEnd--;
+            }
+            if (aStart == aEnd || bStart == bEnd) {
+                EditScript.append(edits, DifferenceEvent.deleted, aStart, aEnd);
+                EditScript.append(edits, DifferenceEvent.inserted, bStart, bEnd);
+                return true;
+            }
+
+            int[] anchors = uniqueAnchors(aStart, aEnd, bStart, bEnd);
+            if (anchors.length == 0) {
+                return MyersDiff.diff(a, aStart, aEnd, b, bStart, bEnd, deadline, edits);
+            }
+
+            int aPrevious = aStart;
+            int bPrevious = bStart;
+            for (int i = 0; i < anchors.length; i += 2) {
+                int aAnchor = anchors[i];
+                int bAnchor = anchors[i + 1];
+                if (!diff(aPrevious, aAnchor, bPrevious, bAnchor, edits)) {
+                    return false;
+                }
+                aPrevious = aAnchor + 1;
+                bPrevious = bAnchor + 1;
+            }
+            return diff(aPrevious, aEnd, bPrevious, bEnd, edits);
+        }
+
+
+        /**
+         * Returns the longest ordered subsequence of tokens that occur exactly
+         * once in both ranges, as pairs of positions in the first and in the
+         * second sequence.
+         */
+        private int[] uniqueAnchors(int aStart, int aEnd, int bStart, int bEnd) {
+            for (int i = aStart; i < aEnd; i++) {
+                aCounts[a[i]]++;
+            }
+            for (int j = bStart; j < bEnd; j++) {
+                bCounts[b[j]]++;
+                bPositions[b[j]] = j;
+            }
+
+            int[] candidates = new int[Math.min(aEnd - aStart, bEnd - bStart)];
+            int candidateCount = 0;
+            for (int i = aStart; i < aEnd; i++) {
+                int t = a[i];
+                if (aCounts[t] == 1 && bCounts[t] == 1) {
+                    candidates[candidateCount++] = i;
+                }
+            }
+
+            for (int i = aStart; i < aEnd; i++) {
+                aCounts[a[i]] = 0;
+            }
+            for (int j = bStart; j < bEnd; j++) {
+                bCounts[b[j]] = 0;
+            }
+
+            return longestIncreasingSubsequence(candidates, candidateCount);
+        }
+
+
+        /**
+         * Patience sorting of the candidates, which are ordered by their
+         * position in the first sequence, by their position in the second
+         * sequence. Must be called before the second sequence positions are
+         * overwritten by another range.
+         */
+        private int[] longestIncreasingSubsequence(int[] candidates, int count) {
+            int[] tails = new int[count];
+            int[] predecessors = new int[count];
+            int length = 0;
+            for (int c = 0; c < count; c++) {
+                int bPosition = bPositions[a[candidates[c]]];
+                int low = 0, high = length;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (bPositions[a[candidates[tails[mid]]]] < bPosition) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                predecessors[c] = low > 0 ? tails[low - 1] : -1;
+                tails[low] = c;
+                if (low == length) {
+                    length++;
+                }
+            }
+
+            int[] anchors = new int[length * 2];
+            int c = length > 0 ? tails[length - 1] : -1;
+            for (int i = length - 1; c != -1; c = predecessors[c], i--) {
+                anchors[2 * i] = candidates[c];
+                anchors[2 * i + 1] = bPositions[a[candidates[c]]];
+            }
+            return anchors;
+        }
+    }
+}
@@ -16,17 +16,31 @@
 
 package com.edduarte.vokter.document;
 
+import com.edduarte.vokter.persistence.WriteBehindQueue;
+import com.edduarte.vokter.similarity.ContentChunker;
+import com.edduarte.vokter.similarity.MinHash;
 import com.edduarte.vokter.util.Constants;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -47,31 +61,120 @@ public final class Document extends BasicDBObject implements Serializable {
 
     public static final String ORIGINAL_CONTENT = "original_content";
 
+    public static final String VERSION = "version";
+
+    public static final String SIGNATURE = "signature";
+
+    public static final String FINGERPRINT = "fingerprint";
+
+    public static final String CHUNK_LENGTHS = "chunk_lengths";
+
+    public static final String CHUNK_HASHES = "chunk_hashes";
+
+    public static final String CHUNK_HISTORY = "chunk_history";
+
+    public static final String MASKED_COUNT = "masked_count";
+
+    public static final String TERM_FILTER = "term_filter";
+
+    /**
+     * The fields that are not stored on every snapshot, which are removed
+     * from the stored snapshot when it is replaced by one without them.
+     */
+    static final List<String> OPTIONAL_FIELDS = Arrays.asList(
+            SIGNATURE, FINGERPRINT, CHUNK_LENGTHS, CHUNK_HASHES,
+            CHUNK_HISTORY, MASKED_COUNT, TERM_FILTER);
+
+    /**
+     * The number of preceding snapshots whose chunk hashes are kept with
+     * each snapshot.
+     */
+    private static final int CHUNK_HISTORY_SIZE = 4;
+
+    /**
+     * The false positive probability of the term filter of each snapshot.
+     */
+    private static final double TERM_FILTER_FPP = 0.01;
+
     private static final long serialVersionUID = 1L;
 
     private static final int BOUND_INDEX = 4;
 
     private transient final DBCollection occCollection;
 
+    /**
+     * The write-behind stage that occurrences are written through, or null
+     * if occurrences are written synchronously.
+     */
+    private transient final WriteBehindQueue writeQueue;
+
+    /**
+     * The term filter of this snapshot, read once from its stored bytes.
+     */
+    private transient volatile BloomFilter<CharSequence> termFilter;
+
 
     Document(DB occurrencesDB, String url, String originalContent) {
+        this(occurrencesDB, null, url, originalContent);
+    }
+
+
+    Document(DB occurrencesDB,
+             WriteBehindQueue writeQueue,
+             String url,
+             String originalContent) {
         super(ID, Constants.bytesToHex(Constants.generateRandomBytes()));
         append(URL, url);
         append(ORIGINAL_CONTENT, originalContent);
-        occCollection = occurrencesDB
-                .getCollection(getUrl().hashCode() + getString(ID));
+        this.occCollection = occurrencesCollection(occurrencesDB);
+        this.writeQueue = writeQueue;
     }
 
 
     Document(DB occurrencesDB, BasicDBObject dbObject) {
+        this(occurrencesDB, null, dbObject);
+    }
+
+
+    Document(DB occurrencesDB, WriteBehindQueue writeQueue, BasicDBObject dbObject) {
         super(dbObject);
-        occCollection = occurrencesDB
-                .getCollection(getUrl().hashCode() + getString(ID));
+        this.occCollection = occurrencesCollection(occurrencesDB);
+        this.writeQueue = writeQueue;
+    }
+
+
+    /**
+     * Returns the collection of the occurrences of this snapshot in the
+     * specified database, or null if there is no database, in which case this
+     * snapshot has no occurrences, like the snapshots that are only cached.
+     */
+    private DBCollection occurrencesCollection(DB occurrencesDB) {
+        return occurrencesDB != null
+                ? occurrencesDB.getCollection(occurrencesCollectionName(getUrl(), getString(ID)))
+                : null;
+    }
+
+
+    /**
+     * Returns the name of the collection that stores the occurrences of the
+     * snapshot with the specified url and id.
+     */
+    static String occurrencesCollectionName(String url, String id) {
+        return url.hashCode() + id;
+    }
+
+
+    DBCollection getOccurrencesCollection() {
+        return occCollection;
     }
 
 
     public void addOccurrence(Occurrence occurrence) {
-        occCollection.insert(occurrence);
+        if (writeQueue != null) {
+            writeQueue.insert(occCollection, occurrence);
+        } else {
+            occCollection.insert(occurrence);
+        }
     }
 
 
@@ -84,6 +187,10 @@ public final class Document extends BasicDBObject implements Serializable {
         if (!occurrencesIt.hasNext()) {
             return;
         }
+        if (writeQueue != null) {
+            writeQueue.insertAll(occCollection, occurrencesIt);
+            return;
+        }
         BulkWriteOperation builder = occCollection.initializeUnorderedBulkOperation();
         while (occurrencesIt.hasNext()) {
             builder.insert(occurrencesIt.next());
@@ -93,10 +200,22 @@ public final class Document extends BasicDBObject implements Serializable {
     }
 
 
+    /**
+     * Blocks until every occurrence added to this snapshot is stored in the
+     * database.
+     */
+    void awaitOccurrences() {
+        if (writeQueue != null) {
+            writeQueue.await(occCollection);
+        }
+    }
+
+
     public Occurrence getOccurrence(String text, int wordCount) {
         if (text.isEmpty()) {
             return null;
         }
+        awaitOccurrences();
         int lowerBound = wordCount - BOUND_INDEX;
         int upperBound = wordCount + BOUND_INDEX;
 
@@ -112,6 +231,7 @@ public final class Document extends BasicDBObject implements Serializable {
         if (occurrencesText.isEmpty()) {
             return null;
         }
+        awaitOccurrences();
         DBCursor cursor = occCollection.find(new BasicDBObject(Occurrence.TEXT, occurrencesText));
         List<Occurrence> list = new ArrayList<>();
         while (cursor.hasNext()) {
@@ -133,12 +253,207 @@ public final class Document extends BasicDBObject implements Serializable {
     }
 
 
+    /**
+     * Returns the version of this snapshot, which is incremented every time
+     * the snapshot of its url is replaced. Snapshots that were never stored
+     * have version 0.
+     */
+    public long getVersion() {
+        return containsField(VERSION) ? getLong(VERSION) : 0;
+    }
+
+
+    /**
+     * Returns the MinHash signature of the processed content of this
+     * snapshot, or null if this snapshot was stored without one.
+     */
+    public int[] getSignature() {
+        byte[] bytes = (byte[]) get(SIGNATURE);
+        return bytes != null ? MinHash.fromBytes(bytes) : null;
+    }
+
+
+    /**
+     * Returns the exact fingerprint of the processed content of this
+     * snapshot, or null if this snapshot was stored without one.
+     */
+    public Long getFingerprint() {
+        return containsField(FINGERPRINT) ? getLong(FINGERPRINT) : null;
+    }
+
+
+    /**
+     * Returns the number of processed tokens of each content-defined chunk of
+     * this snapshot, or null if this snapshot was stored without chunks.
+     */
+    public int[] getChunkLengths() {
+        byte[] bytes = (byte[]) get(CHUNK_LENGTHS);
+        return bytes != null ? ContentChunker.lengthsFromBytes(bytes) : null;
+    }
+
+
+    /**
+     * Returns the hash of each content-defined chunk of this snapshot, or
+     * null if this snapshot was stored without chunks.
+     */
+    public long[] getChunkHashes() {
+        byte[] bytes = (byte[]) get(CHUNK_HASHES);
+        return bytes != null ? ContentChunker.hashesFromBytes(bytes) : null;
+    }
+
+
+    /**
+     * Returns the chunk hashes of the snapshots of this url that preceded this
+     * one (up to a few), or an empty set if there were none.
+     */
+    public Set<Long> getChunkHistory() {
+        Set<Long> history = new HashSet<>();
+        List<?> snapshots = (List<?>) get(CHUNK_HISTORY);
+        if (snapshots != null) {
+            for (Object snapshot : snapshots) {
+                for (long hash : ContentChunker.hashesFromBytes((byte[]) snapshot)) {
+                    history.add(hash);
+                }
+            }
+        }
+        return history;
+    }
+
+
+    /**
+     * Sets the chunk history of this snapshot as the chunk hashes of the
+     * specified snapshot, which this one replaces, followed by the most recent
+     * part of the chunk history of that snapshot.
+     */
+    public void setChunkHistory(Document replaced) {
+        byte[] replacedHashes = (byte[]) replaced.get(CHUNK_HASHES);
+        if (replacedHashes == null) {
+            return;
+        }
+        List<byte[]> history = new ArrayList<>(CHUNK_HISTORY_SIZE);
+        history.add(replacedHashes);
+        List<?> replacedHistory = (List<?>) replaced.get(CHUNK_HISTORY);
+        if (replacedHistory != null) {
+            for (int i = 0; i < replacedHistory.size() && history.size() < CHUNK_HISTORY_SIZE; i++) {
+                history.add((byte[]) replacedHistory.get(i));
+            }
+        }
+        append(CHUNK_HISTORY, history);
+    }
+
+
+    /**
+     * Returns the number of volatile tokens that were masked in this
+     * snapshot.
+     */
+    public int getMaskedCount() {
+        return containsField(MASKED_COUNT) ? getInt(MASKED_COUNT) : 0;
+    }
+
+
+    void setMaskedCount(int maskedCount) {
+        append(MASKED_COUNT, maskedCount);
+    }
+
+
+    /**
+     * Checks if this snapshot might contain the specified processed term,
+     * using a Bloom filter of its terms, so false positives are possible but
+     * false negatives are not. Snapshots stored without a term filter might
+     * contain any term.
+     */
+    public boolean mightContain(String term) {
+        BloomFilter<CharSequence> filter = termFilter;
+        if (filter == null) {
+            byte[] bytes = (byte[]) get(TERM_FILTER);
+            if (bytes == null) {
+                return true;
+            }
+            try {
+                filter = BloomFilter.readFrom(new ByteArrayInputStream(bytes),
+                        Funnels.unencodedCharsFunnel());
+            } catch (IOException ex) {
+                return true;
+            }
+            termFilter = filter;
+        }
+        return filter.mightContain(term);
+    }
+
+
+    /**
+     * Stores a Bloom filter of the specified processed terms with this
+     * snapshot.
+     */
+    void setTermFilter(Collection<String> terms) {
+        Set<String> distinct = new HashSet<>(terms);
+        BloomFilter<CharSequence> filter = BloomFilter.create(
+                Funnels.unencodedCharsFunnel(), Math.max(distinct.size(), 1), TERM_FILTER_FPP);
+        distinct.forEach(filter::put);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            filter.writeTo(out);
+        } catch (IOException ex) {
+            // writing into memory does not fail
+            return;
+        }
+        append(TERM_FILTER, out.toByteArray());
+        termFilter = filter;
+    }
+
+
+    /**
+     * Stores the MinHash signature, the exact fingerprint and the chunk hashes
+     * of the specified processed tokens with this snapshot.
+     */
+    void setSimilarityHashes(List<String> tokens) {
+        append(SIGNATURE, MinHash.toBytes(MinHash.signature(tokens)));
+        append(FINGERPRINT, MinHash.fingerprint(tokens));
+        int[] chunkLengths = ContentChunker.chunkLengths(tokens);
+        append(CHUNK_LENGTHS, ContentChunker.toBytes(chunkLengths));
+        append(CHUNK_HASHES, ContentChunker.toBytes(
+                ContentChunker.chunkHashes(tokens, chunkLengths)));
+    }
+
+
+    /**
+     * Returns every occurrence of this snapshot, in no particular order. The
+     * returned stream holds a database cursor and must be closed.
+     */
+    public Stream<Occurrence> getOccurrences() {
+        awaitOccurrences();
+        DBCursor cursor = occCollection.find();
+        return StreamSupport
+                .stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.NONNULL), false)
+                .map(Occurrence::new)
+                .onClose(cursor::close);
+    }
+
+
+    /**
+     * Returns the occurrences of this snapshot with a word count between the
+     * specified bounds (inclusive and exclusive, respectively), in no
+     * particular order. The returned stream holds a database cursor and must
+     * be closed.
+     */
+    public Stream<Occurrence> getOccurrences(int fromWordCount, int toWordCount) {
+        awaitOccurrences();
+        DBCursor cursor = occCollection.find(new BasicDBObject(Occurrence.WORD_COUNT,
+                new BasicDBObject("$gte", fromWordCount).append("$lt", toWordCount)));
+        return StreamSupport
+                .stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.NONNULL), false)
+                .map(Occurrence::new)
+                .onClose(cursor::close);
+    }
+
+
     /**
      * Converts a cluster of occurrences associated with a document into a String,
      * where each occurrences is separated by a whitespace.
      */
     @SuppressWarnings("unchecked")
     public String getProcessedContent() {
+        awaitOccurrences();
         DBCursor cursor = occCollection.find();
         return StreamSupport.stream(cursor.spliterator(), false)
                 .map(Occurrence::new)
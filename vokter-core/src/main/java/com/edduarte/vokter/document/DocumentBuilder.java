@@ -16,8 +16,11 @@
 
 package com.edduarte.vokter.document;
 
+import com.edduarte.vokter.parser.ParseCache;
 import com.edduarte.vokter.parser.Parser;
 import com.edduarte.vokter.parser.ParserPool;
+import com.edduarte.vokter.parser.VolatileMask;
+import com.edduarte.vokter.persistence.WriteBehindQueue;
 import com.edduarte.vokter.util.OSGiManager;
 import com.google.common.base.Stopwatch;
 import com.mongodb.DB;
@@ -33,6 +36,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 
 /**
@@ -61,6 +65,30 @@ public final class DocumentBuilder {
      */
     private LanguageDetector langDetector;
 
+    /**
+     * The write-behind stage that occurrences will be written through. If
+     * null, occurrences are written synchronously.
+     */
+    private WriteBehindQueue writeQueue;
+
+    /**
+     * The cache of parsing results of previous snapshots. If null, the
+     * document is parsed from scratch.
+     */
+    private ParseCache parseCache;
+
+    /**
+     * The mask of volatile tokens of previous snapshots. If null, no tokens
+     * are masked.
+     */
+    private VolatileMask volatileMask;
+
+    /**
+     * The tokens that are never masked, such as the ones that match the
+     * subscribed keywords. If null, every volatile token is masked.
+     */
+    private Predicate<String> keptTokens;
+
     /**
      * Flag that sets usage of stopword filtering.
      */
@@ -133,6 +161,32 @@ public final class DocumentBuilder {
     }
 
 
+    public DocumentBuilder withWriteBehind(WriteBehindQueue writeQueue) {
+        this.writeQueue = writeQueue;
+        return this;
+    }
+
+
+    public DocumentBuilder withParseCache(ParseCache parseCache) {
+        this.parseCache = parseCache;
+        return this;
+    }
+
+
+    public DocumentBuilder withVolatileMask(VolatileMask volatileMask) {
+        this.volatileMask = volatileMask;
+        return this;
+    }
+
+
+    public DocumentBuilder withVolatileMask(VolatileMask volatileMask,
+                                            Predicate<String> keptTokens) {
+        this.volatileMask = volatileMask;
+        this.keptTokens = keptTokens;
+        return this;
+    }
+
+
     public DocumentBuilder withStopwords() {
         this.isStoppingEnabled = true;
         return this;
@@ -206,6 +260,10 @@ public final class DocumentBuilder {
                 // general structure that holds the created occurrences
                 occurrencesDB,
 
+                // the write-behind stage that the occurrences are written
+                // through, if any
+                writeQueue,
+
                 // the input document info, including its path and InputStream
                 input,
 
@@ -213,6 +271,17 @@ public final class DocumentBuilder {
                 // detection
                 parser,
 
+                // the results of previous snapshots that unchanged parts of
+                // the document can reuse, if any
+                parseCache,
+
+                // the volatile tokens learned from previous snapshots, which
+                // are masked in the document, if any
+                volatileMask,
+
+                // the tokens that are never masked, if any
+                keptTokens,
+
                 // flag that sets that stopwords will be filtered during
                 // tokenization
                 isStoppingEnabled,
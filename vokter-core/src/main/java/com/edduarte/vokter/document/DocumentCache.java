@@ -0,0 +1,383 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.document;
+
+import com.mongodb.BasicDBObject;
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A two-tier, size-aware cache of document snapshots, bounded by the
+ * approximate number of bytes that each snapshot occupies instead of by a
+ * number of entries.
+ * <p>
+ * Snapshots are kept on the heap until they expire, which should be tuned to
+ * the interval between detection jobs so that the latest snapshot of an url
+ * is still hot when the next detection job requires it. When the heap tier
+ * exceeds its capacity, the least recently used snapshots are spilled into an
+ * off-heap tier (BSON-encoded into direct buffers) instead of being evicted,
+ * and are only evicted when the off-heap tier exceeds its own capacity.
+ * Snapshots that are too large for the heap tier are placed directly into the
+ * off-heap tier.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public final class DocumentCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentCache.class);
+
+    /**
+     * Approximate overhead, in bytes, of a cached snapshot besides its stored
+     * fields (object headers, map entries and decoded field objects).
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final long maxHeapBytes;
+
+    private final long maxOffHeapBytes;
+
+    private final long expiryMillis;
+
+    /**
+     * Converts a decoded off-heap snapshot back into a document object.
+     */
+    private final Function<BasicDBObject, Document> documentFactory;
+
+    /**
+     * Access-ordered maps, so that iteration starts on the least recently used
+     * snapshot.
+     */
+    private final LinkedHashMap<String, HeapEntry> heapEntries;
+
+    private final LinkedHashMap<String, OffHeapEntry> offHeapEntries;
+
+    private long heapBytes;
+
+    private long offHeapBytes;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long spillCount;
+
+    private long evictionCount;
+
+    private long expiredCount;
+
+
+    DocumentCache(final long maxHeapBytes,
+                  final long maxOffHeapBytes,
+                  final long expiryMillis,
+                  final Function<BasicDBObject, Document> documentFactory) {
+        this.maxHeapBytes = maxHeapBytes;
+        this.maxOffHeapBytes = maxOffHeapBytes;
+        this.expiryMillis = expiryMillis;
+        this.documentFactory = documentFactory;
+        this.heapEntries = new LinkedHashMap<>(16, 0.75f, true);
+        this.offHeapEntries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+
+    /**
+     * Returns the approximate number of bytes occupied by the specified
+     * snapshot while it is kept in memory.
+     */
+    static long weigh(Document d) {
+        return weigh(d, new BasicBSONEncoder().encode(d));
+    }
+
+
+    /**
+     * Returns the approximate number of bytes occupied by the specified
+     * snapshot while it is kept in memory, based on the size of its stored
+     * fields when encoded (signatures, chunk hashes, term filter, etc.). Text
+     * is encoded with roughly one byte per character but kept in memory with
+     * two, so the original content is counted once more.
+     */
+    private static long weigh(Document d, byte[] encoded) {
+        String content = d.getOriginalContent();
+        return ENTRY_OVERHEAD
+                + encoded.length
+                + (content != null ? content.length() : 0);
+    }
+
+
+    /**
+     * Returns the cached snapshot for the specified url, or null if it is not
+     * cached or if it has expired.
+     */
+    public synchronized Document get(String url) {
+        long now = System.currentTimeMillis();
+
+        HeapEntry heapEntry = heapEntries.get(url);
+        if (heapEntry != null) {
+            if (heapEntry.expiresAt > now) {
+                hitCount++;
+                return heapEntry.document;
+            }
+            removeHeapEntry(url);
+            expiredCount++;
+        }
+
+        OffHeapEntry offHeapEntry = offHeapEntries.get(url);
+        if (offHeapEntry != null) {
+            if (offHeapEntry.expiresAt > now) {
+                hitCount++;
+                return documentFactory.apply(offHeapEntry.decode());
+            }
+            removeOffHeapEntry(url);
+            expiredCount++;
+        }
+
+        missCount++;
+        return null;
+    }
+
+
+    /**
+     * Caches the specified snapshot as the latest one for its url, replacing
+     * any previously cached snapshot of the same url.
+     */
+    public synchronized void put(Document d) {
+        String url = d.getUrl();
+        remove(url);
+
+        byte[] encoded = new BasicBSONEncoder().encode(d);
+        long weight = weigh(d, encoded);
+        long expiresAt = System.currentTimeMillis() + expiryMillis;
+
+        if (weight > maxHeapBytes / 4) {
+            // large snapshots would push most of the heap tier out at once,
+            // so they go directly into the off-heap tier
+            spill(url, encoded, d.getVersion(), expiresAt);
+        } else {
+            heapEntries.put(url, new HeapEntry(d, weight, expiresAt));
+            heapBytes += weight;
+        }
+
+        trim();
+    }
+
+
+    /**
+     * Caches the specified snapshot, which was read from the database, unless
+     * a snapshot of the same url with an equal or newer version is already
+     * cached. This prevents a read that raced with a replacement from bringing
+     * back the replaced snapshot.
+     */
+    public synchronized void putIfNewer(Document d) {
+        String url = d.getUrl();
+        long version = d.getVersion();
+
+        HeapEntry heapEntry = heapEntries.get(url);
+        if (heapEntry != null && heapEntry.document.getVersion() >= version) {
+            return;
+        }
+        OffHeapEntry offHeapEntry = offHeapEntries.get(url);
+        if (offHeapEntry != null && offHeapEntry.version >= version) {
+            return;
+        }
+        put(d);
+    }
+
+
+    public synchronized void remove(String url) {
+        removeHeapEntry(url);
+        removeOffHeapEntry(url);
+    }
+
+
+    public synchronized void clear() {
+        heapEntries.clear();
+        offHeapEntries.clear();
+        heapBytes = 0;
+        offHeapBytes = 0;
+    }
+
+
+    private void trim() {
+        Iterator<Map.Entry<String, HeapEntry>> heapIt =
+                heapEntries.entrySet().iterator();
+        while (heapBytes > maxHeapBytes && heapIt.hasNext()) {
+            Map.Entry<String, HeapEntry> eldest = heapIt.next();
+            HeapEntry e = eldest.getValue();
+            heapIt.remove();
+            heapBytes -= e.weight;
+            byte[] encoded = new BasicBSONEncoder().encode(e.document);
+            spill(eldest.getKey(), encoded, e.document.getVersion(), e.expiresAt);
+        }
+
+        Iterator<Map.Entry<String, OffHeapEntry>> offHeapIt =
+                offHeapEntries.entrySet().iterator();
+        while (offHeapBytes > maxOffHeapBytes && offHeapIt.hasNext()) {
+            Map.Entry<String, OffHeapEntry> eldest = offHeapIt.next();
+            offHeapIt.remove();
+            offHeapBytes -= eldest.getValue().weight();
+            evictionCount++;
+            logger.debug("Evicted snapshot of '{}' from cache.", eldest.getKey());
+        }
+    }
+
+
+    private void spill(String url, byte[] bytes, long version, long expiresAt) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        offHeapEntries.put(url, new OffHeapEntry(buffer, version, expiresAt));
+        offHeapBytes += bytes.length;
+        spillCount++;
+    }
+
+
+    private void removeHeapEntry(String url) {
+        HeapEntry e = heapEntries.remove(url);
+        if (e != null) {
+            heapBytes -= e.weight;
+        }
+    }
+
+
+    private void removeOffHeapEntry(String url) {
+        OffHeapEntry e = offHeapEntries.remove(url);
+        if (e != null) {
+            offHeapBytes -= e.weight();
+        }
+    }
+
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+
+    /**
+     * Returns the number of snapshots that were moved from the heap tier into
+     * the off-heap tier.
+     */
+    public synchronized long getSpillCount() {
+        return spillCount;
+    }
+
+
+    /**
+     * Returns the number of snapshots that were evicted due to the capacity
+     * of both tiers being exceeded.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+
+    public synchronized long getHeapBytes() {
+        return heapBytes;
+    }
+
+
+    public synchronized long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "DocumentCache{" +
+                "heapEntries=" + heapEntries.size() +
+                ", heapBytes=" + heapBytes +
+                ", offHeapEntries=" + offHeapEntries.size() +
+                ", offHeapBytes=" + offHeapBytes +
+                ", hits=" + hitCount +
+                ", misses=" + missCount +
+                ", spills=" + spillCount +
+                ", evictions=" + evictionCount +
+                ", expired=" + expiredCount +
+                '}';
+    }
+
+
+    private static final class HeapEntry {
+
+        private final Document document;
+
+        private final long weight;
+
+        private final long expiresAt;
+
+
+        private HeapEntry(Document document, long weight, long expiresAt) {
+            this.document = document;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+
+    private static final class OffHeapEntry {
+
+        /**
+         * Direct buffer with the BSON-encoded snapshot. Its memory is released
+         * when the buffer itself is garbage-collected.
+         */
+        private final ByteBuffer buffer;
+
+        private final long version;
+
+        private final long expiresAt;
+
+
+        private OffHeapEntry(ByteBuffer buffer, long version, long expiresAt) {
+            this.buffer = buffer;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+
+
+        private int weight() {
+            return buffer.capacity();
+        }
+
+
+        private BasicDBObject decode() {
+            byte[] bytes = new byte[buffer.capacity()];
+            ByteBuffer view = buffer.duplicate();
+            view.clear();
+            view.get(bytes);
+            BSONObject obj = new BasicBSONDecoder().readObject(bytes);
+            return new BasicDBObject(obj.toMap());
+        }
+    }
+}
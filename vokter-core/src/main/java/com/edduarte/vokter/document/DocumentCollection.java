@@ -16,13 +16,12 @@
 
 package com.edduarte.vokter.document;
 
+import com.edduarte.vokter.persistence.WriteBehindQueue;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
-import org.cache2k.Cache;
-import org.cache2k.CacheBuilder;
-import org.cache2k.PropagatedCacheException;
-import org.cache2k.impl.CacheLockSpinsExceededError;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,17 +39,46 @@ public final class DocumentCollection {
 
     private static final Logger logger = LoggerFactory.getLogger(DocumentCollection.class);
 
+    /**
+     * Maximum approximate size of the snapshots kept in the heap tier of the
+     * cache.
+     */
+    private static final long MAX_HEAP_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Maximum approximate size of the snapshots spilled into the off-heap tier
+     * of the cache.
+     */
+    private static final long MAX_OFF_HEAP_CACHE_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Default duration that a snapshot is kept in cache, when no detection
+     * interval is specified.
+     */
+    private static final long DEFAULT_CACHE_EXPIRY_MILLIS = TimeUnit.SECONDS.toMillis(20);
+
     private final String collectionName;
 
     private final DB documentsDB;
 
     private final DB occurrencesDB;
 
+    /**
+     * The write-behind stage that occurrences of stored snapshots are written
+     * through, or null if occurrences are written synchronously.
+     */
+    private final WriteBehindQueue writeQueue;
+
+
+    /**
+     * Local and cached map of document urls to their latest snapshots.
+     */
+    private final DocumentCache documentsCache;
 
     /**
-     * Local and cached map of document IDs (integers) to document objects.
+     * Background worker that drops the occurrences of replaced snapshots.
      */
-    private final Cache<String, Document> documentsCache;
+    private final SnapshotReclaimer reclaimer;
 
 
     /**
@@ -58,16 +86,45 @@ public final class DocumentCollection {
      * above mentioned persistence and cache mechanisms.
      */
     public DocumentCollection(String collectionName, DB documentsDB, DB occurrencesDB) {
+        this(collectionName, documentsDB, occurrencesDB, DEFAULT_CACHE_EXPIRY_MILLIS);
+    }
+
+
+    /**
+     * Instantiate the Collection object, keeping every added snapshot in cache
+     * for the specified duration. This duration should be longer than the
+     * interval between detection jobs, so that the previous snapshot of a
+     * document is still cached when the next detection job occurs.
+     */
+    public DocumentCollection(String collectionName,
+                              DB documentsDB,
+                              DB occurrencesDB,
+                              long cacheExpiryMillis) {
+        this(collectionName, documentsDB, occurrencesDB, cacheExpiryMillis, null);
+    }
+
+
+    /**
+     * Instantiate the Collection object, where the occurrences of stored
+     * snapshots are written through the specified write-behind stage.
+     * Snapshots only replace previous ones once their occurrences are stored.
+     */
+    public DocumentCollection(String collectionName,
+                              DB documentsDB,
+                              DB occurrencesDB,
+                              long cacheExpiryMillis,
+                              WriteBehindQueue writeQueue) {
         this.collectionName = collectionName;
         this.documentsDB = documentsDB;
         this.occurrencesDB = occurrencesDB;
-        this.documentsCache = CacheBuilder
-                .newCache(String.class, Document.class)
-                .name(collectionName)
-                .expiryDuration(20, TimeUnit.SECONDS)
-                .maxSize(100)
-                .source(this::getInternal)
-                .build();
+        this.writeQueue = writeQueue;
+        this.documentsCache = new DocumentCache(
+                MAX_HEAP_CACHE_BYTES,
+                MAX_OFF_HEAP_CACHE_BYTES,
+                cacheExpiryMillis,
+                obj -> new Document(occurrencesDB, writeQueue, obj)
+        );
+        this.reclaimer = new SnapshotReclaimer(collectionName);
     }
 
 
@@ -78,8 +135,62 @@ public final class DocumentCollection {
         if (d == null) {
             return;
         }
+        d.awaitOccurrences();
         DBCollection collection = documentsDB.getCollection(collectionName);
         collection.insert(d);
+        documentsCache.put(d);
+    }
+
+
+    /**
+     * Replaces the current snapshot of the specified document's url with the
+     * specified document, using a single upsert that also increments the
+     * snapshot version and removes the fields that the specified document
+     * does not have. Readers will either see the previous snapshot or the
+     * new one, and never a state where the url has no snapshot. The
+     * occurrences of the replaced snapshot are dropped asynchronously.
+     */
+    public void replace(Document d) {
+        if (d == null) {
+            return;
+        }
+        // the new snapshot can only become the current one once all of its
+        // occurrences are stored
+        d.awaitOccurrences();
+
+        BasicDBObject fields = new BasicDBObject(d.toMap());
+        fields.remove("_id");
+        fields.remove(Document.VERSION);
+        BasicDBObject update = new BasicDBObject("$set", fields)
+                .append("$inc", new BasicDBObject(Document.VERSION, 1));
+
+        // the fields of the replaced snapshot that the new one does not have
+        // are removed, so that the stored snapshot is entirely replaced
+        BasicDBObject staleFields = new BasicDBObject();
+        for (String field : Document.OPTIONAL_FIELDS) {
+            if (!d.containsField(field)) {
+                staleFields.append(field, "");
+            }
+        }
+        if (!staleFields.isEmpty()) {
+            update.append("$unset", staleFields);
+        }
+
+        DBCollection collection = documentsDB.getCollection(collectionName);
+        DBObject previous = collection.findAndModify(
+                new BasicDBObject(Document.URL, d.getUrl()),
+                null, null, false, update, false, true);
+
+        long version = 1;
+        if (previous != null) {
+            Document replaced = new Document(occurrencesDB, writeQueue, (BasicDBObject) previous);
+            version = replaced.getVersion() + 1;
+            if (!replaced.getString(Document.ID).equals(d.getString(Document.ID))) {
+                reclaimer.reclaim(replaced);
+            }
+        }
+        d.put(Document.VERSION, version);
+        documentsCache.put(d);
     }
 
 
@@ -102,22 +213,31 @@ public final class DocumentCollection {
      * from its local file / cache.
      */
     public Document get(String documentUrl) {
-        try {
-            // the 'get' method will look for any document in the local files or
-            // temporary cache whose url is equal to the specified url
-            Document document = documentsCache.get(documentUrl);
-            if (document != null) {
-                return document;
-            } else {
-                // the 'null' value was added to the cache, so remove it
-                documentsCache.remove(documentUrl);
-                return null;
-            }
-        } catch (PropagatedCacheException | CacheLockSpinsExceededError ex) {
-//            // if this exception occurs, then no occurrences of the specified
-//            // document were found in this collection
-            return null;
+        Document document = documentsCache.get(documentUrl);
+        if (document != null) {
+            return document;
+        }
+
+        // the document was not in cache, so read it from the database and
+        // keep it in cache for the next access, unless a newer snapshot was
+        // cached by a concurrent replacement in the meantime
+        document = getInternal(documentUrl);
+        if (document != null) {
+            documentsCache.putIfNewer(document);
         }
+        return document;
+    }
+
+
+    /**
+     * Returns a cursor over the url and id of every stored snapshot.
+     */
+    DBCursor storedSnapshots() {
+        DBCollection collection = documentsDB.getCollection(collectionName);
+        return collection.find(
+                new BasicDBObject(),
+                new BasicDBObject(Document.URL, 1).append(Document.ID, 1)
+        );
     }
 
 
@@ -125,7 +245,7 @@ public final class DocumentCollection {
         DBCollection collection = documentsDB.getCollection(collectionName);
         BasicDBObject mongoDocument = (BasicDBObject) collection
                 .findOne(new BasicDBObject(Document.URL, documentUrl));
-        return mongoDocument != null ? new Document(occurrencesDB, mongoDocument) : null;
+        return mongoDocument != null ? new Document(occurrencesDB, writeQueue, mongoDocument) : null;
     }
 
 
@@ -139,10 +259,37 @@ public final class DocumentCollection {
     }
 
 
+    /**
+     * Returns the cache of this collection, which provides hit, miss, spill and
+     * eviction metrics.
+     */
+    public DocumentCache getCache() {
+        return documentsCache;
+    }
+
+
+    /**
+     * Returns the number of replaced snapshots whose occurrences were already
+     * dropped.
+     */
+    public long getReclaimedCount() {
+        return reclaimer.getReclaimedCount();
+    }
+
+
+    /**
+     * Stops the background reclaiming of replaced snapshots.
+     */
+    public void shutdown() {
+        reclaimer.shutdown();
+    }
+
+
     public void destroy() {
+        reclaimer.shutdown();
         DBCollection collection = documentsDB.getCollection(collectionName);
         collection.drop();
-        documentsCache.destroy();
+        documentsCache.clear();
         documentsDB.dropDatabase();
         occurrencesDB.dropDatabase();
     }
@@ -20,7 +20,10 @@ import com.edduarte.vokter.cleaner.AndCleaner;
 import com.edduarte.vokter.cleaner.Cleaner;
 import com.edduarte.vokter.cleaner.DiacriticCleaner;
 import com.edduarte.vokter.cleaner.SpecialCharsCleaner;
+import com.edduarte.vokter.parser.ParseCache;
 import com.edduarte.vokter.parser.Parser;
+import com.edduarte.vokter.parser.VolatileMask;
+import com.edduarte.vokter.persistence.WriteBehindQueue;
 import com.edduarte.vokter.reader.Reader;
 import com.edduarte.vokter.stemmer.Stemmer;
 import com.edduarte.vokter.stopper.FileStopper;
@@ -40,6 +43,8 @@ import org.slf4j.LoggerFactory;
 import java.io.InputStream;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -61,10 +66,30 @@ public class DocumentPipeline implements Callable<Document> {
 
     private final DB occurrencesDB;
 
+    private final WriteBehindQueue writeQueue;
+
     private final DocumentInput documentInput;
 
     private final Parser parser;
 
+    /**
+     * The cache of parsing results of previous snapshots, or null if every
+     * snapshot should be parsed from scratch.
+     */
+    private final ParseCache parseCache;
+
+    /**
+     * The mask of volatile tokens learned from previous snapshots, or null if
+     * no tokens should be masked.
+     */
+    private final VolatileMask volatileMask;
+
+    /**
+     * The tokens that are never masked, or null if every volatile token
+     * should be masked.
+     */
+    private final Predicate<String> keptTokens;
+
     private final boolean isStoppingEnabled;
 
     private final boolean isStemmingEnabled;
@@ -74,15 +99,23 @@ public class DocumentPipeline implements Callable<Document> {
 
     public DocumentPipeline(final LanguageDetector langDetector,
                             final DB occurrencesDB,
+                            final WriteBehindQueue writeQueue,
                             final DocumentInput documentInput,
                             final Parser parser,
+                            final ParseCache parseCache,
+                            final VolatileMask volatileMask,
+                            final Predicate<String> keptTokens,
                             final boolean isStoppingEnabled,
                             final boolean isStemmingEnabled,
                             final boolean ignoreCase) {
         this.occurrencesDB = occurrencesDB;
+        this.writeQueue = writeQueue;
         this.langDetector = langDetector;
         this.documentInput = documentInput;
         this.parser = parser;
+        this.parseCache = parseCache;
+        this.volatileMask = volatileMask;
+        this.keptTokens = keptTokens;
         this.isStoppingEnabled = isStoppingEnabled;
         this.isStemmingEnabled = isStemmingEnabled;
         this.ignoreCase = ignoreCase;
@@ -123,24 +156,40 @@ public class DocumentPipeline implements Callable<Document> {
         // The contents are copied to this object so that it keeps them in its
         // original form, without any transformations that come from cleaning,
         // stopping or stemming.
-        Document document = new Document(occurrencesDB, url, content.toString());
+        Document document = new Document(occurrencesDB, writeQueue, url, content.toString());
 
 
-        // infers the document language
-        String languageCode = "en";
-        if (langDetector != null) {
-            TextObjectFactory textObjectFactory =
-                    CommonTextObjectFactories.forDetectingOnLargeText();
-            TextObject textObject = textObjectFactory.forText(content);
-            Optional<LdLocale> lang = langDetector.detect(textObject);
-            languageCode = lang.isPresent() ? lang.get().getLanguage() : "en";
+        // splits the contents into chunks, so that the chunks that are
+        // unchanged since the previous snapshot of this url reuse its parsing
+        // results instead of being parsed again
+        ParseCache.Chunks chunks = null;
+        if (parseCache != null) {
+            String settings = parser.getClass().getName() + ":" + isStoppingEnabled
+                    + ":" + isStemmingEnabled + ":" + ignoreCase;
+            chunks = parseCache.split(url, content, settings);
+        }
+
+
+        // infers the document language, unless most of the contents are
+        // unchanged since the previous snapshot
+        String languageCode = chunks != null ? chunks.getCachedLanguage() : null;
+        if (languageCode == null) {
+            languageCode = "en";
+            if (langDetector != null) {
+                TextObjectFactory textObjectFactory =
+                        CommonTextObjectFactories.forDetectingOnLargeText();
+                TextObject textObject = textObjectFactory.forText(content);
+                Optional<LdLocale> lang = langDetector.detect(textObject);
+                languageCode = lang.isPresent() ? lang.get().getLanguage() : "en";
+            }
         }
+        boolean isParsingRequired = chunks == null || !chunks.isCached(languageCode);
 
 
         // sets the parser's stopper according to the detected language
         // if the detected language is not supported, stopping is ignored
         Stopper stopper = null;
-        if (isStoppingEnabled) {
+        if (isStoppingEnabled && isParsingRequired) {
             stopper = new FileStopper(languageCode);
             if (stopper.isEmpty()) {
                 // if no compatible stopwords were found, use the
@@ -153,7 +202,7 @@ public class DocumentPipeline implements Callable<Document> {
         // sets the parser's stemmer according to the detected language
         // if the detected language is not supported, stemming is ignored
         Stemmer stemmer = null;
-        if (isStemmingEnabled) {
+        if (isStemmingEnabled && isParsingRequired) {
             Class<? extends Stemmer> stemmerClass =
                     OSGiManager.getCompatibleStemmer(languageCode);
             if (stemmerClass != null) {
@@ -170,7 +219,15 @@ public class DocumentPipeline implements Callable<Document> {
 
         // detects tokens from the document and loads them into separate
         // objects in memory
-        List<Parser.Result> results = parser.parse(content, stopper, stemmer, ignoreCase);
+        List<Parser.Result> results;
+        if (chunks != null) {
+            Stopper chunkStopper = stopper;
+            Stemmer chunkStemmer = stemmer;
+            results = chunks.parse(languageCode, chunk ->
+                    parser.parse(chunk, chunkStopper, chunkStemmer, ignoreCase));
+        } else {
+            results = parser.parse(content, stopper, stemmer, ignoreCase);
+        }
 
         if (stopper != null) {
             stopper.destroy();
@@ -213,6 +270,28 @@ public class DocumentPipeline implements Callable<Document> {
         content = null;
 
 
+        // masks the tokens that change on every snapshot of this url, like
+        // timestamps and counters, so that they are neither stored nor diffed
+        if (volatileMask != null) {
+            document.setMaskedCount(volatileMask.mask(url, results, keptTokens));
+        }
+
+
+        // computes the similarity hashes of the processed tokens, so that the
+        // differences between this snapshot and the next one can be
+        // estimated without comparing their occurrences, and so that their
+        // unchanged chunks can be skipped when diffing them
+        List<String> tokens = results.stream()
+                .map(r -> r.text.toString())
+                .collect(Collectors.toList());
+        document.setSimilarityHashes(tokens);
+
+
+        // stores which terms this snapshot contains, so that diffing it can
+        // be skipped when no subscribed keyword occurs in it
+        document.setTermFilter(tokens);
+
+
         // create a database collection for this document terms and converts
         // parser results into Term objects
 
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.document;
+
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Background garbage collector that removes stored data that is no longer
+ * reachable from an active detection job, namely:
+ * <ul>
+ * <li>stored snapshots of urls that are no longer being watched;</li>
+ * <li>occurrence collections that belong to no stored snapshot, left behind
+ * by pipelines that failed halfway or by reclaims lost on shutdown;</li>
+ * <li>difference collections of urls that are no longer being watched.</li>
+ * </ul>
+ * To avoid collecting data that is still being written, an unreachable
+ * collection is only removed if it was also found unreachable in the previous
+ * collection cycle. Removals are throttled and capped per cycle, so that each
+ * cycle only reclaims a bounded, incremental amount of data.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class OrphanCollector {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrphanCollector.class);
+
+    /**
+     * The maximum number of removals performed on each cycle.
+     */
+    private static final int MAX_REMOVALS_PER_CYCLE = 200;
+
+    /**
+     * The pause between two consecutive removals, in milliseconds.
+     */
+    private static final long REMOVAL_PAUSE_MILLIS = 50;
+
+    private final DocumentCollection collection;
+
+    private final DB occurrencesDB;
+
+    private final DB differencesDB;
+
+    /**
+     * Supplies the urls with an active detection job, or null if these
+     * could not be obtained (in which case the cycle is skipped).
+     */
+    private final Supplier<Set<String>> activeUrlsSupplier;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private Set<String> suspectOccurrences;
+
+    private Set<String> suspectDifferences;
+
+    private Set<String> suspectSnapshots;
+
+    private final AtomicLong reclaimedCollections;
+
+    private final AtomicLong reclaimedSnapshots;
+
+    private final AtomicLong reclaimedBytes;
+
+
+    public OrphanCollector(final DocumentCollection collection,
+                           final DB occurrencesDB,
+                           final DB differencesDB,
+                           final Supplier<Set<String>> activeUrlsSupplier) {
+        this.collection = collection;
+        this.occurrencesDB = occurrencesDB;
+        this.differencesDB = differencesDB;
+        this.activeUrlsSupplier = activeUrlsSupplier;
+        this.executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "vokter_orphan_collector");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        this.suspectOccurrences = new HashSet<>();
+        this.suspectDifferences = new HashSet<>();
+        this.suspectSnapshots = new HashSet<>();
+        this.reclaimedCollections = new AtomicLong(0);
+        this.reclaimedSnapshots = new AtomicLong(0);
+        this.reclaimedBytes = new AtomicLong(0);
+    }
+
+
+    /**
+     * Starts running collection cycles periodically, with the specified delay
+     * between the end of a cycle and the start of the next one.
+     */
+    public void start(long period, TimeUnit unit) {
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                collect();
+            } catch (MongoException ex) {
+                logger.error(ex.getMessage(), ex);
+            }
+        }, period, period, unit);
+    }
+
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * Performs a single collection cycle.
+     */
+    void collect() {
+        Set<String> activeUrls = activeUrlsSupplier.get();
+        if (activeUrls == null) {
+            return;
+        }
+        int budget = MAX_REMOVALS_PER_CYCLE;
+
+        // 1st) stored snapshots of urls that are no longer watched
+        Set<String> referencedOccurrences = new HashSet<>();
+        Set<String> unwatchedSnapshots = new HashSet<>();
+        storedSnapshots().forEach((url, id) -> {
+            referencedOccurrences.add(Document.occurrencesCollectionName(url, id));
+            if (!activeUrls.contains(url)) {
+                unwatchedSnapshots.add(url);
+            }
+        });
+        for (String url : unwatchedSnapshots) {
+            if (budget <= 0 || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            if (suspectSnapshots.contains(url)) {
+                reclaimedBytes.addAndGet(removeSnapshot(url));
+                reclaimedSnapshots.incrementAndGet();
+                budget--;
+                pause();
+            }
+        }
+        suspectSnapshots = unwatchedSnapshots;
+
+        // 2nd) occurrence collections that belong to no stored snapshot
+        Set<String> unreferencedOccurrences = new HashSet<>();
+        for (String name : collectionNames(occurrencesDB)) {
+            if (!name.startsWith("system.") && !referencedOccurrences.contains(name)) {
+                unreferencedOccurrences.add(name);
+            }
+        }
+        budget = dropConfirmed(occurrencesDB, unreferencedOccurrences, suspectOccurrences, budget);
+        suspectOccurrences = unreferencedOccurrences;
+
+        // 3rd) difference collections of urls that are no longer watched
+        Set<String> unwatchedDifferences = new HashSet<>();
+        for (String name : collectionNames(differencesDB)) {
+            if (!name.startsWith("system.") && !activeUrls.contains(name)) {
+                unwatchedDifferences.add(name);
+            }
+        }
+        dropConfirmed(differencesDB, unwatchedDifferences, suspectDifferences, budget);
+        suspectDifferences = unwatchedDifferences;
+
+        logger.info("Completed orphan collection cycle: {} collections, {} " +
+                        "snapshots and {} bytes reclaimed so far.",
+                reclaimedCollections.get(), reclaimedSnapshots.get(),
+                reclaimedBytes.get());
+    }
+
+
+    /**
+     * Drops the unreachable collections that were already unreachable on the
+     * previous cycle, and returns the remaining removal budget.
+     */
+    private int dropConfirmed(DB db, Set<String> unreachable, Set<String> suspects, int budget) {
+        for (String name : unreachable) {
+            if (budget <= 0 || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            if (suspects.contains(name)) {
+                reclaimedBytes.addAndGet(dropCollection(db, name));
+                reclaimedCollections.incrementAndGet();
+                budget--;
+                pause();
+            }
+        }
+        return budget;
+    }
+
+
+    /**
+     * Returns the id of the stored snapshot of each url.
+     */
+    Map<String, String> storedSnapshots() {
+        Map<String, String> snapshots = new HashMap<>();
+        try (DBCursor cursor = collection.storedSnapshots()) {
+            while (cursor.hasNext()) {
+                DBObject obj = cursor.next();
+                snapshots.put((String) obj.get(Document.URL), (String) obj.get(Document.ID));
+            }
+        }
+        return snapshots;
+    }
+
+
+    Collection<String> collectionNames(DB db) {
+        return db.getCollectionNames();
+    }
+
+
+    /**
+     * Removes the stored snapshot of the specified url, and returns the
+     * storage size of its occurrences.
+     */
+    long removeSnapshot(String url) {
+        long size = 0;
+        Document d = collection.get(url);
+        if (d != null) {
+            size = sizeOf(d.getOccurrencesCollection());
+        }
+        collection.remove(url);
+        return size;
+    }
+
+
+    /**
+     * Drops the specified collection, and returns its storage size.
+     */
+    long dropCollection(DB db, String name) {
+        DBCollection c = db.getCollection(name);
+        long size = sizeOf(c);
+        c.drop();
+        return size;
+    }
+
+
+    private static long sizeOf(DBCollection c) {
+        CommandResult stats = c.getStats();
+        Object size = stats.get("storageSize");
+        return size instanceof Number ? ((Number) size).longValue() : 0;
+    }
+
+
+    void pause() {
+        try {
+            Thread.sleep(REMOVAL_PAUSE_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Returns the number of orphaned occurrence and difference collections
+     * that were dropped.
+     */
+    public long getReclaimedCollections() {
+        return reclaimedCollections.get();
+    }
+
+
+    /**
+     * Returns the number of stored snapshots of unwatched urls that were
+     * removed.
+     */
+    public long getReclaimedSnapshots() {
+        return reclaimedSnapshots.get();
+    }
+
+
+    /**
+     * Returns the approximate storage size, in bytes, of every collection that
+     * was dropped.
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+}
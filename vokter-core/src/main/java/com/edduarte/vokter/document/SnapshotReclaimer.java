@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.document;
+
+import com.mongodb.MongoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background worker that drops the stored occurrences of replaced snapshots,
+ * keeping these deletes off the critical path of difference detection.
+ * <p>
+ * Snapshots are only reclaimed after a grace period, so that readers that
+ * obtained the replaced snapshot right before it was replaced can still
+ * finish using it.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+final class SnapshotReclaimer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotReclaimer.class);
+
+    private static final long GRACE_PERIOD_SECONDS = 60;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final AtomicLong reclaimedCount;
+
+
+    SnapshotReclaimer(String name) {
+        this.executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, name + "_reclaimer");
+            t.setDaemon(true);
+            return t;
+        });
+        // snapshots that are still pending on shutdown are left behind as
+        // orphans, instead of delaying the shutdown by the grace period
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.reclaimedCount = new AtomicLong(0);
+    }
+
+
+    /**
+     * Schedules the stored occurrences of the specified replaced snapshot to
+     * be dropped once the grace period elapses.
+     */
+    void reclaim(Document replaced) {
+        executor.schedule(() -> {
+            try {
+                replaced.destroy();
+                reclaimedCount.incrementAndGet();
+            } catch (MongoException ex) {
+                logger.error(ex.getMessage(), ex);
+            }
+        }, GRACE_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+
+    long getReclaimedCount() {
+        return reclaimedCount.get();
+    }
+
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -17,7 +17,9 @@
 package com.edduarte.vokter.job;
 
 import com.edduarte.vokter.diff.Difference;
+import com.edduarte.vokter.diff.DifferenceEvent;
 import com.edduarte.vokter.diff.DifferenceMatcher;
+import com.edduarte.vokter.diff.KeywordAutomaton;
 import com.edduarte.vokter.keyword.Keyword;
 import com.edduarte.vokter.model.v1.SubscribeRequest;
 import com.edduarte.vokter.util.Constants;
@@ -36,8 +38,13 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Calendar;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
@@ -50,6 +57,17 @@ public class JobManager {
 
     private static final String SCHEDULER_NAME = "Vokter_Scheduler";
 
+    /**
+     * The number of threads that run matching passes and send notifications.
+     */
+    private static final int MATCHING_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The maximum time to wait for pending matching passes when stopping, in
+     * seconds.
+     */
+    private static final long MATCHING_SHUTDOWN_TIMEOUT = 30;
+
     private static final Map<String, JobManager> activeManagers = new HashMap<>();
 
     private final String managerName;
@@ -60,6 +78,39 @@ public class JobManager {
 
     private Scheduler scheduler;
 
+    /**
+     * The subscriptions of each document url, by client url, loaded from the
+     * job store on the first matching pass of that url and invalidated when
+     * its subscriptions change. Since these are only invalidated by this
+     * manager, the job store must not be shared with other schedulers.
+     */
+    private final Map<String, Map<String, Subscription>> subscriptions;
+
+    /**
+     * The executor of matching passes and of debounced notifications, so
+     * that detection jobs only hand off their results to it.
+     */
+    private final ScheduledThreadPoolExecutor matchingExecutor;
+
+    /**
+     * The built keywords and compiled automaton of the subscriptions of each
+     * document url, which are kept until its subscriptions change.
+     */
+    private final Map<String, CompiledSubscriptions> compiledSubscriptions;
+
+    /**
+     * The document urls whose matching pass is waiting to run, each with the
+     * subscriptions and keywords of its latest detection. Detections of a url
+     * that complete while its pass is waiting share that pass.
+     */
+    private final Map<String, CompiledSubscriptions> pendingMatches;
+
+    /**
+     * The notifications of each subscription, by document url and client
+     * url, which are debounced by the interval of the subscription.
+     */
+    private final Map<String, Notification> notifications;
+
 
     private JobManager(final String managerName,
                        int detectionInterval,
@@ -67,6 +118,18 @@ public class JobManager {
         this.managerName = managerName;
         this.handler = handler;
         this.detectionInterval = detectionInterval;
+        this.subscriptions = new ConcurrentHashMap<>();
+        this.matchingExecutor = new ScheduledThreadPoolExecutor(MATCHING_THREADS, r -> {
+            Thread t = new Thread(r, "vokter_matching");
+            t.setDaemon(true);
+            return t;
+        });
+        // debounced notifications are sent right away when stopping, instead
+        // of waiting for their interval to elapse
+        this.matchingExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.compiledSubscriptions = new ConcurrentHashMap<>();
+        this.pendingMatches = new ConcurrentHashMap<>();
+        this.notifications = new ConcurrentHashMap<>();
     }
 
 
@@ -93,6 +156,8 @@ public class JobManager {
         StdSchedulerFactory factory = new StdSchedulerFactory();
         scheduler = factory.getScheduler();
         factory = null;
+        warnIfClustered();
+        removeMatchingTriggers();
         scheduler.start();
     }
 
@@ -107,10 +172,40 @@ public class JobManager {
         );
         scheduler = factory.getScheduler(SCHEDULER_NAME);
         factory = null;
+        warnIfClustered();
+        removeMatchingTriggers();
         scheduler.start();
     }
 
 
+    private void warnIfClustered() throws SchedulerException {
+        if (scheduler.getMetaData().isJobStoreClustered()) {
+            logger.warn("The job store of '{}' is clustered, but subscriptions " +
+                    "are cached by each scheduler, so subscriptions changed " +
+                    "through other schedulers will not be matched.", managerName);
+        }
+    }
+
+
+    /**
+     * Converts the matching jobs stored by previous versions, which were
+     * scheduled with their own triggers, into durable subscriptions without
+     * triggers.
+     */
+    private void removeMatchingTriggers() throws SchedulerException {
+        for (JobKey k : scheduler.getJobKeys(GroupMatcher.groupStartsWith("matching"))) {
+            List<? extends Trigger> triggers = scheduler.getTriggersOfJob(k);
+            if (!triggers.isEmpty()) {
+                JobDetail jobDetail = scheduler.getJobDetail(k);
+                scheduler.addJob(jobDetail.getJobBuilder().storeDurably().build(), true);
+                for (Trigger t : triggers) {
+                    scheduler.unscheduleJob(t.getKey());
+                }
+            }
+        }
+    }
+
+
     public boolean createJob(final SubscribeRequest request) {
 
         String documentUrl = request.getDocumentUrl();
@@ -148,26 +243,24 @@ public class JobManager {
                     .usingJobData(MatchingJob.KEYWORDS, keywordJson)
                     .usingJobData(MatchingJob.IGNORE_ADDED, request.getIgnoreAdded())
                     .usingJobData(MatchingJob.IGNORE_REMOVED, request.getIgnoreRemoved())
-                    .usingJobData(MatchingJob.HAS_NEW_DIFFS, false)
-                    .build();
-
-            GregorianCalendar cal = new GregorianCalendar();
-            cal.add(Calendar.SECOND, request.getInterval());
-
-            Trigger matchingTrigger = TriggerBuilder.newTrigger()
-                    .withIdentity(clientUrl, "matching" + documentUrl)
-                    .startAt(cal.getTime())
-                    .withSchedule(SimpleScheduleBuilder.simpleSchedule()
-                            .withIntervalInSeconds(request.getInterval())
-                            .repeatForever())
+                    .usingJobData(MatchingJob.INTERVAL, request.getInterval())
+                    .storeDurably()
                     .build();
 
+            // the subscription is stored without triggers, since it is matched
+            // by the matching pass of its document after each detection
             try {
-                scheduler.scheduleJob(matchingJob, matchingTrigger);
+                scheduler.addJob(matchingJob, false);
             } catch (ObjectAlreadyExistsException ex) {
                 return false;
+            } finally {
+                invalidateSubscriptions(documentUrl);
             }
 
+            // build the keywords of the subscription right away, so that
+            // matching passes obtain them already built
+            request.getKeywords().forEach(this::callBuildKeyword);
+
         } catch (SchedulerException | JsonProcessingException ex) {
             logger.error(ex.getMessage(), ex);
         }
@@ -184,7 +277,9 @@ public class JobManager {
                 sendTimeoutResponse(documentUrl, clientUrl);
                 scheduler.interrupt(k);
                 scheduler.deleteJob(k);
+                notifications.remove(notificationKey(documentUrl, clientUrl));
             }
+            invalidateSubscriptions(documentUrl);
 
             JobKey detectJobKey = new JobKey(documentUrl, "detection" + documentUrl);
             scheduler.interrupt(detectJobKey);
@@ -197,6 +292,24 @@ public class JobManager {
     }
 
 
+    /**
+     * Returns the urls of every document with an active detection job, or
+     * null if these could not be obtained from the scheduler.
+     */
+    public Set<String> getActiveDocumentUrls() {
+        try {
+            Set<String> urls = new HashSet<>();
+            for (JobKey k : scheduler.getJobKeys(GroupMatcher.groupStartsWith("detection"))) {
+                urls.add(k.getName());
+            }
+            return urls;
+        } catch (SchedulerException ex) {
+            logger.error(ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+
     public boolean cancelMatchingJob(String documentUrl, final String clientUrl) {
         JobKey matchingJobKey = new JobKey(clientUrl, "matching" + documentUrl);
         return cancelMatchingJobAux(documentUrl, matchingJobKey);
@@ -206,6 +319,8 @@ public class JobManager {
         try {
             scheduler.interrupt(jobKey);
             boolean wasDeleted = scheduler.deleteJob(jobKey);
+            invalidateSubscriptions(documentUrl);
+            notifications.remove(notificationKey(documentUrl, jobKey.getName()));
 
             if (wasDeleted) {
                 // check if there are more match jobs for the same request url
@@ -236,37 +351,47 @@ public class JobManager {
         } catch (SchedulerException ex) {
             logger.error(ex.getMessage(), ex);
         }
+
+        // differences that are waiting to be matched are still matched, and
+        // debounced notifications are sent right away, so that no detected
+        // change is lost when stopping
+        matchingExecutor.shutdown();
+        try {
+            if (!matchingExecutor.awaitTermination(MATCHING_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                logger.warn("Stopped '{}' before every pending matching pass " +
+                        "was completed.", managerName);
+            }
+        } catch (InterruptedException ex) {
+            logger.error(ex.getMessage(), ex);
+            Thread.currentThread().interrupt();
+        }
+        notifications.values().forEach(this::sendNotification);
     }
 
 
     final boolean callDetectDiffImpl(String documentUrl) {
-        boolean wasSuccessful = handler.detectDifferences(documentUrl);
+        Map<String, Subscription> urlSubscriptions = getSubscriptions(documentUrl);
+        if (urlSubscriptions == null) {
+            // without the subscriptions, differences are always detected
+            return handler.detectDifferences(documentUrl, null);
+        }
 
-        // notify all matching jobs of that url that there are new differences to match
-        if (wasSuccessful) {
-            try {
-                Set<JobKey> keys = scheduler.getJobKeys(GroupMatcher.groupEquals("matching" + documentUrl));
-                for (JobKey k : keys) {
-                    JobDetail jobDetail = scheduler.getJobDetail(k);
-                    List<? extends Trigger> triggerList = scheduler.getTriggersOfJob(k);
-                    if (!triggerList.isEmpty()) {
-                        Trigger trigger = triggerList.get(0);
-
-                        // update job to say that he has new diffs
-                        JobDataMap dataMap = jobDetail.getJobDataMap();
-                        dataMap.put(MatchingJob.HAS_NEW_DIFFS, true);
-
-                        attemptRefreshJob(jobDetail, trigger, 10);
-
-                    } else {
-                        // invalid state, where there is still an active job
-                        // without triggers
-                        // unschedule it!
-                        cancelMatchingJobAux(documentUrl, k);
-                    }
+        // the keywords of the subscriptions are compiled before detection,
+        // which is skipped if none of them occurs in the document
+        CompiledSubscriptions compiled = compileSubscriptions(documentUrl, urlSubscriptions);
+
+        boolean wasSuccessful = handler.detectDifferences(documentUrl, compiled.automaton);
+
+        // hand off the new differences to a matching pass of every
+        // subscription of that url, which runs on the matching executor
+        if (wasSuccessful && !urlSubscriptions.isEmpty()) {
+            if (pendingMatches.put(documentUrl, compiled) == null) {
+                try {
+                    matchingExecutor.execute(() -> runMatching(documentUrl));
+                } catch (RejectedExecutionException ex) {
+                    // this manager is stopping, so match right away
+                    runMatching(documentUrl);
                 }
-            } catch (SchedulerException ex) {
-                logger.error(ex.getMessage(), ex);
             }
         }
 
@@ -274,22 +399,206 @@ public class JobManager {
     }
 
 
-    private void attemptRefreshJob(JobDetail jobDetail, Trigger trigger, int tries) {
-        if (tries > 0) {
-            try {
-                scheduler.unscheduleJob(trigger.getKey());
-                scheduler.scheduleJob(jobDetail, trigger);
-            } catch (SchedulerException ignored) {
-                // could not refresh job because the it did not unschedule properly
-                int newCount = tries - 1;
-                logger.info("Error while refreshing job, attempting " + newCount + " more times.");
-                attemptRefreshJob(jobDetail, trigger, newCount);
+    /**
+     * Returns the built keywords and compiled automaton of the specified
+     * subscriptions of the specified url, which are only built and compiled
+     * again once these subscriptions are replaced by new ones. Every distinct
+     * keyword of the subscriptions is built only once.
+     */
+    private CompiledSubscriptions compileSubscriptions(String documentUrl,
+                                                       Map<String, Subscription> urlSubscriptions) {
+        CompiledSubscriptions compiled = compiledSubscriptions.get(documentUrl);
+        if (compiled != null && compiled.subscriptions == urlSubscriptions) {
+            return compiled;
+        }
+
+        Map<String, Keyword> keywords = new HashMap<>();
+        for (Subscription s : urlSubscriptions.values()) {
+            for (String input : s.keywords) {
+                keywords.computeIfAbsent(input, this::callBuildKeyword);
+            }
+        }
+        keywords.values().removeIf(Objects::isNull);
+        KeywordAutomaton automaton = KeywordAutomaton.compile(keywords.values());
+        compiled = new CompiledSubscriptions(urlSubscriptions, keywords, automaton);
+        compiledSubscriptions.put(documentUrl, compiled);
+        return compiled;
+    }
+
+
+    private void runMatching(String documentUrl) {
+        CompiledSubscriptions match = pendingMatches.remove(documentUrl);
+        if (match == null) {
+            return;
+        }
+        try {
+            matchSubscriptions(documentUrl, match.subscriptions, match.keywords, match.automaton);
+        } catch (RuntimeException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+    }
+
+
+    /**
+     * Matches the existing differences of the specified document url against
+     * the keywords of every one of its subscriptions in a single pass, and
+     * sends each client the results of its own keywords.
+     */
+    private void matchSubscriptions(String documentUrl,
+                                    Map<String, Subscription> urlSubscriptions,
+                                    Map<String, Keyword> keywords,
+                                    KeywordAutomaton automaton) {
+        // match them, while lazily reading the differences only once
+        Stream<Difference> diffs = callGetDiffsImpl(documentUrl);
+        DifferenceMatcher matcher = new DifferenceMatcher(automaton, diffs, false, false);
+        Set<DifferenceMatcher.Result> results = matcher.call();
+        if (results.isEmpty()) {
+            return;
+        }
+
+        for (Subscription s : urlSubscriptions.values()) {
+            Set<Keyword> clientKeywords = s.keywords.stream()
+                    .map(keywords::get)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toSet());
+            Set<DifferenceMatcher.Result> clientResults = results.stream()
+                    .filter(r -> clientKeywords.contains(r.keyword))
+                    .filter(r -> !(s.ignoreAdded && r.action == DifferenceEvent.inserted))
+                    .filter(r -> !(s.ignoreRemoved && r.action == DifferenceEvent.deleted))
+                    .collect(Collectors.toSet());
+            if (!clientResults.isEmpty()) {
+                notify(documentUrl, s, clientResults);
+            }
+        }
+    }
+
+
+    /**
+     * Sends the specified results to the client of the specified subscription
+     * right away, unless the client was notified less than the interval of
+     * the subscription ago. In that case, results are merged with the ones of
+     * later matching passes, and sent once the interval elapses.
+     */
+    private void notify(String documentUrl,
+                        Subscription s,
+                        Set<DifferenceMatcher.Result> results) {
+        Notification n = notifications.computeIfAbsent(
+                notificationKey(documentUrl, s.clientUrl),
+                k -> new Notification(documentUrl, s.clientUrl));
+        synchronized (n) {
+            n.pending.addAll(results);
+            if (n.isScheduled) {
+                return;
+            }
+            long delay = n.lastSentAt + TimeUnit.SECONDS.toMillis(s.interval) - System.currentTimeMillis();
+            if (delay > 0) {
+                try {
+                    matchingExecutor.schedule(() -> sendNotification(n), delay, TimeUnit.MILLISECONDS);
+                    n.isScheduled = true;
+                    return;
+                } catch (RejectedExecutionException ex) {
+                    // this manager is stopping, so send right away
+                }
+            }
+        }
+        sendNotification(n);
+    }
+
+
+    private void sendNotification(Notification n) {
+        Set<DifferenceMatcher.Result> results;
+        synchronized (n) {
+            results = n.pending;
+            n.pending = new HashSet<>();
+            n.isScheduled = false;
+            n.lastSentAt = System.currentTimeMillis();
+        }
+        if (results.isEmpty() ||
+                notifications.get(notificationKey(n.documentUrl, n.clientUrl)) != n) {
+            // the subscription was canceled in the meantime
+            return;
+        }
+        try {
+            responseOk(n.documentUrl, n.clientUrl, results);
+        } catch (JsonProcessingException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+    }
+
+
+    private static String notificationKey(String documentUrl, String clientUrl) {
+        return documentUrl + " " + clientUrl;
+    }
+
+
+    /**
+     * Returns the subscriptions of the specified document url by client url,
+     * or null if these could not be loaded from the scheduler.
+     */
+    private Map<String, Subscription> getSubscriptions(String documentUrl) {
+        Map<String, Subscription> urlSubscriptions = subscriptions.get(documentUrl);
+        if (urlSubscriptions != null) {
+            return urlSubscriptions;
+        }
+        synchronized (subscriptions) {
+            urlSubscriptions = subscriptions.get(documentUrl);
+            if (urlSubscriptions == null) {
+                urlSubscriptions = loadSubscriptions(documentUrl);
+                if (urlSubscriptions != null) {
+                    subscriptions.put(documentUrl, urlSubscriptions);
+                }
             }
+            return urlSubscriptions;
+        }
+    }
+
+
+    private Map<String, Subscription> loadSubscriptions(String documentUrl) {
+        Map<String, Subscription> urlSubscriptions = new HashMap<>();
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            Set<JobKey> keys = scheduler.getJobKeys(GroupMatcher.groupEquals("matching" + documentUrl));
+            for (JobKey k : keys) {
+                JobDetail jobDetail = scheduler.getJobDetail(k);
+                if (jobDetail == null) {
+                    continue;
+                }
+                JobDataMap dataMap = jobDetail.getJobDataMap();
+                List<String> keywords = mapper.readValue(dataMap.getString(MatchingJob.KEYWORDS), ArrayList.class);
+                urlSubscriptions.put(k.getName(), new Subscription(
+                        k.getName(),
+                        keywords,
+                        dataMap.getBoolean(MatchingJob.IGNORE_ADDED),
+                        dataMap.getBoolean(MatchingJob.IGNORE_REMOVED),
+                        // subscriptions stored by previous versions are not
+                        // debounced
+                        dataMap.containsKey(MatchingJob.INTERVAL)
+                                ? Math.max(dataMap.getInt(MatchingJob.INTERVAL), 0)
+                                : 0
+                ));
+            }
+        } catch (SchedulerException | IOException ex) {
+            logger.error(ex.getMessage(), ex);
+            return null;
+        }
+        return urlSubscriptions;
+    }
+
+
+    /**
+     * Discards the loaded subscriptions of the specified document url. This
+     * must be called after its subscriptions are changed in the scheduler, and
+     * waits for loads that could have missed that change.
+     */
+    private void invalidateSubscriptions(String documentUrl) {
+        synchronized (subscriptions) {
+            subscriptions.remove(documentUrl);
         }
+        compiledSubscriptions.remove(documentUrl);
     }
 
 
-    final List<Difference> callGetDiffsImpl(String url) {
+    final Stream<Difference> callGetDiffsImpl(String url) {
         return handler.getExistingDifferences(url);
     }
 
@@ -351,4 +660,81 @@ public class JobManager {
         }
         return false;
     }
+
+
+    private static final class Subscription {
+
+        private final String clientUrl;
+
+        private final List<String> keywords;
+
+        private final boolean ignoreAdded;
+
+        private final boolean ignoreRemoved;
+
+        /**
+         * The minimum time between two notifications, in seconds.
+         */
+        private final int interval;
+
+
+        private Subscription(final String clientUrl,
+                             final List<String> keywords,
+                             final boolean ignoreAdded,
+                             final boolean ignoreRemoved,
+                             final int interval) {
+            this.clientUrl = clientUrl;
+            this.keywords = keywords;
+            this.ignoreAdded = ignoreAdded;
+            this.ignoreRemoved = ignoreRemoved;
+            this.interval = interval;
+        }
+    }
+
+
+    /**
+     * The subscriptions of a url, with their built keywords and compiled
+     * automaton.
+     */
+    private static final class CompiledSubscriptions {
+
+        private final Map<String, Subscription> subscriptions;
+
+        private final Map<String, Keyword> keywords;
+
+        private final KeywordAutomaton automaton;
+
+
+        private CompiledSubscriptions(final Map<String, Subscription> subscriptions,
+                                      final Map<String, Keyword> keywords,
+                                      final KeywordAutomaton automaton) {
+            this.subscriptions = subscriptions;
+            this.keywords = keywords;
+            this.automaton = automaton;
+        }
+    }
+
+
+    /**
+     * The results waiting to be sent to a client, and when it was last
+     * notified.
+     */
+    private static final class Notification {
+
+        private final String documentUrl;
+
+        private final String clientUrl;
+
+        private Set<DifferenceMatcher.Result> pending = new HashSet<>();
+
+        private long lastSentAt;
+
+        private boolean isScheduled;
+
+
+        private Notification(final String documentUrl, final String clientUrl) {
+            this.documentUrl = documentUrl;
+            this.clientUrl = clientUrl;
+        }
+    }
 }
@@ -17,9 +17,10 @@
 package com.edduarte.vokter.job;
 
 import com.edduarte.vokter.diff.Difference;
+import com.edduarte.vokter.diff.KeywordAutomaton;
 import com.edduarte.vokter.keyword.Keyword;
 
-import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
@@ -33,13 +34,19 @@ public interface JobManagerHandler {
      * snapshot and the new one. Once differences are collected, saves the resulting
      * index of all occurrences of the new snapshot for future query and comparison
      * jobs.
+     * <p>
+     * If none of the specified keywords, subscribed to the url, might occur in
+     * either snapshot, no differences can match them, so differences are not
+     * detected and the existing differences are removed. If the keywords are
+     * null, differences are always detected.
      */
-    boolean detectDifferences(String url);
+    boolean detectDifferences(String url, KeywordAutomaton keywords);
 
     /**
-     * Collects the existing differences that were stored in the database.
+     * Lazily collects the existing differences that were stored in the
+     * database. The returned stream must be closed after being consumed.
      */
-    List<Difference> getExistingDifferences(String url);
+    Stream<Difference> getExistingDifferences(String url);
 
     /**
      * Removes existing differences for the specified url
@@ -47,7 +54,9 @@ public interface JobManagerHandler {
     void removeExistingDifferences(String url);
 
     /**
-     * Process and build keyword objects based on this context configuration
+     * Process and build keyword objects based on this context configuration.
+     * Keywords are never modified once built, so the same keyword object may
+     * be returned for equal inputs.
      */
     Keyword buildKeyword(String keywordInput);
 }
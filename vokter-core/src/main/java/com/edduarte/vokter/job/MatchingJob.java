@@ -16,91 +16,49 @@
 
 package com.edduarte.vokter.job;
 
-import com.edduarte.vokter.diff.Difference;
-import com.edduarte.vokter.diff.DifferenceMatcher;
-import com.edduarte.vokter.keyword.Keyword;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.quartz.InterruptableJob;
-import org.quartz.JobDataMap;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
-import org.quartz.JobKey;
-import org.quartz.PersistJobDataAfterExecution;
 import org.quartz.UnableToInterruptJobException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
+ * The subscription of a client to the differences of a document, stored as
+ * a durable job without triggers so that subscriptions are persisted by the
+ * job store along with detection jobs.
+ * <p>
+ * Subscriptions are not executed on their own. Instead, each detection hands
+ * off the differences of the document to the parent {@link JobManager}, which
+ * matches them once for every subscription of that document, and sends each
+ * client its own results at most once per interval of the subscription.
+ * <p>
+ * The parent manager caches the subscriptions that it reads from the job
+ * store, and only discards them when they are changed through that manager,
+ * so a job store must only be used by a single scheduler at a time.
+ *
  * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
- * @version 1.3.2
+ * @version 1.3.3
  * @since 1.0.0
  */
-@PersistJobDataAfterExecution
 public class MatchingJob implements InterruptableJob {
 
-    private static final Logger logger = LoggerFactory.getLogger(MatchingJob.class);
-
     public static final String PARENT_JOB_MANAGER = "parent_job_manager";
 
     public final static String REQUEST_URL = "request_url";
 
     public final static String KEYWORDS = "keywords";
 
-    public final static String HAS_NEW_DIFFS = "has_new_diffs";
-
     public final static String IGNORE_ADDED = "ignore_added";
 
     public final static String IGNORE_REMOVED = "ignore_removed";
 
+    public final static String INTERVAL = "interval";
+
 
     @Override
     public void execute(JobExecutionContext context)
             throws JobExecutionException {
-
-        JobKey key = context.getJobDetail().getKey();
-        String responseUrl = key.getName();
-        JobDataMap dataMap = context.getJobDetail().getJobDataMap();
-
-        String managerName = dataMap.getString(PARENT_JOB_MANAGER);
-        JobManager manager = JobManager.get(managerName);
-        if (manager == null) {
-            return;
-        }
-
-        String requestUrl = dataMap.getString(REQUEST_URL);
-
-        try {
-            ObjectMapper mapper = new ObjectMapper();
-            List<String> keywords = mapper.readValue(dataMap.getString(KEYWORDS), ArrayList.class);
-            boolean hasNewDifferences = dataMap.getBoolean(HAS_NEW_DIFFS);
-            boolean ignoreAdded = dataMap.getBoolean(IGNORE_ADDED);
-            boolean ignoreRemoved = dataMap.getBoolean(IGNORE_REMOVED);
-
-            if (hasNewDifferences) {
-                dataMap.put(HAS_NEW_DIFFS, false);
-
-                // build keywords
-                List<Keyword> kws = keywords.stream()
-                        .map(manager::callBuildKeyword)
-                        .collect(Collectors.toList());
-
-                // match them
-                List<Difference> diffs = manager.callGetDiffsImpl(requestUrl);
-                DifferenceMatcher matcher = new DifferenceMatcher(kws, diffs, ignoreAdded, ignoreRemoved);
-                Set<DifferenceMatcher.Result> results = matcher.call();
-                if (!results.isEmpty()) {
-                    manager.responseOk(requestUrl, responseUrl, results);
-                }
-            }
-        } catch (IOException ex) {
-            logger.error(ex.getMessage(), ex);
-        }
+        // only reached by triggers stored by previous versions, which are
+        // removed when the parent manager is initialized
     }
 
 
@@ -19,13 +19,26 @@ package com.edduarte.vokter.keyword;
 import com.fasterxml.jackson.annotation.JsonValue;
 import com.mongodb.BasicDBObject;
 
-import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * A Keyword represents a set of texts that should match a difference
  * detected between two snapshots of a document.
+ * <p>
+ * By default, the texts of a keyword match when all of them were added or
+ * removed together, regardless of their positions. A keyword with a slop is
+ * a phrase instead, whose texts only match when they were added or removed
+ * in the same order and with at most slop other words between them.
+ * <p>
+ * A keyword with an edit distance is fuzzy, and each of its texts also
+ * matches differences with other texts within that many edits of it.
+ * <p>
+ * Texts may also be patterns, namely wildcards or regular expressions, which
+ * match every difference whose text they match in full.
  *
  * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
  * @version 1.3.2
@@ -36,15 +49,48 @@ public final class Keyword extends BasicDBObject {
     final String originalInput;
 
     /**
-     * The set of texts that compose this search, stored in the same order as
-     * written by the user (linked hash set implementation).
+     * The texts that compose this search, stored in the same order as written
+     * by the user.
      */
-    private final Collection<String> texts;
+    private final List<String> texts;
+
+    /**
+     * The maximum number of words between the texts of this phrase, or -1 if
+     * this keyword is not a phrase.
+     */
+    private final int slop;
+
+    /**
+     * The maximum number of edits between the texts of this keyword and the
+     * texts that they match, or 0 if this keyword is not fuzzy.
+     */
+    private final int editDistance;
+
+    /**
+     * The automaton of each fuzzy text, compiled when this keyword is built.
+     * Texts that are too short to be fuzzy have no automaton.
+     */
+    private final Map<String, LevenshteinAutomaton> automata;
+
+    /**
+     * The automaton of each text that is a pattern, compiled when this
+     * keyword is built.
+     */
+    private final Map<String, PatternAutomaton> patterns;
 
 
-    Keyword(final String originalInput, final Collection<String> texts) {
+    Keyword(final String originalInput,
+            final List<String> texts,
+            final int slop,
+            final int editDistance,
+            final Map<String, LevenshteinAutomaton> automata,
+            final Map<String, PatternAutomaton> patterns) {
         this.originalInput = originalInput;
         this.texts = texts;
+        this.slop = slop;
+        this.editDistance = editDistance;
+        this.automata = automata;
+        this.patterns = patterns;
     }
 
 
@@ -55,10 +101,60 @@ public final class Keyword extends BasicDBObject {
 
 
     /**
-     * Returns a lazy access to all texts that compose this query.
+     * Returns a lazy access to all distinct texts that compose this query.
      */
     public Stream<String> textStream() {
-        return texts.stream();
+        return texts.stream().distinct();
+    }
+
+
+    /**
+     * Returns the texts that compose this query, in order and including
+     * repeated texts.
+     */
+    public List<String> getTexts() {
+        return Collections.unmodifiableList(texts);
+    }
+
+
+    /**
+     * Returns the maximum number of words between the texts of this phrase,
+     * or -1 if this keyword is not a phrase.
+     */
+    public int getSlop() {
+        return slop;
+    }
+
+
+    public boolean isPhrase() {
+        return slop >= 0;
+    }
+
+
+    /**
+     * Returns the maximum number of edits between the texts of this keyword
+     * and the texts that they match, or 0 if this keyword is not fuzzy.
+     */
+    public int getEditDistance() {
+        return editDistance;
+    }
+
+
+    /**
+     * Returns the automaton that matches the specified text of this keyword
+     * within its edit distance, or null if the text is only matched exactly.
+     */
+    public LevenshteinAutomaton getAutomaton(String text) {
+        return automata.get(text);
+    }
+
+
+    /**
+     * Returns the automaton of the pattern of the specified text of this
+     * keyword, or null if the text is not a pattern.
+     */
+    public PatternAutomaton getPattern(String text) {
+        return patterns.get(text);
     }
 
 
@@ -68,19 +164,27 @@ public final class Keyword extends BasicDBObject {
         if (o == null || getClass() != o.getClass()) return false;
 
         Keyword keyword = (Keyword) o;
-        return originalInput.equals(keyword.originalInput);
+        return slop == keyword.slop
+                && editDistance == keyword.editDistance
+                && originalInput.equals(keyword.originalInput);
     }
 
 
     @Override
     public int hashCode() {
-        return originalInput.hashCode();
+        return 31 * (31 * originalInput.hashCode() + slop) + editDistance;
     }
 
 
     @Override
     public String toString() {
-        String fullQuery = textStream().collect(Collectors.joining(" "));
+        String fullQuery = texts.stream().collect(Collectors.joining(" "));
+        if (isPhrase()) {
+            fullQuery = "\"" + fullQuery + "\"~" + slop;
+        }
+        if (editDistance > 0) {
+            fullQuery = fullQuery + " (~" + editDistance + ")";
+        }
         return "'" + fullQuery + "'";
     }
 }
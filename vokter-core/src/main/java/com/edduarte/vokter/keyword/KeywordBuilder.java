@@ -58,15 +58,25 @@ public final class KeywordBuilder {
      */
     private boolean ignoreCase;
 
-
+    /**
+     * The maximum number of words between the texts of the keyword, which
+     * makes it a phrase, or -1 if the keyword is not a phrase.
+     */
     private int slop;
 
+    /**
+     * The maximum number of edits between the texts of the keyword and the
+     * texts that they match, or 0 if the keyword is only matched exactly.
+     */
+    private int editDistance;
+
 
     private KeywordBuilder(final String keywordInput) {
         this.keywordInput = keywordInput;
         this.isStoppingEnabled = false;
         this.isStemmingEnabled = false;
         this.ignoreCase = false;
+        this.slop = -1;
     }
 
 
@@ -81,12 +91,31 @@ public final class KeywordBuilder {
     }
 
 
+    /**
+     * Builds the keyword as a phrase, whose texts must be added or removed in
+     * the same order and with at most the specified number of other words
+     * between them. Quoted inputs are always built as phrases, with the slop
+     * that follows the quotes (for example, "house of commons"~2) or with
+     * this slop.
+     */
     public KeywordBuilder withSlop(final int slop) {
         this.slop = slop;
         return this;
     }
 
 
+    /**
+     * Builds the keyword as a fuzzy keyword, whose texts also match texts
+     * within the specified number of edits (up to 2) of them. Unquoted inputs
+     * followed by an edit distance (for example, panoptes~1) are always built
+     * as fuzzy keywords.
+     */
+    public KeywordBuilder withEditDistance(final int editDistance) {
+        this.editDistance = editDistance;
+        return this;
+    }
+
+
     public KeywordBuilder withStopwords() {
         this.isStoppingEnabled = true;
         return this;
@@ -138,7 +167,15 @@ public final class KeywordBuilder {
                 // flag that forces every found token to be
                 // lower case, matching, for example, the words
                 // 'be' and 'Be' as the same token
-                ignoreCase
+                ignoreCase,
+
+                // the maximum number of words between the texts of a phrase,
+                // or -1 if the keyword is not a phrase
+                slop,
+
+                // the maximum number of edits between the texts of a fuzzy
+                // keyword and the texts that they match
+                editDistance
         );
 
         // step 5) Process the document asynchronously.
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.edduarte.vokter.keyword;
+
+import java.util.LinkedHashMap;
+import java.util.function.Function;
+
+/**
+ * A cache of built keywords, keyed by their input and by the settings that
+ * they were built with, so that the keywords of every subscription are built
+ * once and shared by every subscriber with the same input, instead of being
+ * built again on every matching pass.
+ * <p>
+ * Keywords that were built with other settings are never returned, and are
+ * evicted like every other least recently used keyword.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public final class KeywordCache {
+
+    private final int maxKeywords;
+
+    /**
+     * Access-ordered map, so that iteration starts on the least recently
+     * used keyword.
+     */
+    private final LinkedHashMap<String, Keyword> keywords;
+
+    private long hitCount;
+
+    private long missCount;
+
+
+    public KeywordCache(final int maxKeywords) {
+        this.maxKeywords = maxKeywords;
+        this.keywords = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+
+    /**
+     * Returns the keyword with the specified input that was built with the
+     * specified settings, building it with the specified function if it is
+     * not cached yet. The settings should identify every option that changes
+     * the built keyword. Returns null if the keyword could not be built.
+     */
+    public Keyword get(String input, String settings, Function<String, Keyword> buildFunction) {
+        String key = settings + ":" + input;
+        synchronized (this) {
+            Keyword keyword = keywords.get(key);
+            if (keyword != null) {
+                hitCount++;
+                return keyword;
+            }
+            missCount++;
+        }
+
+        // keywords are built outside of the lock, since building them is
+        // slow, so concurrent misses of the same keyword may build it twice
+        Keyword keyword = buildFunction.apply(input);
+        if (keyword != null) {
+            synchronized (this) {
+                keywords.put(key, keyword);
+                while (keywords.size() > maxKeywords) {
+                    keywords.remove(keywords.keySet().iterator().next());
+                }
+            }
+        }
+        return keyword;
+    }
+
+
+    public synchronized void clear() {
+        keywords.clear();
+    }
+
+
+    /**
+     * Returns the number of keywords that were obtained from this cache.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+
+    /**
+     * Returns the number of keywords that had to be built.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+}
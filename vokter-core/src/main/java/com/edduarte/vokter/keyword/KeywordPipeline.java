@@ -35,10 +35,15 @@ import it.unimi.dsi.lang.MutableString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A processing pipeline that reads, filters and tokenizes a text input,
@@ -52,6 +57,14 @@ public class KeywordPipeline implements Callable<Keyword> {
 
     private static final Logger logger = LoggerFactory.getLogger(KeywordPipeline.class);
 
+    private static final Pattern PHRASE_PATTERN = Pattern.compile("^\"(.*)\"(?:~(\\d{1,4}))?$");
+
+    private static final Pattern FUZZY_PATTERN = Pattern.compile("^([^\"]*[^\\s\"~])~(\\d)$");
+
+    private static final Pattern REGEX_PATTERN = Pattern.compile("^/(.+)/$");
+
+    private static final Pattern WILDCARD_PATTERN = Pattern.compile("[^\\s\"]*[*?][^\\s\"]*");
+
     private final LanguageDetector langDetector;
 
     private final String queryInput;
@@ -64,26 +77,95 @@ public class KeywordPipeline implements Callable<Keyword> {
 
     private final boolean ignoreCase;
 
+    private final int slop;
+
+    private final int editDistance;
+
 
     public KeywordPipeline(final LanguageDetector langDetector,
                            final String queryInput,
                            final Parser parser,
                            final boolean isStoppingEnabled,
                            final boolean isStemmingEnabled,
-                           final boolean ignoreCase) {
+                           final boolean ignoreCase,
+                           final int slop,
+                           final int editDistance) {
         this.langDetector = langDetector;
         this.queryInput = queryInput;
         this.parser = parser;
         this.isStoppingEnabled = isStoppingEnabled;
         this.isStemmingEnabled = isStemmingEnabled;
         this.ignoreCase = ignoreCase;
+        this.slop = slop;
+        this.editDistance = editDistance;
     }
 
 
     @Override
     public Keyword call() throws Exception {
 
-        final MutableString content = new MutableString(queryInput);
+        // a slash-delimited input (for example, /v\d+/) is a regular
+        // expression, which is matched against whole texts and is not parsed
+        Matcher regexMatcher = REGEX_PATTERN.matcher(queryInput.trim());
+        if (regexMatcher.matches()) {
+            String regex = regexMatcher.group(1);
+            PatternAutomaton pattern = PatternAutomaton.compile(regex, ignoreCase);
+            if (pattern == null) {
+                logger.error("The pattern of keyword '{}' is invalid or too complex.", queryInput);
+                return null;
+            }
+            String term = regexMatcher.group();
+            return new Keyword(queryInput, Collections.singletonList(term), -1, 0,
+                    Collections.emptyMap(), Collections.singletonMap(term, pattern));
+        }
+
+        // a quoted input is a phrase, optionally followed by its slop (for
+        // example, "house of commons"~2), which must be read before the
+        // quotes are cleaned
+        String text = queryInput;
+        int phraseSlop = slop;
+        Matcher phraseMatcher = PHRASE_PATTERN.matcher(queryInput.trim());
+        if (phraseMatcher.matches()) {
+            text = phraseMatcher.group(1);
+            phraseSlop = phraseMatcher.group(2) != null
+                    ? Integer.parseInt(phraseMatcher.group(2))
+                    : Math.max(slop, 0);
+        }
+
+        // an unquoted input followed by an edit distance (for example,
+        // panoptes~1) is fuzzy
+        int fuzziness = editDistance;
+        Matcher fuzzyMatcher = FUZZY_PATTERN.matcher(queryInput.trim());
+        if (fuzzyMatcher.matches()) {
+            text = fuzzyMatcher.group(1);
+            fuzziness = Integer.parseInt(fuzzyMatcher.group(2));
+        }
+        fuzziness = Math.min(fuzziness, LevenshteinAutomaton.MAX_EDITS);
+
+        // words with wildcards (for example, acqui*) are matched as patterns
+        // instead of being parsed, since cleaning would remove the wildcards
+        final Map<String, PatternAutomaton> patterns = new LinkedHashMap<>();
+        if (!phraseMatcher.matches()) {
+            StringBuffer sb = new StringBuffer();
+            Matcher wildcardMatcher = WILDCARD_PATTERN.matcher(text);
+            while (wildcardMatcher.find()) {
+                String wildcard = wildcardMatcher.group();
+                if (wildcard.chars().anyMatch(Character::isLetterOrDigit)) {
+                    PatternAutomaton pattern = PatternAutomaton.fromWildcard(wildcard, ignoreCase);
+                    if (pattern == null) {
+                        logger.error("The wildcard '{}' of keyword '{}' is too complex.",
+                                wildcard, queryInput);
+                        return null;
+                    }
+                    patterns.put(wildcard, pattern);
+                    wildcardMatcher.appendReplacement(sb, " ");
+                }
+            }
+            wildcardMatcher.appendTail(sb);
+            text = sb.toString();
+        }
+
+        final MutableString content = new MutableString(text);
 
         // filters the contents by cleaning characters of whole strings
         // according to each cleaner's implementation
@@ -147,7 +229,7 @@ public class KeywordPipeline implements Callable<Keyword> {
 
         // create a temporary in-memory term structure and converts parser results
         // into Term objects
-        final Set<String> terms = new LinkedHashSet<>();
+        final List<String> terms = new ArrayList<>();
         for (Parser.Result r : results) {
             MutableString termText = r.text;
             terms.add(termText.toString());
@@ -156,7 +238,18 @@ public class KeywordPipeline implements Callable<Keyword> {
         results = null;
 
 
+        // compiles the automata of fuzzy terms, where short terms allow less
+        // edits, since otherwise they would match most other short terms
+        final Map<String, LevenshteinAutomaton> automata = new HashMap<>();
+        for (String term : terms) {
+            int termEdits = Math.min(fuzziness, term.length() < 3 ? 0 : term.length() < 6 ? 1 : 2);
+            if (termEdits > 0 && !automata.containsKey(term)) {
+                automata.put(term, LevenshteinAutomaton.compile(term, termEdits));
+            }
+        }
+        terms.addAll(patterns.keySet());
+
         // adds the terms to the keyword object
-        return new Keyword(queryInput, terms);
+        return new Keyword(queryInput, terms, phraseSlop, fuzziness, automata, patterns);
     }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.edduarte.vokter.keyword;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * A deterministic automaton that accepts every text within a maximum number
+ * of edits (insertions, deletions or substitutions of a character) of a
+ * term, so that texts can be tested against the term in linear time.
+ * <p>
+ * Each state is a row of the edit distance matrix between the term and the
+ * text read so far, with distances above the maximum capped, so there is a
+ * finite number of states. Every character that does not occur in the term
+ * changes a row in the same way, so the alphabet of the automaton is the
+ * characters of the term plus a symbol for any other character, and every
+ * state is built when the automaton is compiled.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public final class LevenshteinAutomaton {
+
+    /**
+     * The maximum number of edits supported, since the number of states grows
+     * quickly with it and larger distances match too many unrelated terms.
+     */
+    public static final int MAX_EDITS = 2;
+
+    private static final int DEAD = -1;
+
+    private final String term;
+
+    private final int maxEdits;
+
+    /**
+     * The distinct characters of the term, sorted, where the symbol of each
+     * character is its index and every other character has the last symbol.
+     */
+    private final char[] alphabet;
+
+    private final int[][] transitions;
+
+    private final boolean[] accepting;
+
+
+    private LevenshteinAutomaton(final String term,
+                                 final int maxEdits,
+                                 final char[] alphabet,
+                                 final int[][] transitions,
+                                 final boolean[] accepting) {
+        this.term = term;
+        this.maxEdits = maxEdits;
+        this.alphabet = alphabet;
+        this.transitions = transitions;
+        this.accepting = accepting;
+    }
+
+
+    /**
+     * Compiles an automaton that accepts every text within the specified
+     * number of edits of the specified term. The number of edits is limited to
+     * {@link #MAX_EDITS}.
+     */
+    public static LevenshteinAutomaton compile(String term, int maxEdits) {
+        int n = Math.max(0, Math.min(maxEdits, MAX_EDITS));
+        char[] chars = term.toCharArray();
+        char[] alphabet = term.chars().distinct().sorted()
+                .collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append)
+                .toString().toCharArray();
+
+        int[] start = new int[chars.length + 1];
+        for (int i = 0; i < start.length; i++) {
+            start[i] = Math.min(i, n + 1);
+        }
+
+        // builds every reachable state in breadth-first order
+        Map<List<Integer>, Integer> stateIds = new HashMap<>();
+        List<int[]> states = new ArrayList<>();
+        List<int[]> transitions = new ArrayList<>();
+        stateIds.put(asKey(start), 0);
+        states.add(start);
+        for (int s = 0; s < states.size(); s++) {
+            int[] row = states.get(s);
+            int[] stateTransitions = new int[alphabet.length + 1];
+            for (int symbol = 0; symbol <= alphabet.length; symbol++) {
+                // the last symbol stands for a character that is not in the
+                // term, which never matches any character of it
+                int[] next = step(chars, row, symbol < alphabet.length ? alphabet[symbol] : -1, n);
+                if (isDead(next, n)) {
+                    stateTransitions[symbol] = DEAD;
+                    continue;
+                }
+                List<Integer> key = asKey(next);
+                Integer id = stateIds.get(key);
+                if (id == null) {
+                    id = states.size();
+                    stateIds.put(key, id);
+                    states.add(next);
+                }
+                stateTransitions[symbol] = id;
+            }
+            transitions.add(stateTransitions);
+        }
+
+        boolean[] accepting = new boolean[states.size()];
+        for (int s = 0; s < accepting.length; s++) {
+            accepting[s] = states.get(s)[chars.length] <= n;
+        }
+        return new LevenshteinAutomaton(term, n, alphabet,
+                transitions.toArray(new int[0][]), accepting);
+    }
+
+
+    private static int[] step(char[] term, int[] row, int c, int n) {
+        int[] next = new int[row.length];
+        next[0] = Math.min(row[0] + 1, n + 1);
+        for (int i = 1; i < row.length; i++) {
+            int substitution = row[i - 1] + (term[i - 1] == c ? 0 : 1);
+            int deletion = row[i] + 1;
+            int insertion = next[i - 1] + 1;
+            next[i] = Math.min(Math.min(substitution, deletion), Math.min(insertion, n + 1));
+        }
+        return next;
+    }
+
+
+    private static boolean isDead(int[] row, int n) {
+        for (int d : row) {
+            if (d <= n) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static List<Integer> asKey(int[] row) {
+        return Arrays.stream(row).boxed().collect(Collectors.toList());
+    }
+
+
+    /**
+     * Checks if the specified text is within the maximum number of edits of
+     * the term of this automaton.
+     */
+    public boolean matches(CharSequence text) {
+        if (Math.abs(text.length() - term.length()) > maxEdits) {
+            return false;
+        }
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int symbol = Arrays.binarySearch(alphabet, text.charAt(i));
+            state = transitions[state][symbol >= 0 ? symbol : alphabet.length];
+            if (state == DEAD) {
+                return false;
+            }
+        }
+        return accepting[state];
+    }
+
+
+    public String getTerm() {
+        return term;
+    }
+
+
+    public int getMaxEdits() {
+        return maxEdits;
+    }
+
+
+    /**
+     * Returns the number of states of this automaton, excluding the dead
+     * state.
+     */
+    public int getStateCount() {
+        return accepting.length;
+    }
+}
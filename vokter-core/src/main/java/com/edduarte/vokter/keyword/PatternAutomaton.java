@@ -0,0 +1,914 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.keyword;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An automaton that accepts every text matched in full by a regular
+ * expression, without backtracking, so that the time to match a text is
+ * linear on its length regardless of the pattern.
+ * <p>
+ * Patterns are parsed into a Thompson NFA, and are matched by a DFA built
+ * from it. Since a DFA may have exponentially more states than its NFA,
+ * patterns are validated when they are compiled: they must be short, their
+ * counted repetitions must be small, and their full DFA must have a bounded
+ * number of states, otherwise they are rejected as too complex. Backreferences,
+ * lookarounds and other constructs that cannot be matched by a DFA are
+ * rejected as well.
+ * <p>
+ * Any number of patterns can be combined into a {@link Union}, which finds
+ * every pattern that matches a text with a single pass over it.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public final class PatternAutomaton {
+
+    /**
+     * The maximum length of a pattern.
+     */
+    public static final int MAX_PATTERN_LENGTH = 256;
+
+    /**
+     * The maximum bound of a counted repetition, like {2,5}.
+     */
+    public static final int MAX_REPETITIONS = 32;
+
+    /**
+     * The maximum number of NFA states of a pattern.
+     */
+    public static final int MAX_NFA_STATES = 4096;
+
+    /**
+     * The maximum number of DFA states of a pattern.
+     */
+    public static final int MAX_DFA_STATES = 2048;
+
+    private static final int MAX_CHAR = Character.MAX_VALUE;
+
+    private static final int[] ANY = {0, MAX_CHAR};
+
+    private static final int[] DIGITS = {'0', '9'};
+
+    private static final int[] WORDS = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+
+    private static final int[] SPACES = {'\t', '\r', ' ', ' '};
+
+    private final String pattern;
+
+    private final boolean ignoreCase;
+
+    private final Nfa nfa;
+
+    /**
+     * The full DFA of this pattern alone, which was built to validate it.
+     */
+    private final Union union;
+
+
+    private PatternAutomaton(final String pattern,
+                             final boolean ignoreCase,
+                             final Nfa nfa) {
+        this.pattern = pattern;
+        this.ignoreCase = ignoreCase;
+        this.nfa = nfa;
+        this.union = new Union(Collections.singletonList(this));
+    }
+
+
+    /**
+     * Compiles an automaton that accepts every text matched in full by the
+     * specified regular expression, or returns null if the expression is
+     * invalid, unsupported or too complex.
+     */
+    public static PatternAutomaton compile(String regex, boolean ignoreCase) {
+        if (regex == null || regex.isEmpty() || regex.length() > MAX_PATTERN_LENGTH) {
+            return null;
+        }
+        Nfa nfa = new Nfa();
+        try {
+            Node root = new RegexParser(regex, ignoreCase).parse();
+            int[] fragment = nfa.build(root);
+            int match = nfa.add(Nfa.MATCH, null, -1, 0);
+            nfa.outs[fragment[1]] = match;
+            nfa.start = fragment[0];
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+
+        PatternAutomaton automaton = new PatternAutomaton(regex, ignoreCase, nfa);
+        return automaton.union.determinize(MAX_DFA_STATES) ? automaton : null;
+    }
+
+
+    /**
+     * Compiles an automaton that accepts every text matched by the specified
+     * wildcard, where '*' matches any sequence of characters and '?' matches
+     * any single character, or returns null if the wildcard is too complex.
+     */
+    public static PatternAutomaton fromWildcard(String wildcard, boolean ignoreCase) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < wildcard.length(); i++) {
+            char c = wildcard.charAt(i);
+            if (c == '*') {
+                sb.append(".*");
+            } else if (c == '?') {
+                sb.append('.');
+            } else if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            } else {
+                sb.append('\\').append(c);
+            }
+        }
+        return compile(sb.toString(), ignoreCase);
+    }
+
+
+    /**
+     * Combines the specified automata into a single automaton, which finds
+     * which of them match a text with a single pass over it.
+     */
+    public static Union union(List<PatternAutomaton> automata) {
+        return new Union(automata);
+    }
+
+
+    /**
+     * Checks if the specified text is matched in full by the pattern of this
+     * automaton.
+     */
+    public boolean matches(CharSequence text) {
+        return union.matches(text).length > 0;
+    }
+
+
+    /**
+     * Returns the regular expression of this automaton.
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+
+    /**
+     * Returns the number of states of the DFA of this pattern alone.
+     */
+    public int getStateCount() {
+        return union.size();
+    }
+
+
+    @Override
+    public String toString() {
+        return "/" + pattern + (ignoreCase ? "/i" : "/");
+    }
+
+
+    /**
+     * A combination of several patterns, whose DFA is built lazily, as texts
+     * are matched, so that it only contains the states that are reached by
+     * them. Once there are too many states, the DFA is discarded and built
+     * again.
+     */
+    public static final class Union {
+
+        private static final int MAX_CACHED_STATES = 10000;
+
+        private static final int UNKNOWN = -2;
+
+        private static final int DEAD = -1;
+
+        private static final int[] NONE = new int[0];
+
+        private final Nfa nfa;
+
+        private final int[] starts;
+
+        /**
+         * The first character of each class of characters that have the same
+         * transitions in every state, sorted.
+         */
+        private final int[] classStarts;
+
+        private final Map<StateKey, Integer> stateIds;
+
+        private final List<int[]> stateSets;
+
+        private final List<int[]> transitions;
+
+        private final List<int[]> accepted;
+
+        /**
+         * The marks of visited NFA states in the current closure.
+         */
+        private final int[] marks;
+
+        private int markGeneration;
+
+
+        private Union(final List<PatternAutomaton> automata) {
+            // copies the NFA of every pattern into a single NFA, where the
+            // match state of each pattern refers to its index
+            this.nfa = new Nfa();
+            this.starts = new int[automata.size()];
+            for (int p = 0; p < automata.size(); p++) {
+                Nfa other = automata.get(p).nfa;
+                int offset = nfa.size;
+                for (int s = 0; s < other.size; s++) {
+                    int kind = other.kinds[s];
+                    nfa.add(kind, other.ranges[s],
+                            other.outs[s] >= 0 ? other.outs[s] + offset : -1,
+                            kind == Nfa.SPLIT ? other.alts[s] + offset : kind == Nfa.MATCH ? p : -1);
+                }
+                starts[p] = other.start + offset;
+            }
+
+            List<Integer> boundaries = new ArrayList<>();
+            boundaries.add(0);
+            for (int s = 0; s < nfa.size; s++) {
+                int[] r = nfa.ranges[s];
+                if (r != null) {
+                    for (int i = 0; i < r.length; i += 2) {
+                        boundaries.add(r[i]);
+                        if (r[i + 1] < MAX_CHAR) {
+                            boundaries.add(r[i + 1] + 1);
+                        }
+                    }
+                }
+            }
+            this.classStarts = boundaries.stream().distinct().sorted().mapToInt(i -> i).toArray();
+
+            this.stateIds = new HashMap<>();
+            this.stateSets = new ArrayList<>();
+            this.transitions = new ArrayList<>();
+            this.accepted = new ArrayList<>();
+            this.marks = new int[nfa.size];
+            addState(closure(starts));
+        }
+
+
+        /**
+         * Returns the indexes of the patterns that match the specified text in
+         * full, sorted.
+         */
+        public synchronized int[] matches(CharSequence text) {
+            if (stateSets.size() > MAX_CACHED_STATES) {
+                int[] initial = stateSets.get(0);
+                stateIds.clear();
+                stateSets.clear();
+                transitions.clear();
+                accepted.clear();
+                addState(initial);
+            }
+
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                state = next(state, symbolOf(text.charAt(i)));
+                if (state == DEAD) {
+                    return NONE;
+                }
+            }
+            int[] patterns = accepted.get(state);
+            return patterns.length > 0 ? patterns.clone() : NONE;
+        }
+
+
+        /**
+         * Builds every state of the DFA, and returns false if it has more than
+         * the specified number of states.
+         */
+        private synchronized boolean determinize(int maxStates) {
+            for (int state = 0; state < stateSets.size(); state++) {
+                for (int symbol = 0; symbol < classStarts.length; symbol++) {
+                    next(state, symbol);
+                    if (stateSets.size() > maxStates) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+
+        /**
+         * Returns the number of DFA states built so far.
+         */
+        public synchronized int size() {
+            return stateSets.size();
+        }
+
+
+        private int symbolOf(char c) {
+            int i = Arrays.binarySearch(classStarts, c);
+            return i >= 0 ? i : -i - 2;
+        }
+
+
+        private int next(int state, int symbol) {
+            int[] stateTransitions = transitions.get(state);
+            int next = stateTransitions[symbol];
+            if (next != UNKNOWN) {
+                return next;
+            }
+
+            int c = classStarts[symbol];
+            int[] set = stateSets.get(state);
+            int[] seeds = new int[set.length];
+            int count = 0;
+            for (int s : set) {
+                if (nfa.kinds[s] == Nfa.RANGES && contains(nfa.ranges[s], c)) {
+                    seeds[count++] = nfa.outs[s];
+                }
+            }
+            if (count == 0) {
+                next = DEAD;
+            } else {
+                int[] nextSet = closure(Arrays.copyOf(seeds, count));
+                Integer id = stateIds.get(new StateKey(nextSet));
+                next = id != null ? id : addState(nextSet);
+            }
+            stateTransitions[symbol] = next;
+            return next;
+        }
+
+
+        private int addState(int[] set) {
+            int id = stateSets.size();
+            stateIds.put(new StateKey(set), id);
+            stateSets.add(set);
+            int[] stateTransitions = new int[classStarts.length];
+            Arrays.fill(stateTransitions, UNKNOWN);
+            transitions.add(stateTransitions);
+            accepted.add(Arrays.stream(set)
+                    .filter(s -> nfa.kinds[s] == Nfa.MATCH)
+                    .map(s -> nfa.alts[s])
+                    .distinct().sorted().toArray());
+            return id;
+        }
+
+
+        /**
+         * Returns the sorted states that consume characters or match, which
+         * are reachable from the specified states without consuming any.
+         */
+        private int[] closure(int[] seeds) {
+            markGeneration++;
+            int[] stack = new int[nfa.size];
+            int top = 0;
+            List<Integer> result = new ArrayList<>();
+            for (int s : seeds) {
+                if (marks[s] != markGeneration) {
+                    marks[s] = markGeneration;
+                    stack[top++] = s;
+                }
+            }
+            while (top > 0) {
+                int s = stack[--top];
+                int kind = nfa.kinds[s];
+                if (kind == Nfa.RANGES || kind == Nfa.MATCH) {
+                    result.add(s);
+                    continue;
+                }
+                int[] targets = kind == Nfa.SPLIT
+                        ? new int[]{nfa.outs[s], nfa.alts[s]}
+                        : new int[]{nfa.outs[s]};
+                for (int t : targets) {
+                    if (marks[t] != markGeneration) {
+                        marks[t] = markGeneration;
+                        stack[top++] = t;
+                    }
+                }
+            }
+            return result.stream().mapToInt(i -> i).sorted().toArray();
+        }
+
+
+        private static boolean contains(int[] ranges, int c) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (c >= ranges[i] && c <= ranges[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+
+    private static final class StateKey {
+
+        private final int[] set;
+
+        private final int hash;
+
+
+        private StateKey(final int[] set) {
+            this.set = set;
+            this.hash = Arrays.hashCode(set);
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StateKey && Arrays.equals(set, ((StateKey) o).set);
+        }
+
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+
+    /**
+     * A Thompson NFA, where each state either consumes a character within
+     * its ranges, splits into two states, moves to another state without
+     * consuming any character, or matches.
+     */
+    private static final class Nfa {
+
+        private static final int RANGES = 0;
+
+        private static final int SPLIT = 1;
+
+        private static final int EPSILON = 2;
+
+        private static final int MATCH = 3;
+
+        private int size;
+
+        private int start;
+
+        private int[] kinds = new int[16];
+
+        private int[][] ranges = new int[16][];
+
+        private int[] outs = new int[16];
+
+        /**
+         * The second state of splits, or the pattern index of match states.
+         */
+        private int[] alts = new int[16];
+
+
+        private int add(int kind, int[] stateRanges, int out, int alt) {
+            if (size == kinds.length) {
+                kinds = Arrays.copyOf(kinds, size * 2);
+                ranges = Arrays.copyOf(ranges, size * 2);
+                outs = Arrays.copyOf(outs, size * 2);
+                alts = Arrays.copyOf(alts, size * 2);
+            }
+            kinds[size] = kind;
+            ranges[size] = stateRanges;
+            outs[size] = out;
+            alts[size] = alt;
+            return size++;
+        }
+
+
+        /**
+         * Builds the states of the specified expression, and returns its start
+         * state and its end state, which is an epsilon state whose target must
+         * be set afterwards.
+         */
+        private int[] build(Node node) {
+            if (size > MAX_NFA_STATES) {
+                throw new IllegalArgumentException("Too many states.");
+            }
+            switch (node.kind) {
+                case Node.CHARS: {
+                    int end = add(EPSILON, null, -1, -1);
+                    return new int[]{add(RANGES, node.ranges, end, -1), end};
+                }
+                case Node.CONCAT: {
+                    int[] fragment = new int[]{add(EPSILON, null, -1, -1), -1};
+                    fragment[1] = fragment[0];
+                    for (Node child : node.children) {
+                        fragment = append(fragment, build(child));
+                    }
+                    return fragment;
+                }
+                case Node.ALTERNATION: {
+                    int end = add(EPSILON, null, -1, -1);
+                    int start = -1;
+                    for (int i = node.children.size() - 1; i >= 0; i--) {
+                        int[] f = build(node.children.get(i));
+                        outs[f[1]] = end;
+                        start = start < 0 ? f[0] : add(SPLIT, null, f[0], start);
+                    }
+                    return new int[]{start, end};
+                }
+                default: {
+                    int[] fragment = new int[]{add(EPSILON, null, -1, -1), -1};
+                    fragment[1] = fragment[0];
+                    for (int i = 0; i < node.min; i++) {
+                        fragment = append(fragment, build(node.children.get(0)));
+                    }
+                    if (node.max < 0) {
+                        int end = add(EPSILON, null, -1, -1);
+                        int[] f = build(node.children.get(0));
+                        int split = add(SPLIT, null, f[0], end);
+                        outs[f[1]] = split;
+                        fragment = append(fragment, new int[]{split, end});
+                    } else {
+                        for (int i = node.min; i < node.max; i++) {
+                            int end = add(EPSILON, null, -1, -1);
+                            int[] f = build(node.children.get(0));
+                            outs[f[1]] = end;
+                            fragment = append(fragment, new int[]{add(SPLIT, null, f[0], end), end});
+                        }
+                    }
+                    return fragment;
+                }
+            }
+        }
+
+
+        private int[] append(int[] first, int[] second) {
+            outs[first[1]] = second[0];
+            return new int[]{first[0], second[1]};
+        }
+    }
+
+
+    /**
+     * A node of the syntax tree of a pattern.
+     */
+    private static final class Node {
+
+        private static final int CHARS = 0;
+
+        private static final int CONCAT = 1;
+
+        private static final int ALTERNATION = 2;
+
+        private static final int REPEAT = 3;
+
+        private final int kind;
+
+        private final int[] ranges;
+
+        private final List<Node> children;
+
+        private final int min;
+
+        private final int max;
+
+
+        private Node(int kind, int[] ranges, List<Node> children, int min, int max) {
+            this.kind = kind;
+            this.ranges = ranges;
+            this.children = children;
+            this.min = min;
+            this.max = max;
+        }
+
+
+        private static Node chars(int[] ranges) {
+            return new Node(CHARS, ranges, null, 0, 0);
+        }
+
+
+        private static Node of(int kind, List<Node> children) {
+            return children.size() == 1
+                    ? children.get(0)
+                    : new Node(kind, null, children, 0, 0);
+        }
+
+
+        private static Node repeat(Node child, int min, int max) {
+            return new Node(REPEAT, null, Collections.singletonList(child), min, max);
+        }
+    }
+
+
+    /**
+     * A recursive descent parser of the supported subset of the syntax of
+     * {@link java.util.regex.Pattern}: literals, escapes, '.', character
+     * classes, groups, alternations and greedy or reluctant quantifiers.
+     */
+    private static final class RegexParser {
+
+        private final String regex;
+
+        private final boolean ignoreCase;
+
+        private int pos;
+
+
+        private RegexParser(final String regex, final boolean ignoreCase) {
+            this.regex = regex;
+            this.ignoreCase = ignoreCase;
+        }
+
+
+        private Node parse() {
+            Node root = alternation();
+            if (pos < regex.length()) {
+                throw new IllegalArgumentException("Unmatched ')'.");
+            }
+            return root;
+        }
+
+
+        private Node alternation() {
+            List<Node> alternatives = new ArrayList<>();
+            alternatives.add(concatenation());
+            while (pos < regex.length() && regex.charAt(pos) == '|') {
+                pos++;
+                alternatives.add(concatenation());
+            }
+            return Node.of(Node.ALTERNATION, alternatives);
+        }
+
+
+        private Node concatenation() {
+            List<Node> items = new ArrayList<>();
+            while (pos < regex.length() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+                Node item = repetition();
+                if (item != null) {
+                    items.add(item);
+                }
+            }
+            return items.isEmpty()
+                    ? new Node(Node.CONCAT, null, items, 0, 0)
+                    : Node.of(Node.CONCAT, items);
+        }
+
+
+        private Node repetition() {
+            Node atom = atom();
+            if (pos >= regex.length()) {
+                return atom;
+            }
+            int min;
+            int max;
+            char c = regex.charAt(pos);
+            if (c == '*') {
+                min = 0;
+                max = -1;
+            } else if (c == '+') {
+                min = 1;
+                max = -1;
+            } else if (c == '?') {
+                min = 0;
+                max = 1;
+            } else if (c == '{') {
+                int close = regex.indexOf('}', pos);
+                if (close < 0 || !regex.substring(pos + 1, close).matches("\\d{1,3}(,\\d{0,3})?")) {
+                    throw new IllegalArgumentException("Invalid repetition.");
+                }
+                String[] bounds = regex.substring(pos + 1, close).split(",", -1);
+                min = Integer.parseInt(bounds[0]);
+                max = bounds.length == 1 ? min : bounds[1].isEmpty() ? -1 : Integer.parseInt(bounds[1]);
+                if (min > MAX_REPETITIONS || max > MAX_REPETITIONS || (max >= 0 && max < min)) {
+                    throw new IllegalArgumentException("Invalid repetition.");
+                }
+                pos = close;
+            } else {
+                return atom;
+            }
+            pos++;
+            if (atom == null) {
+                throw new IllegalArgumentException("Nothing to repeat.");
+            }
+
+            // reluctant quantifiers match the same texts in full, but
+            // possessive ones do not, so they are not supported
+            if (pos < regex.length() && regex.charAt(pos) == '?') {
+                pos++;
+            }
+            if (pos < regex.length() && "*+?{".indexOf(regex.charAt(pos)) >= 0) {
+                throw new IllegalArgumentException("Unsupported quantifier.");
+            }
+            return Node.repeat(atom, min, max);
+        }
+
+
+        /**
+         * Parses a single atom, or returns null for anchors, which are implicit
+         * since patterns match texts in full.
+         */
+        private Node atom() {
+            char c = regex.charAt(pos++);
+            switch (c) {
+                case '(':
+                    if (regex.startsWith("?:", pos)) {
+                        pos += 2;
+                    } else if (pos < regex.length() && regex.charAt(pos) == '?') {
+                        throw new IllegalArgumentException("Unsupported group.");
+                    }
+                    Node group = alternation();
+                    if (pos >= regex.length() || regex.charAt(pos) != ')') {
+                        throw new IllegalArgumentException("Unclosed group.");
+                    }
+                    pos++;
+                    return group;
+                case '[':
+                    return Node.chars(characterClass());
+                case '.':
+                    return Node.chars(ANY);
+                case '^':
+                    if (pos != 1) {
+                        throw new IllegalArgumentException("Unsupported anchor.");
+                    }
+                    return null;
+                case '$':
+                    if (pos != regex.length()) {
+                        throw new IllegalArgumentException("Unsupported anchor.");
+                    }
+                    return null;
+                case '\\':
+                    return Node.chars(escape(false));
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw new IllegalArgumentException("Nothing to repeat.");
+                default:
+                    return Node.chars(literal(c));
+            }
+        }
+
+
+        private int[] characterClass() {
+            boolean negated = pos < regex.length() && regex.charAt(pos) == '^';
+            if (negated) {
+                pos++;
+            }
+            List<int[]> items = new ArrayList<>();
+            while (true) {
+                if (pos >= regex.length()) {
+                    throw new IllegalArgumentException("Unclosed character class.");
+                }
+                char c = regex.charAt(pos++);
+                if (c == ']' && !items.isEmpty()) {
+                    break;
+                } else if (c == '[' || regex.startsWith("&&", pos - 1)) {
+                    throw new IllegalArgumentException("Unsupported character class.");
+                }
+
+                int[] item = c == '\\' ? escape(true) : new int[]{c, c};
+                if (item.length == 2 && item[0] == item[1] && regex.startsWith("-", pos)
+                        && pos + 1 < regex.length() && regex.charAt(pos + 1) != ']') {
+                    pos++;
+                    char d = regex.charAt(pos++);
+                    int[] to = d == '\\' ? escape(true) : new int[]{d, d};
+                    if (to.length != 2 || to[0] != to[1] || to[0] < item[0]) {
+                        throw new IllegalArgumentException("Invalid character range.");
+                    }
+                    item = new int[]{item[0], to[0]};
+                }
+                items.add(item);
+            }
+
+            int[] ranges = normalize(items);
+            if (ignoreCase) {
+                ranges = normalize(Arrays.asList(ranges,
+                        shift(ranges, 'a', 'z', 'A' - 'a'),
+                        shift(ranges, 'A', 'Z', 'a' - 'A')));
+            }
+            return negated ? complement(ranges) : ranges;
+        }
+
+
+        /**
+         * Parses an escape sequence after a backslash.
+         */
+        private int[] escape(boolean inClass) {
+            if (pos >= regex.length()) {
+                throw new IllegalArgumentException("Trailing backslash.");
+            }
+            char c = regex.charAt(pos++);
+            switch (c) {
+                case 'd':
+                    return DIGITS;
+                case 'D':
+                    return complement(DIGITS);
+                case 'w':
+                    return WORDS;
+                case 'W':
+                    return complement(WORDS);
+                case 's':
+                    return SPACES;
+                case 'S':
+                    return complement(SPACES);
+                case 't':
+                    return new int[]{'\t', '\t'};
+                case 'n':
+                    return new int[]{'\n', '\n'};
+                case 'r':
+                    return new int[]{'\r', '\r'};
+                case 'f':
+                    return new int[]{'\f', '\f'};
+                default:
+                    // backreferences, word boundaries, unicode classes and
+                    // other escapes with letters or digits are unsupported
+                    if (Character.isLetterOrDigit(c)) {
+                        throw new IllegalArgumentException("Unsupported escape.");
+                    }
+                    return inClass ? new int[]{c, c} : literal(c);
+            }
+        }
+
+
+        private int[] literal(char c) {
+            if (ignoreCase) {
+                char lower = Character.toLowerCase(c);
+                char upper = Character.toUpperCase(c);
+                if (lower != upper) {
+                    return normalize(Arrays.asList(new int[]{lower, lower}, new int[]{upper, upper}));
+                }
+            }
+            return new int[]{c, c};
+        }
+
+
+        /**
+         * Returns the part of the specified ranges between the specified
+         * characters, shifted by the specified amount.
+         */
+        private static int[] shift(int[] ranges, int from, int to, int amount) {
+            List<Integer> shifted = new ArrayList<>();
+            for (int i = 0; i < ranges.length; i += 2) {
+                int lo = Math.max(ranges[i], from);
+                int hi = Math.min(ranges[i + 1], to);
+                if (lo <= hi) {
+                    shifted.add(lo + amount);
+                    shifted.add(hi + amount);
+                }
+            }
+            return shifted.stream().mapToInt(i -> i).toArray();
+        }
+
+
+        /**
+         * Merges the specified lists of ranges into a single sorted list of
+         * disjoint ranges.
+         */
+        private static int[] normalize(List<int[]> lists) {
+            List<int[]> pairs = new ArrayList<>();
+            for (int[] list : lists) {
+                for (int i = 0; i < list.length; i += 2) {
+                    pairs.add(new int[]{list[i], list[i + 1]});
+                }
+            }
+            pairs.sort((a, b) -> Integer.compare(a[0], b[0]));
+            List<Integer> merged = new ArrayList<>();
+            for (int[] pair : pairs) {
+                int last = merged.size() - 1;
+                if (last > 0 && pair[0] <= merged.get(last) + 1) {
+                    merged.set(last, Math.max(merged.get(last), pair[1]));
+                } else {
+                    merged.add(pair[0]);
+                    merged.add(pair[1]);
+                }
+            }
+            return merged.stream().mapToInt(i -> i).toArray();
+        }
+
+
+        private static int[] complement(int[] ranges) {
+            List<Integer> complement = new ArrayList<>();
+            int next = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] > next) {
+                    complement.add(next);
+                    complement.add(ranges[i] - 1);
+                }
+                next = ranges[i + 1] + 1;
+            }
+            if (next <= MAX_CHAR) {
+                complement.add(next);
+                complement.add(MAX_CHAR);
+            }
+            return complement.stream().mapToInt(i -> i).toArray();
+        }
+    }
+}
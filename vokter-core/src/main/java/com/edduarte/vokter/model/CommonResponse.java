@@ -82,6 +82,12 @@ public class CommonResponse {
     }
 
 
+    public static CommonResponse invalidKeyword(String keyword) {
+        return new CommonResponse(8, "The keyword '" + keyword + "' is invalid, " +
+                "or its pattern is unsupported or too complex.");
+    }
+
+
     public static CommonResponse other(int code, String message) {
         return new CommonResponse(code, message);
     }
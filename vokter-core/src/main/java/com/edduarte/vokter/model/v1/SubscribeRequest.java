@@ -60,18 +60,11 @@ public class SubscribeRequest implements Serializable {
     private List<String> keywords; // mandatory field
 
     /**
-     * The interval value is no longer used. Before deprecation, the intervals
-     * for difference-matching jobs could be set, but difference-detection jobs
-     * would still occur independently of difference-matching so it can
-     * accommodate to all matching jobs for the same document. This means that
-     * detection jobs needed to use an internal interval (420 seconds), and if
-     * matching jobs were configured to run more frequently than that interval,
-     * it would look for matches on the same detected differences two times or
-     * more.
-     * For versions 2.0.0 and above, matching jobs occur immediately after a
-     * detection job ends.
+     * The minimum time between two notifications sent to the client, in
+     * seconds. Differences are matched as soon as each detection ends, and
+     * the first matches are sent right away, but matches found before this
+     * interval elapses are merged and sent together once it does.
      */
-    @Deprecated
     @JsonProperty(defaultValue = "600")
     private int interval;
 
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.edduarte.vokter.parser;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import it.unimi.dsi.lang.MutableString;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * A per-url cache of parsing results, which allows the unchanged parts of a
+ * new snapshot to reuse the results of the previous snapshot of the same url
+ * instead of being tokenized, stopped and stemmed again.
+ * <p>
+ * Cleaned contents are split into content-defined chunks of about a kilobyte,
+ * each ending on a space, and the results of each chunk are cached by the
+ * hash of its text, with positions relative to the chunk. Since chunk
+ * boundaries depend only on the surrounding characters, an edit only changes
+ * the chunks around it. Only the chunks of the latest snapshot of each url
+ * are kept, and the least recently parsed urls are evicted first.
+ * <p>
+ * Chunks are parsed independently, so this cache assumes that parsers split
+ * tokens on spaces, like {@link SimpleParser}.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public final class ParseCache {
+
+    /**
+     * The minimum number of characters of a chunk, except for the last one.
+     */
+    static final int MIN_CHUNK_CHARS = 512;
+
+    /**
+     * The number of characters after which a chunk ends on the next space,
+     * regardless of its content.
+     */
+    static final int MAX_CHUNK_CHARS = 8192;
+
+    /**
+     * A chunk ends on a space after which this number of high bits of the
+     * rolling hash, which depend on the last 64 characters, are unset. This
+     * happens on average once every 128 words (about a kilobyte) after the
+     * minimum length.
+     */
+    private static final int BOUNDARY_BITS = 7;
+
+    /**
+     * The fraction of chunks of a new snapshot that must be cached for the
+     * language of the previous snapshot to be reused.
+     */
+    private static final double LANGUAGE_REUSE_RATIO = 0.5;
+
+    private static final long[] gear = new long[256];
+
+    static {
+        Random random = new Random(0x766f6b746572L);
+        for (int i = 0; i < gear.length; i++) {
+            gear[i] = random.nextLong();
+        }
+    }
+
+    private static final HashFunction chunkHash = Hashing.murmur3_128();
+
+    private final int maxUrls;
+
+    /**
+     * Access-ordered map, so that iteration starts on the least recently
+     * parsed url.
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long reusedChunks;
+
+    private long parsedChunks;
+
+
+    public ParseCache(final int maxUrls) {
+        this.maxUrls = maxUrls;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+
+    /**
+     * Splits the specified cleaned content of a new snapshot of the specified
+     * url into chunks, and matches them against the chunks cached for that
+     * url. The settings should identify every option that changes parsing
+     * results besides the language, so that results parsed with different
+     * options are never reused.
+     */
+    public Chunks split(String url, MutableString content, String settings) {
+        int[] ends = chunkEnds(content);
+        long[] hashes = new long[ends.length];
+        char[] chars = content.array();
+        int start = 0;
+        for (int c = 0; c < ends.length; c++) {
+            hashes[c] = chunkHash.hashUnencodedChars(
+                    CharBuffer.wrap(chars, start, ends[c] - start)).asLong();
+            start = ends[c];
+        }
+
+        Entry previous;
+        synchronized (this) {
+            previous = entries.get(url);
+        }
+        if (previous != null && !previous.settings.equals(settings)) {
+            previous = null;
+        }
+        return new Chunks(url, content, settings, ends, hashes, previous);
+    }
+
+
+    /**
+     * Returns the end of each content-defined chunk of the specified content.
+     */
+    static int[] chunkEnds(MutableString content) {
+        char[] chars = content.array();
+        int length = content.length();
+        List<Integer> ends = new ArrayList<>(length / MIN_CHUNK_CHARS + 1);
+        int start = 0;
+        long h = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            h = (h << 1) + gear[c & 0xff];
+            if (c == ' ') {
+                int chunkLength = i + 1 - start;
+                if (chunkLength >= MAX_CHUNK_CHARS ||
+                        (chunkLength >= MIN_CHUNK_CHARS && (h >>> (64 - BOUNDARY_BITS)) == 0)) {
+                    ends.add(i + 1);
+                    start = i + 1;
+                }
+            }
+        }
+        if (start < length) {
+            ends.add(length);
+        }
+        int[] result = new int[ends.size()];
+        for (int c = 0; c < result.length; c++) {
+            result[c] = ends.get(c);
+        }
+        return result;
+    }
+
+
+    private synchronized void put(String url, Entry entry, int reused, int parsed) {
+        entries.put(url, entry);
+        while (entries.size() > maxUrls) {
+            entries.remove(entries.keySet().iterator().next());
+        }
+        reusedChunks += reused;
+        parsedChunks += parsed;
+    }
+
+
+    public synchronized void remove(String url) {
+        entries.remove(url);
+    }
+
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+
+    /**
+     * Returns the number of chunks whose results were reused from a previous
+     * snapshot.
+     */
+    public synchronized long getReusedChunks() {
+        return reusedChunks;
+    }
+
+
+    /**
+     * Returns the number of chunks that had to be parsed.
+     */
+    public synchronized long getParsedChunks() {
+        return parsedChunks;
+    }
+
+
+    /**
+     * The chunks of a new snapshot, matched against the chunks of the previous
+     * snapshot of the same url.
+     */
+    public final class Chunks {
+
+        private final String url;
+
+        private final MutableString content;
+
+        private final String settings;
+
+        private final int[] ends;
+
+        private final long[] hashes;
+
+        private final Entry previous;
+
+        private final int cachedCount;
+
+
+        private Chunks(final String url,
+                       final MutableString content,
+                       final String settings,
+                       final int[] ends,
+                       final long[] hashes,
+                       final Entry previous) {
+            this.url = url;
+            this.content = content;
+            this.settings = settings;
+            this.ends = ends;
+            this.hashes = hashes;
+            this.previous = previous;
+            int count = 0;
+            if (previous != null) {
+                for (long hash : hashes) {
+                    if (previous.results.containsKey(hash)) {
+                        count++;
+                    }
+                }
+            }
+            this.cachedCount = count;
+        }
+
+
+        /**
+         * Returns the language of the previous snapshot if most of these
+         * chunks are unchanged from it, in which case detecting the language
+         * again is unnecessary, or null otherwise.
+         */
+        public String getCachedLanguage() {
+            return previous != null && cachedCount >= hashes.length * LANGUAGE_REUSE_RATIO
+                    ? previous.language
+                    : null;
+        }
+
+
+        /**
+         * Checks if the results of every chunk are cached for the specified
+         * language, in which case no chunk needs to be parsed.
+         */
+        public boolean isCached(String language) {
+            return previous != null
+                    && previous.language.equals(language)
+                    && cachedCount == hashes.length;
+        }
+
+
+        /**
+         * Obtains the results of the whole content, by reusing the cached
+         * results of unchanged chunks and parsing the remaining chunks with
+         * the specified function. The results of every chunk are then cached
+         * as the latest ones for this url.
+         */
+        public List<Parser.Result> parse(String language,
+                                         Function<MutableString, List<Parser.Result>> parseFunction) {
+            Entry reusable = previous != null && previous.language.equals(language)
+                    ? previous
+                    : null;
+            Map<Long, List<Parser.Result>> results = new HashMap<>();
+            List<Parser.Result> merged = new ArrayList<>();
+            int reused = 0;
+            int wordCount = 0;
+            int start = 0;
+            for (int c = 0; c < ends.length; c++) {
+                List<Parser.Result> chunkResults = results.get(hashes[c]);
+                if (chunkResults == null && reusable != null) {
+                    chunkResults = reusable.results.get(hashes[c]);
+                }
+                if (chunkResults != null) {
+                    reused++;
+                } else {
+                    chunkResults = parseFunction.apply(content.substring(start, ends[c]));
+                }
+                results.put(hashes[c], chunkResults);
+
+                for (Parser.Result r : chunkResults) {
+                    merged.add(new Parser.Result(
+                            r.wordCount + wordCount,
+                            r.start + start,
+                            r.end + start,
+                            r.text.copy()));
+                }
+                wordCount += chunkResults.size();
+                start = ends[c];
+            }
+
+            put(url, new Entry(language, settings, results), reused, ends.length - reused);
+            return merged;
+        }
+    }
+
+
+    private static final class Entry {
+
+        private final String language;
+
+        private final String settings;
+
+        /**
+         * The results of each chunk, by chunk hash, with word counts and
+         * positions relative to the chunk.
+         */
+        private final Map<Long, List<Parser.Result>> results;
+
+
+        private Entry(final String language,
+                      final String settings,
+                      final Map<Long, List<Parser.Result>> results) {
+            this.language = language;
+            this.settings = settings;
+            this.results = results;
+        }
+    }
+}
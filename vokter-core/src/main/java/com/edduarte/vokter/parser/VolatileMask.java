@@ -0,0 +1,329 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.edduarte.vokter.parser;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import it.unimi.dsi.lang.MutableString;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * A per-url mask of volatile tokens, such as timestamps, view counters and
+ * session or cache-busting identifiers, which change on every snapshot of a
+ * page without any meaningful change to its content.
+ * <p>
+ * Tokens with digits are tracked by slot, which is identified by the tokens
+ * without digits on both of its sides and by how many tokens with digits
+ * came with that same context before it, so that a token with digits that
+ * appears or disappears does not shift the other slots. A slot whose token
+ * changed on each of a few consecutive snapshots is learned as volatile, and
+ * its token is replaced by {@link #MASK} from then on, so that it never
+ * produces differences, unless the token matches a subscribed keyword. A
+ * volatile slot is unlearned once its token stays the
+ * same for a number of snapshots, and only the slots of the latest snapshot
+ * of each url are kept, with the least recently masked urls evicted first.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public final class VolatileMask {
+
+    /**
+     * The text that replaces masked tokens. Since cleaning removes this
+     * character from contents and keywords, it never matches a keyword.
+     */
+    public static final String MASK = "#";
+
+    /**
+     * The number of tokens without digits on each side that identify a slot.
+     */
+    static final int CONTEXT_LENGTH = 2;
+
+    /**
+     * The number of consecutive snapshots in which the token of a slot must
+     * change for the slot to be learned as volatile.
+     */
+    static final int LEARNING_CHANGES = 3;
+
+    /**
+     * The number of consecutive snapshots in which the token of a volatile
+     * slot stays the same after which the slot is no longer volatile.
+     */
+    static final int FORGETTING_SNAPSHOTS = 8;
+
+    private static final HashFunction contextHash = Hashing.murmur3_128();
+
+    private final int maxUrls;
+
+    /**
+     * Access-ordered map, so that iteration starts on the least recently
+     * masked url.
+     */
+    private final LinkedHashMap<String, Map<Long, Slot>> entries;
+
+    private long maskedTokens;
+
+
+    public VolatileMask(final int maxUrls) {
+        this.maxUrls = maxUrls;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+
+    /**
+     * Learns the volatile slots of the specified url from the specified
+     * results of its new snapshot, and masks the tokens of those slots in
+     * place. Returns the number of masked tokens.
+     */
+    public int mask(String url, List<Parser.Result> results) {
+        return mask(url, results, null);
+    }
+
+
+    /**
+     * Learns the volatile slots of the specified url from the specified
+     * results of its new snapshot, and masks the tokens of those slots in
+     * place, except for the tokens accepted by the specified predicate, such
+     * as the ones that match a subscribed keyword, if any. Returns the number
+     * of masked tokens.
+     */
+    public int mask(String url, List<Parser.Result> results, Predicate<String> keptTokens) {
+        Map<Long, Slot> previous;
+        synchronized (this) {
+            previous = entries.get(url);
+        }
+
+        // the context of each token with digits is hashed from the tokens
+        // without digits that precede it, and then from the ones that
+        // follow it
+        int[] indexes = new int[results.size()];
+        long[] contextKeys = new long[results.size()];
+        int count = 0;
+        String[] context = new String[CONTEXT_LENGTH];
+        for (int i = 0; i < results.size(); i++) {
+            Parser.Result r = results.get(i);
+            if (hasDigit(r.text)) {
+                indexes[count] = i;
+                contextKeys[count] = hash(context);
+                count++;
+            } else {
+                System.arraycopy(context, 1, context, 0, CONTEXT_LENGTH - 1);
+                context[CONTEXT_LENGTH - 1] = r.text.toString();
+            }
+        }
+        context = new String[CONTEXT_LENGTH];
+        for (int i = results.size() - 1, k = count - 1; i >= 0; i--) {
+            if (k >= 0 && indexes[k] == i) {
+                contextKeys[k] = contextKeys[k] * 31 + hash(context);
+                k--;
+            } else {
+                System.arraycopy(context, 1, context, 0, CONTEXT_LENGTH - 1);
+                context[CONTEXT_LENGTH - 1] = results.get(i).text.toString();
+            }
+        }
+
+        Map<Long, Slot> current = new HashMap<>();
+        Map<Long, Integer> ordinals = new HashMap<>();
+        int masked = 0;
+        for (int k = 0; k < count; k++) {
+            Parser.Result r = results.get(indexes[k]);
+            int ordinal = ordinals.merge(contextKeys[k], 1, Integer::sum) - 1;
+            long key = contextKeys[k] * 31 + ordinal;
+
+            String value = r.text.toString();
+            Slot slot = previous != null ? previous.get(key) : null;
+            if (slot == null) {
+                slot = new Slot(label(results, indexes[k], ordinal), value);
+            } else if (!slot.value.equals(value)) {
+                slot.value = value;
+                slot.unchanged = 0;
+                if (++slot.changes >= LEARNING_CHANGES) {
+                    slot.isVolatile = true;
+                }
+            } else {
+                slot.changes = 0;
+                if (++slot.unchanged >= FORGETTING_SNAPSHOTS) {
+                    slot.isVolatile = false;
+                }
+            }
+            current.put(key, slot);
+
+            if (slot.isVolatile && (keptTokens == null || !keptTokens.test(value))) {
+                r.text = new MutableString(MASK);
+                masked++;
+            }
+        }
+
+        synchronized (this) {
+            entries.put(url, current);
+            while (entries.size() > maxUrls) {
+                entries.remove(entries.keySet().iterator().next());
+            }
+            maskedTokens += masked;
+        }
+        return masked;
+    }
+
+
+    private static long hash(String[] context) {
+        Hasher hasher = contextHash.newHasher();
+        for (String token : context) {
+            if (token != null) {
+                hasher.putUnencodedChars(token);
+            }
+            hasher.putChar(' ');
+        }
+        return hasher.hash().asLong();
+    }
+
+
+    /**
+     * Describes the slot of the token at the specified index by the tokens
+     * without digits around it, followed by its ordinal if it is not the
+     * first slot with that context.
+     */
+    private static String label(List<Parser.Result> results, int index, int ordinal) {
+        Deque<String> before = new ArrayDeque<>(CONTEXT_LENGTH);
+        for (int i = index - 1; i >= 0 && before.size() < CONTEXT_LENGTH; i--) {
+            if (!hasDigit(results.get(i).text)) {
+                before.addFirst(results.get(i).text.toString());
+            }
+        }
+        Deque<String> after = new ArrayDeque<>(CONTEXT_LENGTH);
+        for (int i = index + 1; i < results.size() && after.size() < CONTEXT_LENGTH; i++) {
+            if (!hasDigit(results.get(i).text)) {
+                after.addLast(results.get(i).text.toString());
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        before.forEach(token -> sb.append(token).append(' '));
+        sb.append('_');
+        after.forEach(token -> sb.append(' ').append(token));
+        if (ordinal > 0) {
+            sb.append(" [").append(ordinal).append(']');
+        }
+        return sb.toString();
+    }
+
+
+    private static boolean hasDigit(MutableString text) {
+        char[] chars = text.array();
+        for (int i = 0, length = text.length(); i < length; i++) {
+            if (Character.isDigit(chars[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns the number of slots of the specified url that are currently
+     * learned as volatile.
+     */
+    public synchronized int getVolatileSlots(String url) {
+        Map<Long, Slot> slots = entries.get(url);
+        if (slots == null) {
+            return 0;
+        }
+        int count = 0;
+        for (Slot slot : slots.values()) {
+            if (slot.isVolatile) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Returns the latest tokens of the slots of the specified url that are
+     * currently learned as volatile, by the tokens around each slot, so that
+     * the masked parts of a page can be inspected.
+     */
+    public synchronized Map<String, String> getVolatileValues(String url) {
+        Map<String, String> values = new LinkedHashMap<>();
+        Map<Long, Slot> slots = entries.get(url);
+        if (slots != null) {
+            for (Slot slot : slots.values()) {
+                if (slot.isVolatile) {
+                    values.put(slot.label, slot.value);
+                }
+            }
+        }
+        return values;
+    }
+
+
+    public synchronized void remove(String url) {
+        entries.remove(url);
+    }
+
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+
+    /**
+     * Returns the number of tokens that were masked so far.
+     */
+    public synchronized long getMaskedTokens() {
+        return maskedTokens;
+    }
+
+
+    private static final class Slot {
+
+        /**
+         * The tokens around this slot, which describe it for debugging.
+         */
+        private final String label;
+
+        private String value;
+
+        /**
+         * The number of consecutive snapshots in which the token of this
+         * slot changed.
+         */
+        private int changes;
+
+        /**
+         * The number of consecutive snapshots in which the token of this slot
+         * stayed the same.
+         */
+        private int unchanged;
+
+        private boolean isVolatile;
+
+
+        private Slot(final String label, final String value) {
+            this.label = label;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.persistence;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The part of {@link WriteBehindQueue} that does not depend on how the writes
+ * are performed, which queues, flushes and awaits the writes of collections
+ * identified by their names.
+ *
+ * @param <T> the type of the collections that are written into
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+abstract class AbstractWriteBehindQueue<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(AbstractWriteBehindQueue.class);
+
+    /**
+     * The maximum number of collections whose failed writes are remembered
+     * until they are awaited.
+     */
+    private static final int MAX_FAILURES = 1024;
+
+    private final int maxBatchSize;
+
+    private final long flushIntervalMillis;
+
+    private final Object lock = new Object();
+
+    private final Thread flusher;
+
+    /**
+     * Pending writes, grouped by the name of their target collection.
+     */
+    private Map<String, PendingWrites<T>> pending;
+
+    /**
+     * The sequence number of the last write enqueued for each collection that
+     * has not been flushed yet.
+     */
+    private final Map<String, Long> lastSequences;
+
+    /**
+     * The failure of the last flush of each collection whose last flushed
+     * writes could not be stored.
+     */
+    private final Map<String, MongoException> failures;
+
+    private long enqueuedSequence;
+
+    private long durableSequence;
+
+    private int pendingCount;
+
+    private boolean flushRequested;
+
+    private boolean running;
+
+    private long flushCount;
+
+    private long writtenCount;
+
+    private long failedCount;
+
+
+    AbstractWriteBehindQueue(final int maxBatchSize, final long flushIntervalMillis) {
+        this.maxBatchSize = maxBatchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.pending = new LinkedHashMap<>();
+        this.lastSequences = new HashMap<>();
+        this.failures = new LinkedHashMap<String, MongoException>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MongoException> eldest) {
+                return size() > MAX_FAILURES;
+            }
+        };
+        this.running = true;
+        this.flusher = new Thread(this::flushLoop, "vokter_write_behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+
+    /**
+     * Enqueues the insertion of the specified object into the specified
+     * collection.
+     */
+    public void insert(T collection, DBObject object) {
+        List<Op> ops = new ArrayList<>(1);
+        ops.add(new Op(object));
+        enqueue(collection, ops);
+    }
+
+
+    /**
+     * Enqueues the insertion of every object of the specified iterator into
+     * the specified collection.
+     */
+    public void insertAll(T collection, Iterator<? extends DBObject> objects) {
+        List<Op> ops = new ArrayList<>();
+        while (objects.hasNext()) {
+            ops.add(new Op(objects.next()));
+        }
+        enqueue(collection, ops);
+    }
+
+
+    /**
+     * Enqueues the replacement of every object in the specified collection with
+     * the specified objects. If no objects are specified, the collection is
+     * dropped.
+     */
+    public void replaceAll(T collection, Collection<? extends DBObject> objects) {
+        List<Op> ops = new ArrayList<>(objects.size() + 1);
+        ops.add(Op.DROP);
+        objects.forEach(o -> ops.add(new Op(o)));
+        enqueue(collection, ops);
+    }
+
+
+    /**
+     * Enqueues the removal of the specified collection.
+     */
+    public void drop(T collection) {
+        List<Op> ops = new ArrayList<>(1);
+        ops.add(Op.DROP);
+        enqueue(collection, ops);
+    }
+
+
+    private void enqueue(T collection, List<Op> ops) {
+        if (ops.isEmpty()) {
+            return;
+        }
+        synchronized (lock) {
+            if (running) {
+                String name = nameOf(collection);
+                PendingWrites<T> p = pending.get(name);
+                if (p == null) {
+                    p = new PendingWrites<>(collection);
+                    pending.put(name, p);
+                }
+                p.ops.addAll(ops);
+                pendingCount += ops.size();
+                lastSequences.put(name, ++enqueuedSequence);
+
+                if (pendingCount >= maxBatchSize) {
+                    flushRequested = true;
+                    lock.notifyAll();
+                }
+                return;
+            }
+        }
+
+        // this queue was already shutdown, so write synchronously
+        PendingWrites<T> p = new PendingWrites<>(collection);
+        p.ops.addAll(ops);
+        MongoException ex = write(p);
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Blocks until every write that was enqueued for the specified collection
+     * before this call is flushed into the database. If there are pending
+     * writes for the collection, a flush is triggered immediately, and other
+     * pending writes are flushed along with them.
+     *
+     * @throws MongoException if the last flushed writes of the collection
+     *                        could not be stored
+     */
+    public void await(T collection) {
+        String name = nameOf(collection);
+        MongoException failure;
+        synchronized (lock) {
+            Long seq = lastSequences.get(name);
+            if (seq != null) {
+                awaitSequence(seq);
+            }
+            failure = failures.get(name);
+        }
+        if (failure != null) {
+            throw new MongoException("Failed storing the writes of '" + name + "'.", failure);
+        }
+    }
+
+
+    /**
+     * Blocks until every write that was enqueued before this call is flushed
+     * into the database, or failed to be flushed.
+     */
+    public void awaitAll() {
+        synchronized (lock) {
+            awaitSequence(enqueuedSequence);
+        }
+    }
+
+
+    private void awaitSequence(long seq) {
+        if (seq <= durableSequence) {
+            return;
+        }
+        flushRequested = true;
+        lock.notifyAll();
+        try {
+            while (durableSequence < seq && flusher.isAlive()) {
+                lock.wait(flushIntervalMillis);
+            }
+        } catch (InterruptedException ex) {
+            logger.error(ex.getMessage(), ex);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Flushes every pending write and stops the background flusher. Writes that
+     * are enqueued after this are written synchronously.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            logger.error(ex.getMessage(), ex);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void flushLoop() {
+        while (true) {
+            Map<String, PendingWrites<T>> batch;
+            long batchSequence;
+            synchronized (lock) {
+                if (running && !flushRequested) {
+                    try {
+                        lock.wait(flushIntervalMillis);
+                    } catch (InterruptedException ex) {
+                        running = false;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    flushRequested = false;
+                    if (!running) {
+                        lock.notifyAll();
+                        return;
+                    }
+                    continue;
+                }
+                batch = pending;
+                batchSequence = enqueuedSequence;
+                pending = new LinkedHashMap<>();
+                pendingCount = 0;
+                flushRequested = false;
+            }
+
+            Map<String, MongoException> batchFailures = new HashMap<>();
+            batch.forEach((name, p) -> {
+                MongoException ex = write(p);
+                if (ex != null) {
+                    batchFailures.put(name, ex);
+                }
+            });
+
+            synchronized (lock) {
+                batch.keySet().forEach(failures::remove);
+                failures.putAll(batchFailures);
+                flushCount++;
+                durableSequence = batchSequence;
+                lastSequences.values().removeIf(s -> s <= batchSequence);
+                lock.notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Writes the specified pending writes, and returns the failure that
+     * interrupted them, or null if every write was stored.
+     */
+    private MongoException write(PendingWrites<T> p) {
+        try {
+            execute(p.collection, p.ops);
+            synchronized (lock) {
+                writtenCount += p.ops.size();
+            }
+            return null;
+        } catch (MongoException ex) {
+            logger.error("Failed flushing {} writes into '{}'.",
+                    p.ops.size(), nameOf(p.collection), ex);
+            synchronized (lock) {
+                failedCount += p.ops.size();
+            }
+            return ex;
+        }
+    }
+
+
+    /**
+     * Returns the name that identifies the specified collection, under which
+     * its writes are grouped and awaited.
+     */
+    abstract String nameOf(T collection);
+
+
+    /**
+     * Performs the specified writes into the specified collection, in order.
+     */
+    abstract void execute(T collection, List<Op> ops);
+
+
+    /**
+     * Returns the number of flushes performed so far.
+     */
+    public long getFlushCount() {
+        synchronized (lock) {
+            return flushCount;
+        }
+    }
+
+
+    /**
+     * Returns the number of writes flushed into the database so far.
+     */
+    public long getWrittenCount() {
+        synchronized (lock) {
+            return writtenCount;
+        }
+    }
+
+
+    /**
+     * Returns the number of writes that failed to be flushed, where every
+     * write of a failed flush of a collection is counted, even if some of them
+     * were stored before the failure.
+     */
+    public long getFailedCount() {
+        synchronized (lock) {
+            return failedCount;
+        }
+    }
+
+
+    /**
+     * Returns the number of writes that are waiting to be flushed.
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pendingCount;
+        }
+    }
+
+
+    private static final class PendingWrites<T> {
+
+        private final T collection;
+
+        private final List<Op> ops;
+
+
+        private PendingWrites(T collection) {
+            this.collection = collection;
+            this.ops = new ArrayList<>();
+        }
+    }
+
+
+    /**
+     * A single write, which is either an insertion of an object or, when the
+     * object is null, the removal of the entire collection.
+     */
+    static final class Op {
+
+        private static final Op DROP = new Op(null);
+
+        final DBObject object;
+
+
+        private Op(DBObject object) {
+            this.object = object;
+        }
+
+
+        boolean isDrop() {
+            return object == null;
+        }
+    }
+}
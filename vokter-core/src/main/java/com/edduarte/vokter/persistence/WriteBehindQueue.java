@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.persistence;
+
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+
+import java.util.List;
+
+/**
+ * A write-behind persistence stage that groups database writes from many
+ * concurrent pipelines and flushes them in a background thread, either when
+ * the number of pending writes reaches the maximum batch size or when the
+ * flush interval elapses. Writes to the same collection are flushed in the
+ * same order as they were enqueued, using ordered bulk operations.
+ * <p>
+ * Readers that must see every write enqueued so far for a collection should
+ * call {@link #await} before reading it, which works as a durability
+ * barrier. Writes that fail to be flushed are not retried, since part of an
+ * ordered bulk operation may have been applied already, but the failure is
+ * thrown to every reader that awaits them, just as it would be thrown by a
+ * synchronous write.
+ * <p>
+ * Bulk operations only target a single collection, so writes from different
+ * pipelines are flushed in the same cycle but not in the same bulk operation.
+ * A pipeline that awaits its writes right after enqueueing them (such as one
+ * that stores a new snapshot) triggers an early flush, and only shares that
+ * flush with the writes that other pipelines have enqueued in the meantime.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class WriteBehindQueue extends AbstractWriteBehindQueue<DBCollection> {
+
+    public WriteBehindQueue(final int maxBatchSize, final long flushIntervalMillis) {
+        super(maxBatchSize, flushIntervalMillis);
+    }
+
+
+    @Override
+    String nameOf(DBCollection collection) {
+        return collection.getFullName();
+    }
+
+
+    /**
+     * Performs the specified writes into the specified collection, in order.
+     */
+    @Override
+    void execute(DBCollection collection, List<Op> ops) {
+        BulkWriteOperation bulkOp = null;
+        for (Op op : ops) {
+            if (op.isDrop()) {
+                if (bulkOp != null) {
+                    bulkOp.execute();
+                    bulkOp = null;
+                }
+                collection.drop();
+            } else {
+                if (bulkOp == null) {
+                    bulkOp = collection.initializeOrderedBulkOperation();
+                }
+                bulkOp.insert(op.object);
+            }
+        }
+        if (bulkOp != null) {
+            bulkOp.execute();
+        }
+    }
+}
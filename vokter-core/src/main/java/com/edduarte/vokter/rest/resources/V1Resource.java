@@ -130,7 +130,19 @@ public class V1Resource {
                     .build();
         }
 
+        // builds every keyword right away, which validates and compiles the
+        // patterns of wildcard and regular expression keywords
         Context context = Context.getInstance();
+        for (String k : keywords) {
+            if (context.buildKeyword(k) == null) {
+                CommonResponse responseBody = CommonResponse.invalidKeyword(k);
+                return Response.status(400)
+                        .type(MediaType.APPLICATION_JSON)
+                        .entity(responseBody)
+                        .build();
+            }
+        }
+
         boolean created = context.createJob(subscribeRequest);
         if (created) {
             CommonResponse responseBody = CommonResponse.ok();
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.edduarte.vokter.similarity;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Content-defined chunking of a token sequence, which splits it into chunks
+ * of roughly paragraph size and hashes each chunk, so that the unchanged
+ * regions of two snapshots can be matched by comparing their chunk hashes.
+ * <p>
+ * Chunk boundaries are placed after tokens whose hash matches a fixed mask,
+ * rather than at fixed positions, so an insertion or a deletion only changes
+ * the chunks around it, and the following chunks keep their boundaries and
+ * hashes. Cleaned content carries no line or sentence breaks, which is why
+ * boundaries are derived from the tokens themselves.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public final class ContentChunker {
+
+    /**
+     * The minimum number of tokens of a chunk, except for the last one.
+     */
+    public static final int MIN_CHUNK_TOKENS = 8;
+
+    /**
+     * The maximum number of tokens of a chunk.
+     */
+    public static final int MAX_CHUNK_TOKENS = 128;
+
+    /**
+     * A chunk ends after a token whose hash has these bits unset, which
+     * happens on average once every 32 tokens after the minimum length.
+     */
+    private static final int BOUNDARY_MASK = 0x1f;
+
+    private static final HashFunction tokenHash = Hashing.murmur3_32();
+
+    private static final HashFunction chunkHash = Hashing.murmur3_128();
+
+
+    private ContentChunker() {
+    }
+
+
+    /**
+     * Splits the specified tokens into content-defined chunks, and returns
+     * the number of tokens of each chunk.
+     */
+    public static int[] chunkLengths(List<String> tokens) {
+        int n = tokens.size();
+        int[] lengths = new int[n / MIN_CHUNK_TOKENS + 1];
+        int count = 0;
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            length++;
+            if (length >= MAX_CHUNK_TOKENS || (length >= MIN_CHUNK_TOKENS &&
+                    (tokenHash.hashUnencodedChars(tokens.get(i)).asInt() & BOUNDARY_MASK) == 0)) {
+                lengths[count++] = length;
+                length = 0;
+            }
+        }
+        if (length > 0) {
+            lengths[count++] = length;
+        }
+        int[] result = new int[count];
+        System.arraycopy(lengths, 0, result, 0, count);
+        return result;
+    }
+
+
+    /**
+     * Computes the hash of each chunk of the specified tokens, with the
+     * specified chunk lengths.
+     */
+    public static long[] chunkHashes(List<String> tokens, int[] lengths) {
+        long[] hashes = new long[lengths.length];
+        int start = 0;
+        for (int c = 0; c < lengths.length; c++) {
+            Hasher hasher = chunkHash.newHasher();
+            int end = start + lengths[c];
+            for (int i = start; i < end; i++) {
+                hasher.putUnencodedChars(tokens.get(i)).putChar(' ');
+            }
+            hashes[c] = hasher.hash().asLong();
+            start = end;
+        }
+        return hashes;
+    }
+
+
+    public static byte[] toBytes(int[] lengths) {
+        ByteBuffer buffer = ByteBuffer.allocate(lengths.length * 4);
+        buffer.asIntBuffer().put(lengths);
+        return buffer.array();
+    }
+
+
+    public static int[] lengthsFromBytes(byte[] bytes) {
+        int[] lengths = new int[bytes.length / 4];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(lengths);
+        return lengths;
+    }
+
+
+    public static byte[] toBytes(long[] hashes) {
+        ByteBuffer buffer = ByteBuffer.allocate(hashes.length * 8);
+        buffer.asLongBuffer().put(hashes);
+        return buffer.array();
+    }
+
+
+    public static long[] hashesFromBytes(byte[] bytes) {
+        long[] hashes = new long[bytes.length / 8];
+        ByteBuffer.wrap(bytes).asLongBuffer().get(hashes);
+        return hashes;
+    }
+}
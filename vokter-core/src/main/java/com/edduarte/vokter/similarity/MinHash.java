@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.similarity;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * MinHash signatures of the k-shingles of a token sequence, which allow the
+ * Jaccard similarity between two token sequences to be estimated by
+ * comparing their fixed-size signatures, without comparing the sequences
+ * themselves.
+ * <p>
+ * The hash functions are seeded with a constant, so signatures computed in
+ * different runs (and stored in the database) remain comparable.
+ *
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public final class MinHash {
+
+    /**
+     * The number of consecutive tokens that compose a shingle.
+     */
+    public static final int SHINGLE_LENGTH = 3;
+
+    /**
+     * The number of hash functions, and therefore the length of signatures.
+     * The standard error of the similarity estimate is 1 / sqrt(n).
+     */
+    public static final int SIGNATURE_LENGTH = 128;
+
+    private static final long PRIME = (1L << 31) - 1;
+
+    private static final long SEED = 0x766f6b746572L;
+
+    private static final HashFunction shingleHash = Hashing.murmur3_32();
+
+    private static final long[] coefficientsA = new long[SIGNATURE_LENGTH];
+
+    private static final long[] coefficientsB = new long[SIGNATURE_LENGTH];
+
+    static {
+        Random random = new Random(SEED);
+        for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+            coefficientsA[i] = 1 + (long) (random.nextDouble() * (PRIME - 1));
+            coefficientsB[i] = (long) (random.nextDouble() * PRIME);
+        }
+    }
+
+
+    private MinHash() {
+    }
+
+
+    /**
+     * Computes the MinHash signature of the k-shingles of the specified
+     * tokens. Sequences shorter than a shingle are treated as a single
+     * shingle.
+     */
+    public static int[] signature(List<String> tokens) {
+        int[] signature = new int[SIGNATURE_LENGTH];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+
+        int n = tokens.size();
+        if (n == 0) {
+            return signature;
+        }
+
+        int shingleCount = Math.max(1, n - SHINGLE_LENGTH + 1);
+        for (int i = 0; i < shingleCount; i++) {
+            Hasher hasher = shingleHash.newHasher();
+            int end = Math.min(i + SHINGLE_LENGTH, n);
+            for (int j = i; j < end; j++) {
+                hasher.putUnencodedChars(tokens.get(j)).putChar(' ');
+            }
+            long x = hasher.hash().asInt() & 0xffffffffL;
+
+            for (int f = 0; f < SIGNATURE_LENGTH; f++) {
+                int h = (int) ((coefficientsA[f] * x + coefficientsB[f]) % PRIME);
+                if (h < signature[f]) {
+                    signature[f] = h;
+                }
+            }
+        }
+        return signature;
+    }
+
+
+    /**
+     * Estimates the Jaccard similarity between the shingle sets of two
+     * signatures, as the fraction of hash functions with equal minimums.
+     */
+    public static double similarity(int[] s1, int[] s2) {
+        if (s1.length != s2.length) {
+            throw new IllegalArgumentException(
+                    "Signatures with different lengths cannot be compared.");
+        }
+        int equal = 0;
+        for (int i = 0; i < s1.length; i++) {
+            if (s1[i] == s2[i]) {
+                equal++;
+            }
+        }
+        return (double) equal / s1.length;
+    }
+
+
+    /**
+     * Computes an exact fingerprint of the specified tokens, which is equal
+     * for two token sequences only if (with high probability) they are equal.
+     */
+    public static long fingerprint(List<String> tokens) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (String token : tokens) {
+            hasher.putUnencodedChars(token).putChar(' ');
+        }
+        return hasher.hash().asLong();
+    }
+
+
+    public static byte[] toBytes(int[] signature) {
+        ByteBuffer buffer = ByteBuffer.allocate(signature.length * 4);
+        buffer.asIntBuffer().put(signature);
+        return buffer.array();
+    }
+
+
+    public static int[] fromBytes(byte[] bytes) {
+        int[] signature = new int[bytes.length / 4];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(signature);
+        return signature;
+    }
+}
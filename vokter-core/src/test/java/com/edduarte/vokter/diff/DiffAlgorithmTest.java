@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.diff;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class DiffAlgorithmTest {
+
+    private static final List<DiffAlgorithm> algorithms = Arrays.asList(
+            new MyersDiff(), new PatienceDiff(), new HistogramDiff(),
+            new ParallelDiff(new MyersDiff(), ForkJoinPool.commonPool(), 16));
+
+
+    @Test
+    public void testRandom() {
+        for (DiffAlgorithm algorithm : algorithms) {
+            Random random = new Random(42);
+            for (int i = 0; i < 500; i++) {
+                int[] a = MyersDiffTest.randomTokens(random);
+                int[] b = MyersDiffTest.randomTokens(random);
+                assertArrayEquals(algorithm.getClass().getSimpleName(),
+                        b, MyersDiffTest.apply(a, b, algorithm.diff(a, b)));
+            }
+        }
+    }
+
+
+    @Test
+    public void testMovedBlock() {
+        // a common word (0) surrounds two blocks of unique words, which swap
+        // places in the newer sequence
+        int[] a = {1, 2, 3, 0, 4, 5, 6, 0, 7, 8, 9, 0};
+        int[] b = {1, 2, 3, 0, 7, 8, 9, 0, 4, 5, 6, 0};
+
+        for (DiffAlgorithm algorithm : Arrays.asList(new PatienceDiff(), new HistogramDiff())) {
+            List<Edit> edits = algorithm.diff(a, b);
+            assertArrayEquals(b, MyersDiffTest.apply(a, b, edits));
+            // the moved block is reported whole, instead of being split
+            // around the common word
+            String name = algorithm.getClass().getSimpleName();
+            assertEquals(name, 2, edits.size());
+            assertEquals(name, DifferenceEvent.deleted, edits.get(0).getAction());
+            assertEquals(name, 4, edits.get(0).getEnd() - edits.get(0).getStart());
+            assertEquals(name, DifferenceEvent.inserted, edits.get(1).getAction());
+            assertEquals(name, 4, edits.get(1).getEnd() - edits.get(1).getStart());
+        }
+    }
+
+
+    @Test
+    public void testParallelSegments() {
+        // every 10th token is unique in both sequences, and can be used as an
+        // anchor to split them
+        Random random = new Random(42);
+        int[] a = new int[2000];
+        int[] b = new int[2100];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = i % 10 == 0 ? 100 + i : random.nextInt(20);
+        }
+        for (int i = 0; i < b.length; i++) {
+            b[i] = i % 10 == 0 ? 100 + i : random.nextInt(20);
+        }
+
+        DiffAlgorithm parallel = new ParallelDiff(new MyersDiff(), new ForkJoinPool(4), 64);
+        assertArrayEquals(b, MyersDiffTest.apply(a, b, parallel.diff(a, b)));
+    }
+
+
+    @Test
+    public void testDeadline() {
+        Random random = new Random(42);
+        int[] a = new int[2000];
+        int[] b = new int[2000];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = random.nextInt(50);
+            b[i] = random.nextInt(50);
+        }
+
+        for (DiffAlgorithm algorithm : algorithms) {
+            String name = algorithm.getClass().getSimpleName();
+            assertNull(name, algorithm.diff(a, b, 0));
+            assertEquals(name, algorithm.diff(a, b), algorithm.diff(a, b, Long.MAX_VALUE));
+        }
+    }
+
+
+    @Test
+    public void testBudget() {
+        assertTrue(DiffBudget.millisFor(100000, 0) > DiffBudget.millisFor(1000, 0));
+        assertTrue(DiffBudget.millisFor(100000, 4) < DiffBudget.millisFor(100000, 0.5));
+        assertEquals(DiffBudget.millisFor(100000, -1), DiffBudget.millisFor(100000, 1));
+        assertEquals(DiffBudget.MAX_MILLIS, DiffBudget.millisFor(Integer.MAX_VALUE, 0));
+        assertEquals(DiffBudget.MIN_MILLIS, DiffBudget.millisFor(0, 1000));
+    }
+
+
+    @Test
+    public void testForSize() {
+        assertEquals(MyersDiff.class, DiffAlgorithm.forSize(100, 100).getClass());
+        assertEquals(ParallelDiff.class, DiffAlgorithm.forSize(
+                DiffAlgorithm.LARGE_DOCUMENT_TOKENS, 1).getClass());
+    }
+}
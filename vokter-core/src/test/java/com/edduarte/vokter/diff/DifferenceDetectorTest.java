@@ -34,6 +34,7 @@ import java.io.InputStream;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
@@ -90,14 +91,52 @@ public class DifferenceDetectorTest {
 
         DifferenceDetector comparison = new DifferenceDetector(
                 oldSnapshotDoc,
-                newSnapshotDoc,
-                parserPool
+                newSnapshotDoc
         );
         List<Difference> diffList = comparison.call();
         assertEquals(5, diffList.size());
     }
 
 
+    @Test
+    public void testMergedSpanIsCapped() {
+        String url = "http://www.bbc.com/news/uk/";
+        String type = "text/html";
+        String oldSnapshot = "Argus Panoptes is the 100-eyed giant in Greek mythology.";
+        StringBuilder sb = new StringBuilder(oldSnapshot);
+        for (int i = 0; i < 300; i++) {
+            sb.append(" watchman giant");
+        }
+        String newSnapshot = sb.toString();
+
+        Document oldSnapshotDoc = DocumentBuilder
+                .fromString(url, oldSnapshot, type)
+                .ignoreCase()
+                .withStopwords()
+                .withStemming()
+                .build(occurrencesDB, parserPool);
+
+        Document newSnapshotDoc = DocumentBuilder
+                .fromString(url, newSnapshot, type)
+                .ignoreCase()
+                .withStopwords()
+                .withStemming()
+                .build(occurrencesDB, parserPool);
+
+        DifferenceDetector comparison = new DifferenceDetector(
+                oldSnapshotDoc,
+                newSnapshotDoc
+        );
+        List<Difference> diffList = comparison.call();
+        // without a cap, every added "watchman" and every added "giant"
+        // would be merged into a single difference each
+        assertTrue(diffList.size() > 2);
+        for (Difference d : diffList) {
+            assertTrue(d.getEndIndex() - d.getStartIndex() <= 1000);
+        }
+    }
+
+
     @Test
     public void testBBCNews() throws IOException {
         String url = "http://www.bbc.com/news/uk/";
@@ -123,11 +162,51 @@ public class DifferenceDetectorTest {
 
         DifferenceDetector comparison = new DifferenceDetector(
                 oldSnapshotDoc,
-                newSnapshotDoc,
-                parserPool
+                newSnapshotDoc
         );
         List<Difference> diffList = comparison.call();
-        assertEquals(352, diffList.size());
+        assertEquals(254, diffList.size());
+        for (Difference d : diffList) {
+            assertTrue(d.getStartIndex() >= 0);
+            assertTrue(d.getEndIndex() >= d.getStartIndex());
+        }
     }
-}
 
+
+    @Test
+    public void testOscillation() throws IOException {
+        String url = "http://www.bbc.com/news/uk/";
+        String type = "text/html";
+        InputStream firstStream = getClass().getResourceAsStream("bbc_news_8_12_2014_11_00.html");
+        InputStream secondStream = getClass().getResourceAsStream("bbc_news_8_12_2014_13_00.html");
+        String first = IOUtils.toString(firstStream);
+        String second = IOUtils.toString(secondStream);
+
+        Document firstDoc = DocumentBuilder
+                .fromString(url, first, type)
+                .ignoreCase()
+                .withStopwords()
+                .withStemming()
+                .build(occurrencesDB, parserPool);
+
+        Document secondDoc = DocumentBuilder
+                .fromString(url, second, type)
+                .ignoreCase()
+                .withStopwords()
+                .withStemming()
+                .build(occurrencesDB, parserPool);
+
+        // the page flips back to its first version, with an extra whitespace
+        // so that it is not byte-by-byte equal to it
+        Document thirdDoc = DocumentBuilder
+                .fromString(url, first + " ", type)
+                .ignoreCase()
+                .withStopwords()
+                .withStemming()
+                .build(occurrencesDB, parserPool);
+
+        assertEquals(254, new DifferenceDetector(firstDoc, secondDoc).call().size());
+        secondDoc.setChunkHistory(firstDoc);
+        assertEquals(0, new DifferenceDetector(secondDoc, thirdDoc).call().size());
+    }
+}
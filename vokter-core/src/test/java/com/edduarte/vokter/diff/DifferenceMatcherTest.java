@@ -30,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -97,6 +98,27 @@ public class DifferenceMatcherTest {
     }
 
 
+    @Test
+    public void testRunSplitAcrossBatches() {
+        List<Keyword> keywords = Lists.newArrayList(
+                KeywordBuilder.fromText("argus panoptes").build(parserPool));
+
+        // a single run that is longer than the largest batch is split, and
+        // its words are still matched together across every split
+        List<Difference> diffList = new ArrayList<>();
+        diffList.add(new Difference(DifferenceEvent.inserted, "argus", "argus"));
+        for (int i = 0; i < 3 * DifferenceMatcher.MAX_BATCH_SIZE; i++) {
+            diffList.add(new Difference(DifferenceEvent.inserted, "giant", "giant"));
+        }
+        diffList.add(new Difference(DifferenceEvent.inserted, "panoptes", "panoptes"));
+
+        DifferenceMatcher matcher = new DifferenceMatcher(keywords, diffList, false, false);
+        Set<DifferenceMatcher.Result> matchSet = matcher.call();
+        assertEquals(1, matchSet.size());
+        assertEquals("panoptes", matchSet.iterator().next().snippet);
+    }
+
+
     @Test
     public void testBBCNews() {
         List<String> words = Lists.newArrayList(
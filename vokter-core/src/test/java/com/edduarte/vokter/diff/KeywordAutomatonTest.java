@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.edduarte.vokter.diff;
+
+import com.edduarte.vokter.keyword.Keyword;
+import com.edduarte.vokter.keyword.KeywordBuilder;
+import com.edduarte.vokter.parser.ParserPool;
+import com.edduarte.vokter.parser.SimpleParser;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.mongodb.BasicDBObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class KeywordAutomatonTest {
+
+    private static ParserPool parserPool;
+
+
+    @BeforeClass
+    public static void setUp() throws InterruptedException {
+        parserPool = new ParserPool();
+        parserPool.place(new SimpleParser());
+    }
+
+
+    private static Keyword keyword(String text) {
+        return KeywordBuilder.fromText(text).build(parserPool);
+    }
+
+
+    @Test
+    public void testMatchesWithinRun() {
+        Keyword argus = keyword("argus panoptes");
+        Keyword giant = keyword("giant");
+        Keyword greek = keyword("greek giant");
+        KeywordAutomaton automaton = KeywordAutomaton.compile(
+                Lists.newArrayList(argus, giant, greek, keyword("giant")));
+        assertEquals(3, automaton.size());
+        assertEquals(-1, automaton.termId("norse"));
+
+        KeywordAutomaton.Scan scan = automaton.newScan();
+        assertTrue(scan.next(new Difference(DifferenceEvent.inserted, "argus", "")).isEmpty());
+        assertEquals(Lists.newArrayList(argus),
+                scan.next(new Difference(DifferenceEvent.inserted, "panoptes", "")));
+        assertEquals(Lists.newArrayList(giant),
+                scan.next(new Difference(DifferenceEvent.inserted, "giant", "")));
+
+        // a difference with another action starts a new run
+        assertTrue(scan.next(new Difference(DifferenceEvent.deleted, "greek", "")).isEmpty());
+        assertTrue(scan.next(new Difference(DifferenceEvent.inserted, "greek", "")).isEmpty());
+        List<Keyword> matched = scan.next(new Difference(DifferenceEvent.inserted, "giant", ""));
+        assertEquals(2, matched.size());
+        assertTrue(matched.contains(giant));
+        assertTrue(matched.contains(greek));
+    }
+
+
+    @Test
+    public void testPhrases() {
+        Keyword exact = keyword("\"argus panoptes\"");
+        Keyword near = KeywordBuilder.fromText("argus giant").withSlop(2).build(parserPool);
+        Keyword bag = keyword("giant argus");
+        assertTrue(exact.isPhrase());
+        assertEquals(0, exact.getSlop());
+        assertEquals(2, keyword("\"argus giant\"~2").getSlop());
+
+        KeywordAutomaton automaton = KeywordAutomaton.compile(
+                Lists.newArrayList(exact, near, bag));
+        KeywordAutomaton.Scan scan = automaton.newScan();
+
+        // "giant argus x x panoptes argus panoptes x giant" was inserted
+        scan.next(new Difference(DifferenceEvent.inserted, "giant", 0, 0, 0, "s0"));
+        assertEquals(Lists.newArrayList(bag),
+                scan.next(new Difference(DifferenceEvent.inserted, "argus", 1, 0, 0, "s1")));
+        scan.next(new Difference(DifferenceEvent.inserted, "panoptes", 4, 0, 0, "s4"));
+        scan.next(new Difference(DifferenceEvent.inserted, "argus", 5, 0, 0, "s5"));
+        scan.next(new Difference(DifferenceEvent.inserted, "panoptes", 6, 0, 0, "s6"));
+        scan.next(new Difference(DifferenceEvent.inserted, "giant", 8, 0, 0, "s8"));
+
+        // "argus panoptes" only matches at 5, and "argus giant" only matches
+        // at 5, since the giant at 8 is 2 words after it
+        List<KeywordAutomaton.Match> matches = scan.finish();
+        assertEquals(2, matches.size());
+        for (KeywordAutomaton.Match m : matches) {
+            assertEquals("s5", m.difference.getSnippet());
+            assertTrue(m.keyword == exact || m.keyword == near);
+        }
+    }
+
+
+    @Test
+    public void testPhrasesAcrossScans() {
+        Keyword exact = keyword("\"argus panoptes\"");
+        KeywordAutomaton automaton = KeywordAutomaton.compile(Lists.newArrayList(exact));
+
+        // the differences of a phrase may be scanned in separate batches
+        KeywordAutomaton.Scan first = automaton.newScan();
+        first.next(new Difference(DifferenceEvent.inserted, "argus", 7, 0, 0, "s7"));
+        KeywordAutomaton.Scan second = automaton.newScan();
+        second.next(new Difference(DifferenceEvent.inserted, "panoptes", 8, 0, 0, "s8"));
+        assertTrue(second.finish().isEmpty());
+
+        KeywordAutomaton.Scan merged = automaton.newScan();
+        merged.addPositions(first);
+        merged.addPositions(second);
+        List<KeywordAutomaton.Match> matches = merged.finish();
+        assertEquals(1, matches.size());
+        assertEquals("s7", matches.get(0).difference.getSnippet());
+    }
+
+
+    @Test
+    public void testRunAcrossScans() {
+        Keyword argus = keyword("argus panoptes");
+        KeywordAutomaton automaton = KeywordAutomaton.compile(Lists.newArrayList(argus));
+
+        // a run of differences may be split between consecutive batches
+        KeywordAutomaton.Scan first = automaton.newScan();
+        assertTrue(first.next(new Difference(DifferenceEvent.inserted, "argus", "")).isEmpty());
+        KeywordAutomaton.Scan second = automaton.newScan();
+        second.continueRun(first);
+        assertEquals(Lists.newArrayList(argus),
+                second.next(new Difference(DifferenceEvent.inserted, "panoptes", "")));
+
+        // unless the next batch starts a new run
+        KeywordAutomaton.Scan third = automaton.newScan();
+        third.continueRun(first);
+        assertTrue(third.next(new Difference(DifferenceEvent.deleted, "panoptes", "")).isEmpty());
+    }
+
+
+    @Test
+    public void testPhrasesInMergedDifferences() {
+        Keyword exact = keyword("\"york city\"~0");
+        KeywordAutomaton automaton = KeywordAutomaton.compile(Lists.newArrayList(exact));
+
+        // "york x x x x york city" was inserted, and the second york was
+        // merged into the difference of the first one
+        Difference york = new Difference(DifferenceEvent.inserted, "york", 0, 0, 4, "s0");
+        york.extend(5, 26, "s0-5");
+        assertArrayEquals(new int[]{0, 5}, york.getWordCounts());
+
+        // positions are kept when differences are stored and read back
+        byte[] encoded = new BasicBSONEncoder().encode(york);
+        Difference stored = new Difference(
+                new BasicDBObject(new BasicBSONDecoder().readObject(encoded).toMap()));
+        assertArrayEquals(new int[]{0, 5}, stored.getWordCounts());
+
+        KeywordAutomaton.Scan scan = automaton.newScan();
+        scan.next(stored);
+        scan.next(new Difference(DifferenceEvent.inserted, "city", 6, 27, 31, "s6"));
+        List<KeywordAutomaton.Match> matches = scan.finish();
+        assertEquals(1, matches.size());
+        assertEquals("s0-5", matches.get(0).difference.getSnippet());
+
+        // a merged difference that starts the phrase more than once is only
+        // reported once
+        york.extend(7, 36, "s0-7");
+        scan = automaton.newScan();
+        scan.next(york);
+        scan.next(new Difference(DifferenceEvent.inserted, "city", 6, 27, 31, "s6"));
+        scan.next(new Difference(DifferenceEvent.inserted, "city", 8, 37, 41, "s8"));
+        assertEquals(1, scan.finish().size());
+    }
+
+
+    @Test
+    public void testFuzzyTerms() {
+        Keyword fuzzy = keyword("argus panoptes~1");
+        Keyword exact = keyword("panoptes");
+        assertEquals(1, fuzzy.getEditDistance());
+        assertEquals(1, fuzzy.getAutomaton("argus").getMaxEdits());
+        // terms with less than 3 characters are always exact
+        assertEquals(null, keyword("io~2").getAutomaton("io"));
+        assertEquals(2, KeywordBuilder.fromText("panoptes").withEditDistance(2)
+                .build(parserPool).getAutomaton("panoptes").getMaxEdits());
+
+        KeywordAutomaton automaton = KeywordAutomaton.compile(Lists.newArrayList(fuzzy, exact));
+        assertTrue(automaton.termId("panoptes~1") >= 0);
+        assertTrue(automaton.termId("panoptes~1") != automaton.termId("panoptes"));
+
+        KeywordAutomaton.Scan scan = automaton.newScan();
+        assertTrue(scan.next(new Difference(DifferenceEvent.inserted, "argos", "")).isEmpty());
+        assertEquals(Lists.newArrayList(fuzzy),
+                scan.next(new Difference(DifferenceEvent.inserted, "panopte", "")));
+        List<Keyword> matched = scan.next(new Difference(DifferenceEvent.inserted, "panoptes", ""));
+        assertEquals(2, matched.size());
+        assertTrue(matched.contains(fuzzy));
+        assertTrue(matched.contains(exact));
+        assertTrue(scan.next(new Difference(DifferenceEvent.inserted, "panopticon", "")).isEmpty());
+    }
+
+
+    @Test
+    public void testPatterns() {
+        Keyword wildcard = keyword("acqui* company");
+        Keyword regex = keyword("/v\\d+/");
+        assertEquals(null, keyword("/(a/"));
+        assertTrue(regex.getPattern("/v\\d+/") != null);
+
+        KeywordAutomaton automaton = KeywordAutomaton.compile(Lists.newArrayList(wildcard, regex));
+        KeywordAutomaton.Scan scan = automaton.newScan();
+        assertTrue(scan.next(new Difference(DifferenceEvent.inserted, "company", "")).isEmpty());
+        assertEquals(Lists.newArrayList(wildcard),
+                scan.next(new Difference(DifferenceEvent.inserted, "acquisition", "")));
+        assertEquals(Lists.newArrayList(regex),
+                scan.next(new Difference(DifferenceEvent.inserted, "v2", "")));
+        assertTrue(scan.next(new Difference(DifferenceEvent.inserted, "version", "")).isEmpty());
+    }
+
+
+    @Test
+    public void testMightMatch() {
+        Set<String> snapshot = Sets.newHashSet("argus", "panoptes", "giant");
+        assertTrue(KeywordAutomaton.compile(Lists.newArrayList(
+                keyword("norse"), keyword("argus giant"))).mightMatch(snapshot::contains));
+        assertFalse(KeywordAutomaton.compile(Lists.newArrayList(
+                keyword("norse"), keyword("argus norse"))).mightMatch(snapshot::contains));
+
+        // fuzzy and pattern terms might match any term
+        assertTrue(KeywordAutomaton.compile(Lists.newArrayList(
+                keyword("argus panoptis~1"))).mightMatch(snapshot::contains));
+        assertTrue(KeywordAutomaton.compile(Lists.newArrayList(
+                keyword("gi*"))).mightMatch(snapshot::contains));
+        assertFalse(KeywordAutomaton.compile(Lists.newArrayList()).mightMatch(snapshot::contains));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.diff;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class MyersDiffTest {
+
+    @Test
+    public void testSimple() {
+        // "is the of the 100 eyed giant in greek mythology"
+        // "argus panoptes is the name of the 100 eyed giant in norse mythology"
+        int[] a = {0, 1, 2, 1, 3, 4, 5, 6, 7, 8};
+        int[] b = {9, 10, 0, 1, 11, 2, 1, 3, 4, 5, 6, 12, 8};
+
+        List<Edit> edits = new MyersDiff().diff(a, b);
+        assertEquals(Arrays.asList(
+                new Edit(DifferenceEvent.inserted, 0, 2),
+                new Edit(DifferenceEvent.inserted, 4, 5),
+                new Edit(DifferenceEvent.deleted, 8, 9),
+                new Edit(DifferenceEvent.inserted, 11, 12)
+        ), edits);
+    }
+
+
+    @Test
+    public void testEmpty() {
+        MyersDiff myers = new MyersDiff();
+        assertEquals(0, myers.diff(new int[0], new int[0]).size());
+        assertEquals(Arrays.asList(new Edit(DifferenceEvent.inserted, 0, 2)),
+                myers.diff(new int[0], new int[]{1, 2}));
+        assertEquals(Arrays.asList(new Edit(DifferenceEvent.deleted, 0, 2)),
+                myers.diff(new int[]{1, 2}, new int[0]));
+        assertEquals(Arrays.asList(
+                new Edit(DifferenceEvent.deleted, 0, 2),
+                new Edit(DifferenceEvent.inserted, 0, 2)
+        ), myers.diff(new int[]{1, 2}, new int[]{3, 4}));
+    }
+
+
+    @Test
+    public void testRandom() {
+        Random random = new Random(42);
+        MyersDiff myers = new MyersDiff();
+        for (int i = 0; i < 500; i++) {
+            int[] a = randomTokens(random);
+            int[] b = randomTokens(random);
+            List<Edit> edits = myers.diff(a, b);
+
+            assertArrayEquals(b, apply(a, b, edits));
+            int editCount = edits.stream().mapToInt(e -> e.getEnd() - e.getStart()).sum();
+            assertEquals(a.length + b.length - 2 * lcsLength(a, b), editCount);
+        }
+    }
+
+
+    static int[] randomTokens(Random random) {
+        int[] tokens = new int[random.nextInt(60)];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = random.nextInt(6);
+        }
+        return tokens;
+    }
+
+
+    /**
+     * Rebuilds the second sequence by walking the first one and applying the
+     * specified edits.
+     */
+    static int[] apply(int[] a, int[] b, List<Edit> edits) {
+        List<Integer> result = new ArrayList<>();
+        int aIndex = 0, bIndex = 0;
+        for (Edit e : edits) {
+            if (e.getAction() == DifferenceEvent.deleted) {
+                while (aIndex < e.getStart()) {
+                    result.add(a[aIndex++]);
+                    bIndex++;
+                }
+                aIndex = e.getEnd();
+            } else {
+                while (bIndex < e.getStart()) {
+                    result.add(a[aIndex++]);
+                    bIndex++;
+                }
+                for (int i = e.getStart(); i < e.getEnd(); i++) {
+                    result.add(b[i]);
+                }
+                bIndex = e.getEnd();
+            }
+        }
+        while (aIndex < a.length) {
+            result.add(a[aIndex++]);
+        }
+        return result.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+
+    private static int lcsLength(int[] a, int[] b) {
+        int[][] lcs = new int[a.length + 1][b.length + 1];
+        for (int i = 1; i <= a.length; i++) {
+            for (int j = 1; j <= b.length; j++) {
+                lcs[i][j] = a[i - 1] == b[j - 1]
+                        ? lcs[i - 1][j - 1] + 1
+                        : Math.max(lcs[i - 1][j], lcs[i][j - 1]);
+            }
+        }
+        return lcs[a.length][b.length];
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.document;
+
+import com.google.common.base.Strings;
+import com.mongodb.DB;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class DocumentCacheTest {
+
+    /**
+     * Cached snapshots never read their occurrences, so they are built
+     * without an occurrences database.
+     */
+    private static final DB occurrencesDB = null;
+
+
+    @Test
+    public void testHitAndMiss() {
+        DocumentCache cache = new DocumentCache(1024 * 1024, 1024 * 1024, 60000,
+                obj -> new Document(occurrencesDB, obj));
+
+        assertNull(cache.get("http://www.example.com"));
+        cache.put(new Document(occurrencesDB, "http://www.example.com", "Argus Panoptes"));
+        assertNotNull(cache.get("http://www.example.com"));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+
+    @Test
+    public void testSpillAndEviction() {
+        String content = Strings.repeat("argus ", 100);
+        long weight = DocumentCache.weigh(
+                new Document(occurrencesDB, "http://www.example.com/0", content));
+
+        // the heap tier fits 4 snapshots, the off-heap tier fits only 1
+        DocumentCache cache = new DocumentCache(weight * 4, content.length() * 3 / 2, 60000,
+                obj -> new Document(occurrencesDB, obj));
+        for (int i = 0; i < 6; i++) {
+            cache.put(new Document(occurrencesDB, "http://www.example.com/" + i, content));
+        }
+
+        assertEquals(2, cache.getSpillCount());
+        assertEquals(1, cache.getEvictionCount());
+
+        // the least recently used snapshot was evicted, and the second one is
+        // read back from the off-heap tier
+        assertNull(cache.get("http://www.example.com/0"));
+        Document spilled = cache.get("http://www.example.com/1");
+        assertNotNull(spilled);
+        assertEquals(content, spilled.getOriginalContent());
+    }
+
+
+    @Test
+    public void testWeightCountsStoredFields() {
+        String content = Strings.repeat("argus ", 100);
+        Document document = new Document(occurrencesDB, "http://www.example.com", content);
+        long weight = DocumentCache.weigh(document);
+        assertTrue(weight > 2 * content.length());
+
+        List<String> terms = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            terms.add("term" + i);
+        }
+        document.setTermFilter(terms);
+        assertTrue(DocumentCache.weigh(document) > weight);
+    }
+
+
+    @Test
+    public void testPutIfNewer() {
+        DocumentCache cache = new DocumentCache(1024 * 1024, 1024 * 1024, 60000,
+                obj -> new Document(occurrencesDB, obj));
+        Document newer = new Document(occurrencesDB, "http://www.example.com", "Argus Panoptes");
+        newer.put(Document.VERSION, 2L);
+        cache.put(newer);
+
+        // a snapshot read before the replacement does not overwrite it
+        Document older = new Document(occurrencesDB, "http://www.example.com", "Argus");
+        older.put(Document.VERSION, 1L);
+        cache.putIfNewer(older);
+        assertEquals(2, cache.get("http://www.example.com").getVersion());
+
+        Document newest = new Document(occurrencesDB, "http://www.example.com", "Panoptes");
+        newest.put(Document.VERSION, 3L);
+        cache.putIfNewer(newest);
+        assertEquals(3, cache.get("http://www.example.com").getVersion());
+    }
+
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        DocumentCache cache = new DocumentCache(1024 * 1024, 1024 * 1024, 10,
+                obj -> new Document(occurrencesDB, obj));
+        cache.put(new Document(occurrencesDB, "http://www.example.com", "Argus Panoptes"));
+        Thread.sleep(50);
+
+        assertNull(cache.get("http://www.example.com"));
+        assertEquals(1, cache.getExpiredCount());
+    }
+
+
+    @Test
+    public void testTermFilterIsKept() {
+        String content = Strings.repeat("argus ", 100);
+        Document document = new Document(occurrencesDB, "http://www.example.com/0", content);
+        assertTrue(document.mightContain("panoptes"));
+        document.setTermFilter(Arrays.asList("argus", "giant"));
+
+        // the heap tier fits no snapshots, so the filter of the spilled
+        // snapshot is read back from its bytes
+        DocumentCache cache = new DocumentCache(1, content.length() * 4, 60000,
+                obj -> new Document(occurrencesDB, obj));
+        cache.put(document);
+        assertEquals(1, cache.getSpillCount());
+        Document spilled = cache.get("http://www.example.com/0");
+        assertTrue(spilled.mightContain("argus"));
+        assertTrue(spilled.mightContain("giant"));
+        assertFalse(spilled.mightContain("panoptes"));
+    }
+}
@@ -18,7 +18,9 @@ package com.edduarte.vokter.document;
 
 import com.edduarte.vokter.parser.ParserPool;
 import com.edduarte.vokter.parser.SimpleParser;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -28,6 +30,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
@@ -90,4 +94,25 @@ public class DocumentCollectionTest {
         collection.remove("https://en.wikipedia.org/wiki/Argus_Panoptes");
         assertNull(collection.get("https://en.wikipedia.org/wiki/Argus_Panoptes"));
     }
+
+
+    @Test
+    public void testReplaceRemovesStaleFields() {
+        String url = "http://www.example.com/replaced";
+        Document first = new Document(occurrencesDB, url, "first content");
+        first.setMaskedCount(3);
+        collection.add(first);
+
+        Document second = new Document(occurrencesDB, url, "second content");
+        collection.replace(second);
+        assertEquals(1, second.getVersion());
+
+        DBObject stored = documentsDB.getCollection("test_collection")
+                .findOne(new BasicDBObject(Document.URL, url));
+        assertEquals(second.getString(Document.ID), stored.get(Document.ID));
+        assertEquals("second content", stored.get(Document.ORIGINAL_CONTENT));
+        assertFalse(stored.containsField(Document.MASKED_COUNT));
+
+        collection.remove(url);
+    }
 }
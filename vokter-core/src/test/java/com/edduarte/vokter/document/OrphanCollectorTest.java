@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.document;
+
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class OrphanCollectorTest {
+
+    private static MongoClient mongoClient;
+
+    private static DB occurrencesDB;
+
+    private static DB differencesDB;
+
+    private Map<String, String> snapshots;
+
+    private Set<String> occurrences;
+
+    private Set<String> differences;
+
+    private Set<String> activeUrls;
+
+    private OrphanCollector collector;
+
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        // databases are only used to tell collections apart, so no
+        // connection to the database is established
+        mongoClient = new MongoClient("localhost", 27017);
+        occurrencesDB = mongoClient.getDB("test_occurrences_db");
+        differencesDB = mongoClient.getDB("test_differences_db");
+    }
+
+
+    @AfterClass
+    public static void close() {
+        mongoClient.close();
+    }
+
+
+    @Before
+    public void createCollector() {
+        snapshots = new HashMap<>();
+        occurrences = new HashSet<>();
+        differences = new HashSet<>();
+        activeUrls = new HashSet<>();
+
+        // a collector over in-memory snapshots and collections
+        collector = new OrphanCollector(null, occurrencesDB, differencesDB, () -> activeUrls) {
+            @Override
+            Map<String, String> storedSnapshots() {
+                return new HashMap<>(snapshots);
+            }
+
+
+            @Override
+            Collection<String> collectionNames(DB db) {
+                return new HashSet<>(db == occurrencesDB ? occurrences : differences);
+            }
+
+
+            @Override
+            long removeSnapshot(String url) {
+                occurrences.remove(Document.occurrencesCollectionName(url, snapshots.remove(url)));
+                return 1;
+            }
+
+
+            @Override
+            long dropCollection(DB db, String name) {
+                (db == occurrencesDB ? occurrences : differences).remove(name);
+                return 1;
+            }
+
+
+            @Override
+            void pause() {
+            }
+        };
+    }
+
+
+    private void addSnapshot(String url, String id) {
+        snapshots.put(url, id);
+        occurrences.add(Document.occurrencesCollectionName(url, id));
+    }
+
+
+    @Test
+    public void testReferencedCollectionsSurvive() {
+        addSnapshot("http://www.example.com", "1");
+        activeUrls.add("http://www.example.com");
+        differences.add("http://www.example.com");
+        String referenced = Document.occurrencesCollectionName("http://www.example.com", "1");
+        occurrences.add("orphan");
+        differences.add("http://www.unwatched.com");
+
+        for (int i = 0; i < 3; i++) {
+            collector.collect();
+        }
+
+        assertTrue(occurrences.contains(referenced));
+        assertTrue(differences.contains("http://www.example.com"));
+        assertFalse(occurrences.contains("orphan"));
+        assertFalse(differences.contains("http://www.unwatched.com"));
+        assertEquals(2, collector.getReclaimedCollections());
+    }
+
+
+    @Test
+    public void testOrphansAreDroppedOnSecondCycle() {
+        occurrences.add("orphan");
+        differences.add("http://www.unwatched.com");
+        addSnapshot("http://www.unwatched.com", "1");
+
+        collector.collect();
+        assertTrue(occurrences.contains("orphan"));
+        assertTrue(differences.contains("http://www.unwatched.com"));
+        assertTrue(snapshots.containsKey("http://www.unwatched.com"));
+        assertEquals(0, collector.getReclaimedCollections());
+        assertEquals(0, collector.getReclaimedSnapshots());
+
+        collector.collect();
+        assertFalse(occurrences.contains("orphan"));
+        assertFalse(differences.contains("http://www.unwatched.com"));
+        assertFalse(snapshots.containsKey("http://www.unwatched.com"));
+        assertEquals(2, collector.getReclaimedCollections());
+        assertEquals(1, collector.getReclaimedSnapshots());
+    }
+
+
+    @Test
+    public void testCollectionsReferencedBetweenCyclesSurvive() {
+        // the occurrences of a snapshot are written before the snapshot
+        // itself, so they are briefly unreferenced
+        String pending = Document.occurrencesCollectionName("http://www.example.com", "1");
+        occurrences.add(pending);
+        collector.collect();
+
+        activeUrls.add("http://www.example.com");
+        addSnapshot("http://www.example.com", "1");
+        collector.collect();
+        collector.collect();
+        assertTrue(occurrences.contains(pending));
+
+        // the url is watched again before its snapshot is confirmed
+        activeUrls.remove("http://www.example.com");
+        collector.collect();
+        activeUrls.add("http://www.example.com");
+        collector.collect();
+        assertTrue(snapshots.containsKey("http://www.example.com"));
+        assertEquals(0, collector.getReclaimedCollections());
+        assertEquals(0, collector.getReclaimedSnapshots());
+    }
+
+
+    @Test
+    public void testRemovalsAreCappedPerCycle() {
+        for (int i = 0; i < 250; i++) {
+            occurrences.add("orphan" + i);
+        }
+        collector.collect();
+        assertEquals(250, occurrences.size());
+
+        collector.collect();
+        assertEquals(50, occurrences.size());
+        assertEquals(200, collector.getReclaimedCollections());
+
+        collector.collect();
+        assertEquals(0, occurrences.size());
+        assertEquals(250, collector.getReclaimedCollections());
+        assertEquals(250, collector.getReclaimedBytes());
+    }
+
+
+    @Test
+    public void testCycleIsSkippedWithoutActiveUrls() {
+        occurrences.add("orphan");
+        activeUrls = null;
+        collector.collect();
+        collector.collect();
+        assertTrue(occurrences.contains("orphan"));
+    }
+}
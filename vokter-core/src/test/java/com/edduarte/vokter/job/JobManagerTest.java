@@ -18,6 +18,7 @@ package com.edduarte.vokter.job;
 
 import com.edduarte.vokter.diff.Difference;
 import com.edduarte.vokter.diff.DifferenceDetector;
+import com.edduarte.vokter.diff.KeywordAutomaton;
 import com.edduarte.vokter.document.Document;
 import com.edduarte.vokter.document.DocumentBuilder;
 import com.edduarte.vokter.document.DocumentCollection;
@@ -30,21 +31,34 @@ import com.google.common.collect.Lists;
 import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
-import com.mongodb.DBObject;
+import com.mongodb.DBCursor;
 import com.mongodb.MongoClient;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.quartz.JobBuilder;
+import org.quartz.JobDetail;
+import org.quartz.JobKey;
+import org.quartz.SimpleScheduleBuilder;
+import org.quartz.Trigger;
+import org.quartz.TriggerBuilder;
+import org.quartz.simpl.RAMJobStore;
+import org.quartz.spi.OperableTrigger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Date;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -112,7 +126,7 @@ public class JobManagerTest {
     public void testSimple() throws Exception {
         JobManager manager = JobManager.create("test_vokter_manager", 12, new JobManagerHandler() {
             @Override
-            public boolean detectDifferences(String url) {
+            public boolean detectDifferences(String url, KeywordAutomaton keywords) {
 
                 // create a new document snapshot for the provided url
                 Document newDocument = DocumentBuilder
@@ -134,7 +148,7 @@ public class JobManagerTest {
                     // there was already a document for this url on the collection, so
                     // detect differences between them and add them to the differences
                     // database
-                    DifferenceDetector detector = new DifferenceDetector(oldDocument, newDocument, parserPool);
+                    DifferenceDetector detector = new DifferenceDetector(oldDocument, newDocument);
                     List<Difference> results = detector.call();
 
                     removeExistingDifferences(url);
@@ -149,21 +163,20 @@ public class JobManagerTest {
                 }
 
                 //replace the old document in the collection with the new one
-                collection.remove(url);
-                collection.add(newDocument);
+                collection.replace(newDocument);
 
                 return true;
             }
 
 
             @Override
-            public List<Difference> getExistingDifferences(String url) {
+            public Stream<Difference> getExistingDifferences(String url) {
                 DBCollection diffColl = differencesDB.getCollection(url);
-                diffColl.count();
-                Iterable<DBObject> cursor = diffColl.find();
-                return StreamSupport.stream(cursor.spliterator(), true)
+                DBCursor cursor = diffColl.find();
+                return StreamSupport
+                        .stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED), false)
                         .map(Difference::new)
-                        .collect(Collectors.toList());
+                        .onClose(cursor::close);
             }
 
 
@@ -244,5 +257,63 @@ public class JobManagerTest {
         manager.stop();
     }
 
+
+    @Test
+    public void testLegacyMatchingJobsAreMigrated() throws Exception {
+        // a matching job stored by a previous version, with its own trigger
+        RAMJobStore jobStore = new RAMJobStore();
+        jobStore.initialize(null, null);
+        JobKey jobKey = new JobKey("http://www.client.com", "matching" + "testRequestUrl");
+        JobDetail legacyJob = JobBuilder.newJob(MatchingJob.class)
+                .withIdentity(jobKey)
+                .usingJobData(MatchingJob.KEYWORDS, "[\"argus\"]")
+                .usingJobData(MatchingJob.IGNORE_ADDED, false)
+                .usingJobData(MatchingJob.IGNORE_REMOVED, false)
+                .build();
+        Trigger legacyTrigger = TriggerBuilder.newTrigger()
+                .withIdentity("http://www.client.com", "matching" + "testRequestUrl")
+                .forJob(jobKey)
+                .startAt(new Date(System.currentTimeMillis() + 3600000))
+                .withSchedule(SimpleScheduleBuilder.simpleSchedule()
+                        .withIntervalInSeconds(600)
+                        .repeatForever())
+                .build();
+        jobStore.storeJobAndTrigger(legacyJob, (OperableTrigger) legacyTrigger);
+        assertFalse(jobStore.retrieveJob(jobKey).isDurable());
+
+        JobManager manager = JobManager.create("test_migration_manager", 60, new JobManagerHandler() {
+            @Override
+            public boolean detectDifferences(String url, KeywordAutomaton keywords) {
+                return false;
+            }
+
+
+            @Override
+            public Stream<Difference> getExistingDifferences(String url) {
+                return Stream.empty();
+            }
+
+
+            @Override
+            public void removeExistingDifferences(String url) {
+            }
+
+
+            @Override
+            public Keyword buildKeyword(String keywordInput) {
+                return null;
+            }
+        });
+        manager.initialize(jobStore, 1);
+
+        // the job is kept as a durable subscription, without its trigger
+        JobDetail migratedJob = jobStore.retrieveJob(jobKey);
+        assertNotNull(migratedJob);
+        assertTrue(migratedJob.isDurable());
+        assertEquals("[\"argus\"]", migratedJob.getJobDataMap().getString(MatchingJob.KEYWORDS));
+        assertTrue(jobStore.getTriggersForJob(jobKey).isEmpty());
+
+        manager.stop();
+    }
 }
 
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.edduarte.vokter.keyword;
+
+import com.edduarte.vokter.parser.ParserPool;
+import com.edduarte.vokter.parser.SimpleParser;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class KeywordCacheTest {
+
+    private static ParserPool parserPool;
+
+
+    @BeforeClass
+    public static void setUp() throws InterruptedException {
+        parserPool = new ParserPool();
+        parserPool.place(new SimpleParser());
+    }
+
+
+    @Test
+    public void testKeywordsAreBuiltOnce() {
+        KeywordCache cache = new KeywordCache(10);
+        AtomicInteger builds = new AtomicInteger();
+
+        Keyword k1 = cache.get("argus panoptes", "a", input -> {
+            builds.incrementAndGet();
+            return KeywordBuilder.fromText(input).build(parserPool);
+        });
+        Keyword k2 = cache.get("argus panoptes", "a", input -> {
+            builds.incrementAndGet();
+            return KeywordBuilder.fromText(input).build(parserPool);
+        });
+        assertSame(k1, k2);
+        assertEquals(1, builds.get());
+
+        // keywords built with other settings are not reused
+        Keyword k3 = cache.get("argus panoptes", "b", input -> {
+            builds.incrementAndGet();
+            return KeywordBuilder.fromText(input).ignoreCase().build(parserPool);
+        });
+        assertNotSame(k1, k3);
+        assertEquals(2, builds.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+
+    @Test
+    public void testFailedBuildsAreNotCached() {
+        KeywordCache cache = new KeywordCache(10);
+        assertNull(cache.get("argus", "a", input -> null));
+        Keyword k = cache.get("argus", "a", input -> KeywordBuilder.fromText(input).build(parserPool));
+        assertSame(k, cache.get("argus", "a", input -> null));
+    }
+
+
+    @Test
+    public void testLeastRecentlyUsedAreEvicted() {
+        KeywordCache cache = new KeywordCache(2);
+        Keyword a = cache.get("a", "s", input -> KeywordBuilder.fromText(input).build(parserPool));
+        cache.get("b", "s", input -> KeywordBuilder.fromText(input).build(parserPool));
+        cache.get("a", "s", input -> null);
+        cache.get("c", "s", input -> KeywordBuilder.fromText(input).build(parserPool));
+        assertSame(a, cache.get("a", "s", input -> null));
+        assertNull(cache.get("b", "s", input -> null));
+    }
+}
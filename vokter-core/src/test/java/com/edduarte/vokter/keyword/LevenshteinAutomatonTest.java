@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.keyword;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class LevenshteinAutomatonTest {
+
+    @Test
+    public void testMatches() {
+        LevenshteinAutomaton automaton = LevenshteinAutomaton.compile("panoptes", 1);
+        assertTrue(automaton.matches("panoptes"));
+        assertTrue(automaton.matches("panopte"));
+        assertTrue(automaton.matches("panopts"));
+        assertTrue(automaton.matches("panoptess"));
+        assertTrue(automaton.matches("banoptes"));
+        assertFalse(automaton.matches("banopte"));
+        assertFalse(automaton.matches("argus"));
+        assertFalse(automaton.matches(""));
+
+        assertEquals(LevenshteinAutomaton.MAX_EDITS,
+                LevenshteinAutomaton.compile("panoptes", 5).getMaxEdits());
+        assertTrue(LevenshteinAutomaton.compile("argus", 0).matches("argus"));
+        assertFalse(LevenshteinAutomaton.compile("argus", 0).matches("argos"));
+    }
+
+
+    @Test
+    public void testRandomTexts() {
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            String term = randomText(random);
+            String text = randomText(random);
+            int maxEdits = random.nextInt(LevenshteinAutomaton.MAX_EDITS + 1);
+            LevenshteinAutomaton automaton = LevenshteinAutomaton.compile(term, maxEdits);
+            assertEquals(term + " / " + text,
+                    distance(term, text) <= maxEdits, automaton.matches(text));
+        }
+    }
+
+
+    private static String randomText(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(8);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(4)));
+        }
+        return sb.toString();
+    }
+
+
+    private static int distance(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) {
+            for (int j = 0; j <= b.length(); j++) {
+                if (i == 0 || j == 0) {
+                    d[i][j] = i + j;
+                } else {
+                    d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1),
+                            d[i - 1][j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1));
+                }
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.keyword;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class PatternAutomatonTest {
+
+    @Test
+    public void testMatches() {
+        PatternAutomaton version = PatternAutomaton.compile("v?\\d+(\\.\\d+){0,2}", false);
+        assertTrue(version.matches("v1"));
+        assertTrue(version.matches("1.3.3"));
+        assertFalse(version.matches("1.3.3.7"));
+        assertFalse(version.matches("v"));
+
+        PatternAutomaton acqui = PatternAutomaton.fromWildcard("Acqui*", true);
+        assertTrue(acqui.matches("acquisition"));
+        assertTrue(acqui.matches("ACQUIRED"));
+        assertFalse(acqui.matches("acq"));
+
+        PatternAutomaton price = PatternAutomaton.fromWildcard("$??.99", false);
+        assertTrue(price.matches("$19.99"));
+        assertFalse(price.matches("$1999"));
+    }
+
+
+    @Test
+    public void testGuards() {
+        // constructs that cannot be matched by a DFA
+        assertNull(PatternAutomaton.compile("(a)\\1", false));
+        assertNull(PatternAutomaton.compile("a(?=b)", false));
+        assertNull(PatternAutomaton.compile("a*+", false));
+        assertNull(PatternAutomaton.compile("\\bword", false));
+
+        // invalid or too large patterns
+        assertNull(PatternAutomaton.compile("(a", false));
+        assertNull(PatternAutomaton.compile("*a", false));
+        assertNull(PatternAutomaton.compile("a{100}", false));
+
+        // catastrophic patterns for backtracking matchers are linear here
+        PatternAutomaton nested = PatternAutomaton.compile("(a+)+b", false);
+        assertNotNull(nested);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append('a');
+        }
+        assertFalse(nested.matches(sb));
+
+        // patterns whose DFA is exponentially larger than their NFA
+        assertNull(PatternAutomaton.compile("[ab]*a[ab]{20}", false));
+    }
+
+
+    @Test
+    public void testUnion() {
+        PatternAutomaton.Union union = PatternAutomaton.union(Lists.newArrayList(
+                PatternAutomaton.fromWildcard("acqui*", false),
+                PatternAutomaton.compile("\\d+", false),
+                PatternAutomaton.compile("[a-z]+", false)));
+        assertArrayEquals(new int[]{0, 2}, union.matches("acquire"));
+        assertArrayEquals(new int[]{1}, union.matches("2015"));
+        assertArrayEquals(new int[]{2}, union.matches("argus"));
+        assertArrayEquals(new int[0], union.matches("Argus"));
+    }
+
+
+    @Test
+    public void testRandomPatterns() {
+        // compares the matches with the ones of java.util.regex
+        String[] patterns = {"a*b", "(a|b)*c?", "[^ab]+", "a{2,3}b?", "(ab|ba)+",
+                "a.c", "(?:a|bc)*", "[a-c]{1,2}c*", "a|b|", "^a+$"};
+        Random random = new Random(42);
+        for (String p : patterns) {
+            PatternAutomaton automaton = PatternAutomaton.compile(p, false);
+            Pattern reference = Pattern.compile(p);
+            for (int i = 0; i < 500; i++) {
+                StringBuilder sb = new StringBuilder();
+                int length = random.nextInt(6);
+                for (int j = 0; j < length; j++) {
+                    sb.append((char) ('a' + random.nextInt(4)));
+                }
+                String text = sb.toString();
+                assertEquals(p + " / " + text,
+                        reference.matcher(text).matches(), automaton.matches(text));
+            }
+        }
+    }
+}
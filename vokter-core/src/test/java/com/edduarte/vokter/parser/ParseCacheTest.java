@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.edduarte.vokter.parser;
+
+import it.unimi.dsi.lang.MutableString;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class ParseCacheTest {
+
+    private static final String URL = "http://www.example.com";
+
+    private static final String SETTINGS = "simple";
+
+
+    private static MutableString randomText(Random random, int wordCount) {
+        MutableString text = new MutableString();
+        for (int i = 0; i < wordCount; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            int length = 1 + random.nextInt(10);
+            for (int j = 0; j < length; j++) {
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return text;
+    }
+
+
+    private static void assertSameResults(List<Parser.Result> expected, List<Parser.Result> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Parser.Result e = expected.get(i);
+            Parser.Result a = actual.get(i);
+            assertEquals(e.wordCount, a.wordCount);
+            assertEquals(e.start, a.start);
+            assertEquals(e.end, a.end);
+            assertEquals(e.text, a.text);
+        }
+    }
+
+
+    @Test
+    public void testChunkedResultsMatchWholeResults() {
+        Parser parser = new SimpleParser();
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            MutableString text = randomText(random, random.nextInt(3000));
+            ParseCache cache = new ParseCache(10);
+            List<Parser.Result> chunked = cache.split(URL, text, SETTINGS)
+                    .parse("en", parser::parse);
+            assertSameResults(parser.parse(text), chunked);
+        }
+    }
+
+
+    @Test
+    public void testUnchangedChunksAreReused() {
+        Parser parser = new SimpleParser();
+        MutableString oldText = randomText(new Random(42), 5000);
+        MutableString newText = oldText.copy();
+        newText.insert(newText.length() / 2, "argus panoptes ");
+
+        ParseCache cache = new ParseCache(10);
+        ParseCache.Chunks oldChunks = cache.split(URL, oldText, SETTINGS);
+        assertNull(oldChunks.getCachedLanguage());
+        oldChunks.parse("en", parser::parse);
+        int chunkCount = ParseCache.chunkEnds(oldText).length;
+        assertTrue(chunkCount > 10);
+        assertEquals(chunkCount, cache.getParsedChunks());
+
+        ParseCache.Chunks newChunks = cache.split(URL, newText, SETTINGS);
+        assertEquals("en", newChunks.getCachedLanguage());
+        assertFalse(newChunks.isCached("en"));
+        assertSameResults(parser.parse(newText), newChunks.parse("en", parser::parse));
+        assertTrue(cache.getReusedChunks() >= chunkCount - 2);
+
+        // results are not reused with a different language or settings
+        assertFalse(cache.split(URL, newText, SETTINGS).isCached("pt"));
+        assertTrue(cache.split(URL, newText, SETTINGS).isCached("en"));
+        assertNull(cache.split(URL, newText, "stemming").getCachedLanguage());
+    }
+}
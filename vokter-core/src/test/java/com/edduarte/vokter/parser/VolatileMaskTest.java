@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.edduarte.vokter.parser;
+
+import it.unimi.dsi.lang.MutableString;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class VolatileMaskTest {
+
+    private static final String URL = "http://www.example.com";
+
+
+    private static String mask(VolatileMask mask, String text) {
+        return mask(mask, text, null);
+    }
+
+
+    private static String mask(VolatileMask mask, String text, Predicate<String> keptTokens) {
+        List<Parser.Result> results = new SimpleParser().parse(new MutableString(text));
+        mask.mask(URL, results, keptTokens);
+        return results.stream()
+                .map(r -> r.text.toString())
+                .collect(Collectors.joining(" "));
+    }
+
+
+    @Test
+    public void testChangingTokensAreMasked() {
+        VolatileMask mask = new VolatileMask(10);
+
+        // the first changes are not masked, since the slot is not volatile yet
+        assertEquals("updated 1 minutes ago in 2014 session a1b2",
+                mask(mask, "updated 1 minutes ago in 2014 session a1b2"));
+        assertEquals("updated 3 minutes ago in 2014 session c3d4",
+                mask(mask, "updated 3 minutes ago in 2014 session c3d4"));
+        assertEquals("updated 5 minutes ago in 2014 session e5f6",
+                mask(mask, "updated 5 minutes ago in 2014 session e5f6"));
+
+        // the slots that changed on every snapshot are masked, while the slot
+        // that never changed is kept
+        assertEquals("updated # minutes ago in 2014 session #",
+                mask(mask, "updated 7 minutes ago in 2014 session g7h8"));
+        assertEquals("updated # minutes ago in 2014 session #",
+                mask(mask, "updated 9 minutes ago in 2014 session i9j0"));
+        assertEquals(2, mask.getVolatileSlots(URL));
+        assertEquals(4, mask.getMaskedTokens());
+
+        Map<String, String> values = mask.getVolatileValues(URL);
+        assertEquals(2, values.size());
+        assertEquals("9", values.get("updated _ minutes ago"));
+        assertEquals("i9j0", values.get("in session _"));
+    }
+
+
+    @Test
+    public void testOccasionalChangesAreNotMasked() {
+        VolatileMask mask = new VolatileMask(10);
+        for (int i = 1; i <= 8; i++) {
+            // the token changes on every other snapshot
+            String text = "views " + (i + 1) / 2;
+            assertEquals(text, mask(mask, text));
+        }
+        assertEquals(0, mask.getVolatileSlots(URL));
+    }
+
+
+    @Test
+    public void testInsertedTokensDoNotShiftSlots() {
+        VolatileMask mask = new VolatileMask(10);
+        for (int i = 1; i <= 4; i++) {
+            mask(mask, "updated at " + i + " views");
+        }
+        assertEquals(1, mask.getVolatileSlots(URL));
+
+        // a token with the same preceding words is added before the volatile
+        // slot, which is still recognized by the words that follow it
+        assertEquals("updated at 2014 gmt updated at # views",
+                mask(mask, "updated at 2014 gmt updated at 5 views"));
+        assertEquals(1, mask.getVolatileSlots(URL));
+    }
+
+
+    @Test
+    public void testKeywordTokensAreKept() {
+        VolatileMask mask = new VolatileMask(10);
+        Predicate<String> keptTokens = "v4"::equals;
+        for (int i = 1; i <= 3; i++) {
+            mask(mask, "release v" + i + " notes", keptTokens);
+        }
+
+        // the slot is volatile, but its token matches a keyword
+        assertEquals("release v4 notes", mask(mask, "release v4 notes", keptTokens));
+        assertEquals(1, mask.getVolatileSlots(URL));
+        assertEquals(0, mask.getMaskedTokens());
+        assertEquals("release # notes", mask(mask, "release v5 notes", keptTokens));
+    }
+
+
+    @Test
+    public void testStableTokensAreUnlearned() {
+        VolatileMask mask = new VolatileMask(10);
+        for (int i = 1; i <= 4; i++) {
+            mask(mask, "views " + i);
+        }
+        assertEquals(1, mask.getVolatileSlots(URL));
+
+        for (int i = 0; i < VolatileMask.FORGETTING_SNAPSHOTS - 1; i++) {
+            assertEquals("views #", mask(mask, "views 4"));
+        }
+        assertEquals("views 4", mask(mask, "views 4"));
+        assertEquals(0, mask.getVolatileSlots(URL));
+    }
+
+
+    @Test
+    public void testUrlsAreIndependentAndEvicted() {
+        VolatileMask mask = new VolatileMask(1);
+        for (int i = 1; i <= 4; i++) {
+            mask(mask, "views " + i);
+        }
+        assertEquals(1, mask.getVolatileSlots(URL));
+
+        List<Parser.Result> results = new SimpleParser().parse(new MutableString("views 5"));
+        assertEquals(0, mask.mask("http://www.other.com", results));
+        assertEquals(0, mask.getVolatileSlots(URL));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.persistence;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class WriteBehindQueueTest {
+
+    // the collections are only identified by their names, so no database
+    // is needed
+    private static final String FIRST = "first";
+
+    private static final String SECOND = "second";
+
+    private static final String FAILING = "failing";
+
+
+    @Test
+    public void testOrdering() {
+        List<String> writes = Collections.synchronizedList(new ArrayList<>());
+        AbstractWriteBehindQueue<String> queue = recordingQueue(writes, 0);
+
+        queue.insert(FIRST, object(1));
+        queue.insert(SECOND, object(1));
+        queue.insertAll(FIRST, Arrays.asList(object(2), object(3)).iterator());
+        queue.insert(FIRST, object(4));
+        queue.awaitAll();
+
+        assertEquals(Arrays.asList("1", "2", "3", "4"), writesOf(writes, FIRST));
+        assertEquals(Collections.singletonList("1"), writesOf(writes, SECOND));
+        assertEquals(5, queue.getWrittenCount());
+        queue.shutdown();
+    }
+
+
+    @Test
+    public void testAwait() {
+        List<String> writes = Collections.synchronizedList(new ArrayList<>());
+        AbstractWriteBehindQueue<String> queue = recordingQueue(writes, 200);
+
+        queue.insert(FIRST, object(1));
+        queue.insert(SECOND, object(1));
+        assertEquals(2, queue.getPendingCount());
+
+        // awaiting triggers a flush without waiting for the flush interval,
+        // and only returns once the writes are performed
+        long start = System.currentTimeMillis();
+        queue.await(FIRST);
+        assertTrue(System.currentTimeMillis() - start < 60000);
+        assertEquals(Collections.singletonList("1"), writesOf(writes, FIRST));
+
+        // writes of other collections are flushed along with them
+        assertEquals(Collections.singletonList("1"), writesOf(writes, SECOND));
+        assertEquals(1, queue.getFlushCount());
+        assertEquals(0, queue.getPendingCount());
+
+        // awaiting a collection without pending writes returns immediately
+        queue.await(FIRST);
+        assertEquals(1, queue.getFlushCount());
+        queue.shutdown();
+    }
+
+
+    @Test
+    public void testDrop() {
+        List<String> writes = Collections.synchronizedList(new ArrayList<>());
+        AbstractWriteBehindQueue<String> queue = recordingQueue(writes, 0);
+
+        queue.insert(FIRST, object(1));
+        queue.replaceAll(FIRST, Arrays.asList(object(2), object(3)));
+        queue.drop(SECOND);
+        queue.replaceAll(SECOND, Collections.emptyList());
+        queue.awaitAll();
+
+        assertEquals(Arrays.asList("1", "drop", "2", "3"), writesOf(writes, FIRST));
+        assertEquals(Arrays.asList("drop", "drop"), writesOf(writes, SECOND));
+        queue.shutdown();
+    }
+
+
+    @Test
+    public void testFailure() {
+        List<String> writes = Collections.synchronizedList(new ArrayList<>());
+        AbstractWriteBehindQueue<String> queue = recordingQueue(writes, 0);
+
+        queue.insert(FAILING, object(1));
+        queue.insert(FIRST, object(1));
+        try {
+            queue.await(FAILING);
+            fail("Failed writes were awaited as if they were stored.");
+        } catch (MongoException ex) {
+            // expected
+        }
+
+        // writes of other collections are not affected, and the failure is
+        // thrown to every reader of the failed collection
+        queue.await(FIRST);
+        assertEquals(Collections.singletonList("1"), writesOf(writes, FIRST));
+        assertEquals(1, queue.getFailedCount());
+        try {
+            queue.await(FAILING);
+            fail("Failed writes were awaited as if they were stored.");
+        } catch (MongoException ex) {
+            // expected
+        }
+        queue.shutdown();
+    }
+
+
+    @Test
+    public void testShutdown() {
+        List<String> writes = Collections.synchronizedList(new ArrayList<>());
+        AbstractWriteBehindQueue<String> queue = recordingQueue(writes, 0);
+
+        queue.insert(FIRST, object(1));
+        queue.shutdown();
+        assertEquals(Collections.singletonList("1"), writesOf(writes, FIRST));
+
+        // writes after shutdown are performed synchronously
+        queue.insert(FIRST, object(2));
+        assertEquals(Arrays.asList("1", "2"), writesOf(writes, FIRST));
+        try {
+            queue.insert(FAILING, object(1));
+            fail("A failed synchronous write was not thrown.");
+        } catch (MongoException ex) {
+            // expected
+        }
+    }
+
+
+    /**
+     * Returns a queue with a long flush interval that records every write
+     * instead of performing it, taking the specified time to perform each
+     * flush of a collection, and failing every write into the failing
+     * collection.
+     */
+    private static AbstractWriteBehindQueue<String> recordingQueue(List<String> writes,
+                                                                   long writeMillis) {
+        return new AbstractWriteBehindQueue<String>(1000, 60000) {
+            @Override
+            String nameOf(String collection) {
+                return collection;
+            }
+
+
+            @Override
+            void execute(String collection, List<Op> ops) {
+                try {
+                    Thread.sleep(writeMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                if (collection.equals(FAILING)) {
+                    throw new MongoException("Write failed.");
+                }
+                for (Op op : ops) {
+                    writes.add(collection + ":" +
+                            (op.isDrop() ? "drop" : op.object.get("n")));
+                }
+            }
+        };
+    }
+
+
+    private static List<String> writesOf(List<String> writes, String collection) {
+        String prefix = collection + ":";
+        synchronized (writes) {
+            return writes.stream()
+                    .filter(w -> w.startsWith(prefix))
+                    .map(w -> w.substring(prefix.length()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+
+    private static DBObject object(int n) {
+        return new BasicDBObject("n", n);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.edduarte.vokter.similarity;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class ContentChunkerTest {
+
+    private static List<String> tokens(String prefix, int count) {
+        List<String> tokens = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tokens.add(prefix + i);
+        }
+        return tokens;
+    }
+
+
+    @Test
+    public void testLengths() {
+        List<String> tokens = tokens("argus", 5000);
+        int[] lengths = ContentChunker.chunkLengths(tokens);
+
+        int total = 0;
+        for (int c = 0; c < lengths.length; c++) {
+            assertTrue(lengths[c] <= ContentChunker.MAX_CHUNK_TOKENS);
+            if (c < lengths.length - 1) {
+                assertTrue(lengths[c] >= ContentChunker.MIN_CHUNK_TOKENS);
+            }
+            total += lengths[c];
+        }
+        assertEquals(tokens.size(), total);
+        assertTrue(lengths.length > 5000 / ContentChunker.MAX_CHUNK_TOKENS);
+
+        assertEquals(0, ContentChunker.chunkLengths(new ArrayList<>()).length);
+        assertArrayEquals(new int[]{3},
+                ContentChunker.chunkLengths(Arrays.asList("argus", "panoptes", "giant")));
+    }
+
+
+    @Test
+    public void testEditOnlyChangesNearbyChunks() {
+        List<String> oldTokens = tokens("argus", 5000);
+        List<String> newTokens = new ArrayList<>(oldTokens);
+        newTokens.addAll(2500, tokens("panoptes", 10));
+        newTokens.remove(4000);
+
+        long[] oldHashes = ContentChunker.chunkHashes(oldTokens,
+                ContentChunker.chunkLengths(oldTokens));
+        long[] newHashes = ContentChunker.chunkHashes(newTokens,
+                ContentChunker.chunkLengths(newTokens));
+
+        Set<Long> oldSet = new HashSet<>();
+        for (long h : oldHashes) {
+            oldSet.add(h);
+        }
+        int unmatched = 0;
+        for (long h : newHashes) {
+            if (!oldSet.contains(h)) {
+                unmatched++;
+            }
+        }
+        // each edit changes at most the chunk it falls in and the following
+        // one, until the boundaries resynchronize
+        assertTrue(unmatched > 0);
+        assertTrue(unmatched <= 4);
+    }
+
+
+    @Test
+    public void testBytes() {
+        List<String> tokens = tokens("argus", 500);
+        int[] lengths = ContentChunker.chunkLengths(tokens);
+        long[] hashes = ContentChunker.chunkHashes(tokens, lengths);
+
+        assertArrayEquals(lengths, ContentChunker.lengthsFromBytes(ContentChunker.toBytes(lengths)));
+        assertArrayEquals(hashes, ContentChunker.hashesFromBytes(ContentChunker.toBytes(hashes)));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Eduardo Duarte
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edduarte.vokter.similarity;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Eduardo Duarte (<a href="mailto:hello@edduarte.com">hello@edduarte.com</a>)
+ * @version 1.3.3
+ * @since 1.3.3
+ */
+public class MinHashTest {
+
+    private static List<String> tokens(String prefix, int count) {
+        List<String> tokens = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tokens.add(prefix + i);
+        }
+        return tokens;
+    }
+
+
+    @Test
+    public void testIdentical() {
+        List<String> tokens = tokens("argus", 500);
+        int[] s1 = MinHash.signature(tokens);
+        int[] s2 = MinHash.signature(new ArrayList<>(tokens));
+
+        assertArrayEquals(s1, s2);
+        assertEquals(1.0, MinHash.similarity(s1, s2), 0);
+        assertEquals(MinHash.fingerprint(tokens), MinHash.fingerprint(new ArrayList<>(tokens)));
+        assertArrayEquals(s1, MinHash.fromBytes(MinHash.toBytes(s1)));
+    }
+
+
+    @Test
+    public void testSimilar() {
+        List<String> original = tokens("argus", 500);
+        List<String> revision = new ArrayList<>(original);
+        revision.set(250, "panoptes");
+
+        double similarity = MinHash.similarity(
+                MinHash.signature(original), MinHash.signature(revision));
+        assertTrue(similarity > 0.8);
+        assertNotEquals(MinHash.fingerprint(original), MinHash.fingerprint(revision));
+    }
+
+
+    @Test
+    public void testRewritten() {
+        double similarity = MinHash.similarity(
+                MinHash.signature(tokens("argus", 500)),
+                MinHash.signature(tokens("panoptes", 500)));
+        assertTrue(similarity < 0.1);
+    }
+
+
+    @Test
+    public void testShortSequences() {
+        int[] s1 = MinHash.signature(Arrays.asList("argus"));
+        int[] s2 = MinHash.signature(Arrays.asList("argus"));
+        assertEquals(1.0, MinHash.similarity(s1, s2), 0);
+    }
+}